@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+
+/**
+ * Round trips of {@link Client#grabEvent(String)} and
+ * {@link Client#grabEvents(String...)} against a local {@link Server}
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+@State(Scope.Benchmark)
+public class ClientBenchmark {
+    
+    public static final int PORT = 18091;
+    
+    private Server server;
+    private Client client;
+    
+    @Setup(Level.Trial)
+    public void setup() {
+        server = new Server(PORT);
+        server.setRequestHandler(IFTTJ::handle);
+        if (!server.start(false)) {
+            throw new IllegalStateException("Server could not be started");
+        }
+        client = new Client("127.0.0.1", PORT);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.stopAll();
+        server.stop(false);
+    }
+    
+    @Setup(Level.Iteration)
+    public void addEvents() {
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            IFTTJ.getEvents().add("bench", now, "event " + i);
+        }
+    }
+    
+    @Benchmark
+    public String grabEvent() {
+        return client.grabEvent("bench");
+    }
+    
+    @Benchmark
+    public List<Event> grabEvents() {
+        return client.grabEvents("bench", "other");
+    }
+    
+}
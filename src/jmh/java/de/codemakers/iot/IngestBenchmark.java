@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Webhook ingestion and polling through the request handler of
+ * {@link IFTTJ}, without any transport
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+@State(Scope.Thread)
+public class IngestBenchmark {
+    
+    @Param({"1", "100"})
+    public int applets;
+    
+    private final InetSocketAddress inetSocketAddress = new InetSocketAddress("127.0.0.1", 12345);
+    private ByteBuffer[] triggers;
+    private ByteBuffer[] polls;
+    private int index = 0;
+    
+    @Setup
+    public void setup() {
+        triggers = new ByteBuffer[applets];
+        polls = new ByteBuffer[applets];
+        for (int i = 0; i < applets; i++) {
+            triggers[i] = ByteBuffer.wrap((IFTTJ.IFTTT_APPLET_PREFIX + "bench" + i + " temperature=21.5").getBytes(StandardCharsets.UTF_8));
+            polls[i] = ByteBuffer.wrap((IFTTJ.IFTTJ_GET_EVENTS_PREFIX + "bench" + i + " client").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    @Benchmark
+    public Map.Entry<Integer, String> trigger() {
+        final ByteBuffer buffer = triggers[index++ % applets];
+        return IFTTJ.handle(inetSocketAddress, buffer, 0, buffer.limit());
+    }
+    
+    @Benchmark
+    public Map.Entry<Integer, String> triggerAndPoll() {
+        final int i = index++ % applets;
+        IFTTJ.handle(inetSocketAddress, triggers[i], 0, triggers[i].limit());
+        return IFTTJ.handle(inetSocketAddress, polls[i], 0, polls[i].limit());
+    }
+    
+}
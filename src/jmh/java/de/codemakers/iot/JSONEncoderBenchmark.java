@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding of trigger bodies
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+@State(Scope.Thread)
+public class JSONEncoderBenchmark {
+    
+    private final JSONEncoder encoder = new JSONEncoder();
+    private int counter = 0;
+    
+    @Benchmark
+    public int encode() {
+        return encoder.encodeValues("sensor", counter++, "temperature=21.5").length();
+    }
+    
+    @Benchmark
+    public byte[] encodeEscaped() {
+        return encoder.encodeValues("\"quoted\"", "line\nbreak", "tab\tand \\ backslash").toByteArray();
+    }
+    
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Polling and retention with different numbers of retained events and
+ * Clients, which should not change the cost of one poll
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+@State(Scope.Thread)
+public class PollBenchmark {
+    
+    @Param({"10", "100", "1000"})
+    public int events;
+    
+    @Param({"1", "100", "10000"})
+    public int clients;
+    
+    private EventStore store;
+    private Subscriptions subscriptions;
+    private Retention retention;
+    private EventBuffer buffer;
+    private Subscriber[] subscribers;
+    private Subscriber caughtUp;
+    private int index = 0;
+    
+    @Setup
+    public void setup() {
+        final long now = System.currentTimeMillis();
+        store = new EventStore(events);
+        subscriptions = new Subscriptions();
+        retention = new Retention(store, subscriptions, new RetentionPolicy(Long.MAX_VALUE / 2, events), Long.MAX_VALUE / 2);
+        for (int i = 0; i < events; i++) {
+            store.add("bench", now, "event " + i);
+        }
+        buffer = store.get("bench");
+        subscribers = new Subscriber[clients];
+        for (int i = 0; i < clients; i++) {
+            subscribers[i] = subscriptions.get("client" + i, now);
+        }
+        caughtUp = subscriptions.get("caughtUp", now);
+        while (caughtUp.poll(buffer) != null) {
+            //Delivers every retained event, so this Subscriber has nothing left to poll
+        }
+    }
+    
+    @Benchmark
+    public Event addAndPoll() {
+        store.add("bench", System.currentTimeMillis(), "event");
+        return subscribers[index++ % clients].poll(buffer);
+    }
+    
+    @Benchmark
+    public Event pollMiss() {
+        return caughtUp.poll(buffer);
+    }
+    
+    @Benchmark
+    public int retention() {
+        return retention.run(System.currentTimeMillis());
+    }
+    
+}
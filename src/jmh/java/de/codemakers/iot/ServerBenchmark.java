@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+
+/**
+ * Requests over loopback through both {@link Server} transports, sent over
+ * kept-alive connections of a {@link ConnectionPool}
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+@State(Scope.Benchmark)
+public class ServerBenchmark {
+    
+    public static final int PORT = 18090;
+    
+    @Param({"HTTP", "NIO"})
+    public Server.Transport transport;
+    
+    private Server server;
+    
+    @Setup(Level.Trial)
+    public void setup() {
+        server = new Server(PORT);
+        server.setTransport(transport);
+        server.setRequestHandler(IFTTJ::handle);
+        if (!server.start(false)) {
+            throw new IllegalStateException("Server could not be started");
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(false);
+    }
+    
+    @Benchmark
+    public String trigger(Connection connection) throws IOException {
+        return connection.pool.post(IFTTJ.IFTTT_APPLET_PREFIX + "bench temperature=21.5", 0);
+    }
+    
+    @Benchmark
+    public String poll(Connection connection) throws IOException {
+        return connection.pool.post(connection.poll, 0);
+    }
+    
+    @State(Scope.Thread)
+    public static class Connection {
+        
+        private ConnectionPool pool;
+        private String poll;
+        
+        @Setup(Level.Trial)
+        public void setup() {
+            pool = new ConnectionPool("127.0.0.1", PORT, IFTTJ.URL_SUFFIX, 1);
+            poll = IFTTJ.IFTTJ_GET_EVENTS_PREFIX + "bench " + Thread.currentThread().getName();
+        }
+        
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pool.close();
+        }
+        
+    }
+    
+}
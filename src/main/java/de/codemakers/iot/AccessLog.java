@@ -0,0 +1,310 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous access log
+ * <br>
+ * Logging a request only queues a small record, one writer Thread formats
+ * every queued record and writes them at once every
+ * {@link #FLUSH_INTERVAL} milliseconds. If the writer can not keep up, new
+ * records are dropped and counted instead of slowing down the requests.
+ * The log file is rotated, when it gets larger than the maximum file size
+ * ("access.log" becomes "access.log.1" and so on).
+ * <br>
+ * Line format: <code>time=2018-06-01T12:00:00.000Z remote=1.2.3.4
+ * command=TRIGGER applet=abc ids=1 status=200 latency_us=42</code> (status
+ * "parked" for long polls, which were parked, and "forwarded" for events,
+ * which were forwarded to another node of the {@link Cluster}).
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class AccessLog {
+    
+    public static final int DEFAULT_MAX_PENDING = 65536;
+    public static final long DEFAULT_MAX_FILE_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 5;
+    public static final long FLUSH_INTERVAL = 100;
+    public static final int PARKED = -1;
+    public static final int FORWARDED = -2;
+    
+    private final File file;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final Queue<Record> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger(0);
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final StringBuilder sb = new StringBuilder(8192);
+    private Writer writer = null;
+    private long fileSize = 0;
+    private Thread thread = null;
+    private volatile boolean closed = false;
+    
+    /**
+     * Constructs a new AccessLog, which writes to {@link System#out}
+     */
+    public AccessLog() {
+        this(null, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES);
+    }
+    
+    /**
+     * Constructs a new AccessLog
+     *
+     * @param file Log file or null to write to {@link System#out}
+     * @param maxFileSize Size in bytes, which triggers a rotation
+     * @param maxFiles Number of rotated files, which are kept
+     */
+    public AccessLog(File file, long maxFileSize, int maxFiles) {
+        if (maxFileSize <= 0 || maxFiles < 0) {
+            throw new IllegalArgumentException("maxFileSize has to be positive and maxFiles not negative");
+        }
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+    }
+    
+    /**
+     * Returns the log file
+     *
+     * @return Log file or null, if it writes to {@link System#out}
+     */
+    public final File getFile() {
+        return file;
+    }
+    
+    /**
+     * Returns the number of written records
+     *
+     * @return Number of written records
+     */
+    public final long getWrittenCount() {
+        return written.sum();
+    }
+    
+    /**
+     * Returns the number of records, which were dropped, because the writer
+     * could not keep up
+     *
+     * @return Number of dropped records
+     */
+    public final long getDroppedCount() {
+        return dropped.sum();
+    }
+    
+    /**
+     * Opens the log file and starts the writer Thread
+     *
+     * @return A reference to this AccessLog
+     *
+     * @throws IOException If the log file could not be opened
+     */
+    public final synchronized AccessLog start() throws IOException {
+        if (thread != null || closed) {
+            return this;
+        }
+        open();
+        thread = new Thread(this::write, "IFTTJ-Access-Log");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+    
+    /**
+     * Queues a record
+     * <br>
+     * This neither blocks nor wakes up the writer. If the writer can not keep
+     * up, the record is dropped.
+     *
+     * @param timestamp Time in milliseconds the request was received
+     * @param remote Address of the requester
+     * @param command Command of the request
+     * @param id First Applet ID (may be null)
+     * @param ids Number of Applet IDs
+     * @param responseCode HTTP response code, {@link #PARKED} or
+     * {@link #FORWARDED}
+     * @param latency Time to handle the request in nanoseconds
+     */
+    public final void log(long timestamp, InetSocketAddress remote, Request.Command command, String id, int ids, int responseCode, long latency) {
+        if (closed || pendingCount.incrementAndGet() > DEFAULT_MAX_PENDING) {
+            pendingCount.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        pending.offer(new Record(timestamp, remote, command, id, ids, responseCode, latency));
+    }
+    
+    /**
+     * Writes every queued record and closes the log file
+     */
+    public final void close() {
+        final Thread temp;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            temp = thread;
+        }
+        if (temp != null) {
+            LockSupport.unpark(temp);
+            try {
+                temp.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            try {
+                if (file != null && writer != null) {
+                    writer.close();
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            writer = null;
+        }
+    }
+    
+    private final void write() {
+        while (true) {
+            final boolean stop = closed;
+            synchronized (this) {
+                try {
+                    Record record;
+                    while ((record = pending.poll()) != null) {
+                        pendingCount.decrementAndGet();
+                        format(record);
+                        if (sb.length() >= 8192) {
+                            flush();
+                        }
+                    }
+                    flush();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+            if (stop) {
+                return;
+            }
+            LockSupport.parkNanos(FLUSH_INTERVAL * 1_000_000);
+        }
+    }
+    
+    private final void format(Record record) {
+        sb.append("time=").append(Instant.ofEpochMilli(record.timestamp));
+        sb.append(" remote=").append(record.remote == null ? "-" : record.remote.getAddress().getHostAddress());
+        sb.append(" command=").append(record.command);
+        sb.append(" applet=").append(record.id == null ? "-" : record.id);
+        sb.append(" ids=").append(record.ids);
+        sb.append(" status=");
+        if (record.responseCode == PARKED) {
+            sb.append("parked");
+        } else if (record.responseCode == FORWARDED) {
+            sb.append("forwarded");
+        } else {
+            sb.append(record.responseCode);
+        }
+        sb.append(" latency_us=").append(record.latency / 1000).append('\n');
+        written.increment();
+    }
+    
+    private final void flush() throws IOException {
+        if (sb.length() == 0) {
+            return;
+        }
+        if (file != null && fileSize >= maxFileSize) {
+            rotate();
+        }
+        writer.append(sb);
+        writer.flush();
+        fileSize += Utf8.length(sb); //Bytes, like file.length() and maxFileSize
+        sb.setLength(0);
+    }
+    
+    private final void open() throws IOException {
+        if (file == null) {
+            writer = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+            return;
+        }
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        final OutputStream os = new FileOutputStream(file, true);
+        writer = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+        fileSize = file.length();
+    }
+    
+    private final void rotate() throws IOException {
+        writer.close();
+        if (maxFiles == 0) {
+            if (!file.delete()) {
+                System.err.println("Could not delete access log " + file);
+            }
+        } else {
+            new File(file.getPath() + "." + maxFiles).delete();
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                final File temp = new File(file.getPath() + "." + i);
+                if (temp.exists() && !temp.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+                    System.err.println("Could not rotate access log " + temp);
+                }
+            }
+            if (!file.renameTo(new File(file.getPath() + ".1"))) {
+                System.err.println("Could not rotate access log " + file);
+            }
+        }
+        open();
+    }
+    
+    private static final class Record {
+        
+        private final long timestamp;
+        private final InetSocketAddress remote;
+        private final Request.Command command;
+        private final String id;
+        private final int ids;
+        private final int responseCode;
+        private final long latency;
+        
+        private Record(long timestamp, InetSocketAddress remote, Request.Command command, String id, int ids, int responseCode, long latency) {
+            this.timestamp = timestamp;
+            this.remote = remote;
+            this.command = command;
+            this.id = id;
+            this.ids = ids;
+            this.responseCode = responseCode;
+            this.latency = latency;
+        }
+        
+    }
+    
+}
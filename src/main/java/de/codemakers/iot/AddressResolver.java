@@ -0,0 +1,242 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Resolves the address, under which this Server is reachable
+ * <br>
+ * Nothing is resolved until the address is needed. Then a configured
+ * address is used as it is, otherwise an optional probe (an HTTP service,
+ * which returns the public IP of the requester) is asked in the background
+ * with a timeout. If there is no probe or it fails, the address of a local
+ * network interface is used, so this works without an internet connection.
+ * The result is cached until the settings change.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class AddressResolver {
+    
+    public static final String DEFAULT_PROBE_URL = "http://checkip.amazonaws.com";
+    public static final int DEFAULT_PROBE_TIMEOUT = 2000;
+    public static final String LOOPBACK_ADDRESS = "127.0.0.1";
+    
+    private volatile String address = null;
+    private volatile String probeURL = DEFAULT_PROBE_URL;
+    private volatile int probeTimeout = DEFAULT_PROBE_TIMEOUT;
+    private CompletableFuture<String> resolved = null;
+    
+    /**
+     * Returns the configured address
+     *
+     * @return Configured address or null
+     */
+    public final String getConfiguredAddress() {
+        return address;
+    }
+    
+    /**
+     * Sets the address, which is used instead of resolving one
+     *
+     * @param address Address (IP or host name) or null to resolve it
+     *
+     * @return A reference to this AddressResolver
+     */
+    public final synchronized AddressResolver setConfiguredAddress(String address) {
+        this.address = address == null || address.isEmpty() ? null : address;
+        resolved = null;
+        return this;
+    }
+    
+    /**
+     * Returns the URL of the probe
+     *
+     * @return Probe URL or null
+     */
+    public final String getProbeURL() {
+        return probeURL;
+    }
+    
+    /**
+     * Sets the URL of the probe, which returns the public IP of the requester
+     * as plain text
+     *
+     * @param probeURL Probe URL or null to use only local network interfaces
+     *
+     * @return A reference to this AddressResolver
+     */
+    public final synchronized AddressResolver setProbeURL(String probeURL) {
+        this.probeURL = probeURL == null || probeURL.isEmpty() ? null : probeURL;
+        resolved = null;
+        return this;
+    }
+    
+    /**
+     * Returns the maximum time to wait for the probe
+     *
+     * @return Time in milliseconds
+     */
+    public final int getProbeTimeout() {
+        return probeTimeout;
+    }
+    
+    /**
+     * Sets the maximum time to wait for the probe
+     *
+     * @param probeTimeout Time in milliseconds
+     *
+     * @return A reference to this AddressResolver
+     */
+    public final synchronized AddressResolver setProbeTimeout(int probeTimeout) {
+        if (probeTimeout <= 0) {
+            throw new IllegalArgumentException("probeTimeout has to be positive");
+        }
+        this.probeTimeout = probeTimeout;
+        resolved = null;
+        return this;
+    }
+    
+    /**
+     * Resolves the address in the background (only once, until the settings
+     * change)
+     *
+     * @return Future, which completes with the configured address, the
+     * probed address or a local address (it never completes exceptionally)
+     */
+    public final synchronized CompletableFuture<String> resolveAsync() {
+        if (resolved != null) {
+            return resolved;
+        }
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        resolved = future;
+        final String temp = address;
+        final String url = probeURL;
+        if (temp != null || url == null) {
+            future.complete(temp != null ? temp : getLocalAddress());
+            return future;
+        }
+        final int timeout = probeTimeout;
+        final Thread thread = new Thread(() -> {
+            String result = null;
+            try {
+                result = probe(url, timeout);
+            } catch (Exception ex) {
+                System.err.println("Could not probe the public address: " + ex);
+            }
+            future.complete(result != null ? result : getLocalAddress());
+        }, "IFTTJ-Address-Resolver");
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+    
+    /**
+     * Resolves the address and waits for it
+     *
+     * @return Address
+     */
+    public final String resolve() {
+        return resolveAsync().join();
+    }
+    
+    /**
+     * Returns the best address known right now without waiting
+     * <br>
+     * This is the configured address, the resolved address, if resolving
+     * already finished, or a local address.
+     *
+     * @return Address
+     */
+    public final String getAddress() {
+        final String temp = address;
+        if (temp != null) {
+            return temp;
+        }
+        final CompletableFuture<String> future;
+        synchronized (this) {
+            future = resolved;
+        }
+        return future != null && future.isDone() ? future.join() : getLocalAddress();
+    }
+    
+    /**
+     * Asks a probe for the public IP of this host
+     *
+     * @param url Probe URL
+     * @param timeout Connect and read timeout in milliseconds
+     *
+     * @return Public IP or null, if the probe returned nothing
+     *
+     * @throws IOException If the probe could not be reached
+     */
+    public static final String probe(String url, int timeout) throws IOException {
+        final URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        try (final BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.US_ASCII))) {
+            final String line = br.readLine();
+            return line == null || line.trim().isEmpty() ? null : line.trim();
+        }
+    }
+    
+    /**
+     * Returns the IPv4 address of a local network interface, which is up
+     * <br>
+     * Global addresses are preferred over site local ones.
+     *
+     * @return Local address or {@link #LOOPBACK_ADDRESS}, if there is none
+     */
+    public static final String getLocalAddress() {
+        String siteLocal = null;
+        try {
+            final Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                final NetworkInterface networkInterface = interfaces.nextElement();
+                if (!networkInterface.isUp() || networkInterface.isLoopback() || networkInterface.isVirtual()) {
+                    continue;
+                }
+                final Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    final InetAddress inetAddress = addresses.nextElement();
+                    if (!(inetAddress instanceof Inet4Address) || inetAddress.isLinkLocalAddress() || inetAddress.isLoopbackAddress()) {
+                        continue;
+                    }
+                    if (!inetAddress.isSiteLocalAddress()) {
+                        return inetAddress.getHostAddress();
+                    }
+                    if (siteLocal == null) {
+                        siteLocal = inetAddress.getHostAddress();
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        return siteLocal != null ? siteLocal : LOOPBACK_ADDRESS;
+    }
+    
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control of the {@link Server}
+ * <br>
+ * Requests are rate limited per remote address (IPv6 addresses per /64
+ * prefix) and IFTTT triggers per Applet ID, both with token buckets. Every
+ * bucket is a single slot of an {@link AtomicLongArray} holding the time its
+ * next token is due (the "generic cell rate algorithm"), so checking a bucket
+ * is one CAS without any lock. The slots are picked by hashing the key and
+ * their number is fixed, so many sources or Applet IDs neither use more
+ * memory nor cost more time. Keys sharing a slot share its tokens, so they
+ * are limited rather too much than too little. Requests of peers (nodes of
+ * the {@link Cluster}, which authenticated with the shared secret) are not
+ * limited per source, because the node, which received them first, already
+ * limited their original source. Additionally
+ * the number of requests in flight can be limited (parked requests, like
+ * long polls, do not count, because they hold no Thread). Every limit is
+ * disabled by default and can be changed at runtime.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class Admission {
+    
+    /**
+     * Returned by {@link #admit(InetAddress)}, if the request may be handled
+     */
+    public static final int ADMITTED = 200;
+    /**
+     * Returned by {@link #admit(InetAddress)}, if the source sent too many
+     * requests
+     */
+    public static final int TOO_MANY_REQUESTS = 429;
+    /**
+     * Returned by {@link #admit(InetAddress)}, if too many requests are in flight
+     */
+    public static final int SERVICE_UNAVAILABLE = 503;
+    public static final int DEFAULT_SLOTS = 65536;
+    
+    private final long origin = System.nanoTime();
+    private final AtomicLongArray sources;
+    private final AtomicLongArray applets;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final LongAdder rejectedSources = new LongAdder();
+    private final LongAdder rejectedApplets = new LongAdder();
+    private final LongAdder rejectedConcurrency = new LongAdder();
+    private volatile Limit sourceLimit = null;
+    private volatile Limit appletLimit = null;
+    private volatile int maxConcurrent = 0;
+    
+    /**
+     * Constructs a new Admission without any limits
+     */
+    public Admission() {
+        this(DEFAULT_SLOTS);
+    }
+    
+    /**
+     * Constructs a new Admission without any limits
+     *
+     * @param slots Number of token buckets for the sources and the Applets
+     * each (rounded up to a power of two)
+     */
+    public Admission(int slots) {
+        if (slots <= 0 || slots > (1 << 30)) {
+            throw new IllegalArgumentException("slots has to be positive and at most 2^30");
+        }
+        final int size = Integer.highestOneBit(slots) == slots ? slots : Integer.highestOneBit(slots) << 1;
+        this.sources = new AtomicLongArray(size);
+        this.applets = new AtomicLongArray(size);
+    }
+    
+    /**
+     * Sets the rate limit of every remote address
+     *
+     * @param rate Requests per second (0 disables the limit)
+     * @param burst Requests, which may be sent at once
+     *
+     * @return A reference to this Admission
+     */
+    public final Admission setSourceLimit(double rate, double burst) {
+        sourceLimit = Limit.of(rate, burst);
+        clear(sources);
+        return this;
+    }
+    
+    /**
+     * Sets the rate limit of the IFTTT triggers of every Applet
+     *
+     * @param rate Triggers per second (0 disables the limit)
+     * @param burst Triggers, which may be sent at once
+     *
+     * @return A reference to this Admission
+     */
+    public final Admission setAppletLimit(double rate, double burst) {
+        appletLimit = Limit.of(rate, burst);
+        clear(applets);
+        return this;
+    }
+    
+    /**
+     * Returns the maximum number of requests in flight
+     *
+     * @return Maximum number of requests (0 if unlimited)
+     */
+    public final int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+    
+    /**
+     * Sets the maximum number of requests in flight (a parked request, like
+     * a long poll, counts only until it was parked)
+     *
+     * @param maxConcurrent Maximum number of requests (0 disables the limit)
+     *
+     * @return A reference to this Admission
+     */
+    public final Admission setMaxConcurrent(int maxConcurrent) {
+        if (maxConcurrent < 0) {
+            throw new IllegalArgumentException("maxConcurrent must not be negative");
+        }
+        this.maxConcurrent = maxConcurrent;
+        return this;
+    }
+    
+    /**
+     * Returns the number of requests in flight
+     *
+     * @return Number of requests
+     */
+    public final int getInFlight() {
+        return inFlight.get();
+    }
+    
+    /**
+     * Returns the number of requests, which were rejected, because their
+     * source sent too many requests
+     *
+     * @return Number of rejected requests
+     */
+    public final long getRejectedSourceCount() {
+        return rejectedSources.sum();
+    }
+    
+    /**
+     * Returns the number of IFTTT triggers, which were rejected, because
+     * their Applet was triggered too often
+     *
+     * @return Number of rejected triggers
+     */
+    public final long getRejectedAppletCount() {
+        return rejectedApplets.sum();
+    }
+    
+    /**
+     * Returns the number of requests, which were rejected, because too many
+     * requests were in flight
+     *
+     * @return Number of rejected requests
+     */
+    public final long getRejectedConcurrencyCount() {
+        return rejectedConcurrency.sum();
+    }
+    
+    /**
+     * Admits a request, which was not sent by a peer, before its body is read
+     * (see {@link #admit(InetAddress, boolean)})
+     *
+     * @param source Remote address
+     *
+     * @return {@link #ADMITTED}, {@link #TOO_MANY_REQUESTS} or
+     * {@link #SERVICE_UNAVAILABLE}
+     */
+    public final int admit(InetAddress source) {
+        return admit(source, false);
+    }
+    
+    /**
+     * Admits a request, before its body is read
+     * <br>
+     * Every admitted request has to be released with {@link #release()},
+     * after its response was sent or it was parked.
+     *
+     * @param source Remote address
+     * @param peer <tt>true</tt> if the request was sent by an authenticated
+     * peer (see {@link Server#setPeerSecret(String)}), so its source is not
+     * limited
+     *
+     * @return {@link #ADMITTED}, {@link #TOO_MANY_REQUESTS} or
+     * {@link #SERVICE_UNAVAILABLE}
+     */
+    public final int admit(InetAddress source, boolean peer) {
+        final Limit limit = sourceLimit;
+        if (limit != null && source != null && !peer && !tryAcquire(sources, hash(source), limit)) {
+            rejectedSources.increment();
+            return TOO_MANY_REQUESTS;
+        }
+        final int max = maxConcurrent;
+        if (inFlight.incrementAndGet() > max && max > 0) {
+            inFlight.decrementAndGet();
+            rejectedConcurrency.increment();
+            return SERVICE_UNAVAILABLE;
+        }
+        return ADMITTED;
+    }
+    
+    /**
+     * Releases an admitted request
+     */
+    public final void release() {
+        inFlight.decrementAndGet();
+    }
+    
+    /**
+     * Takes a token for an IFTTT trigger of an Applet
+     *
+     * @param id Applet ID
+     *
+     * @return <tt>true</tt> if the trigger may be handled
+     */
+    public final boolean admitTrigger(String id) {
+        final Limit limit = appletLimit;
+        if (limit == null || id == null || tryAcquire(applets, id.hashCode(), limit)) {
+            return true;
+        }
+        rejectedApplets.increment();
+        return false;
+    }
+    
+    private final boolean tryAcquire(AtomicLongArray buckets, int hash, Limit limit) {
+        hash ^= hash >>> 16; //Mixes the hash like the finalizer of MurmurHash3, so similar keys get different slots
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        final int slot = hash & (buckets.length() - 1);
+        final long now = System.nanoTime() - origin; //0 is a full bucket
+        while (true) {
+            final long due = buckets.get(slot);
+            final long start = due > now ? due : now;
+            if (start - now > limit.tolerance) {
+                return false;
+            }
+            if (buckets.compareAndSet(slot, due, start + limit.interval)) {
+                return true;
+            }
+        }
+    }
+    
+    private static final int hash(InetAddress source) {
+        if (!(source instanceof Inet6Address)) {
+            return source.hashCode(); //The IPv4 address itself
+        }
+        final byte[] address = source.getAddress();
+        int hash = 0;
+        for (int i = 0; i < 8; i++) { //One IPv6 host usually owns a whole /64
+            hash = 31 * hash + address[i];
+        }
+        return hash;
+    }
+    
+    private static final void clear(AtomicLongArray buckets) {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+    }
+    
+    @Override
+    public final String toString() {
+        return "Admission{" + "sourceLimit=" + (sourceLimit == null ? "off" : sourceLimit) + ", appletLimit=" + (appletLimit == null ? "off" : appletLimit) + ", maxConcurrent=" + (maxConcurrent == 0 ? "off" : maxConcurrent) + ", inFlight=" + inFlight.get() + ", rejectedSources=" + rejectedSources.sum() + ", rejectedApplets=" + rejectedApplets.sum() + ", rejectedConcurrency=" + rejectedConcurrency.sum() + '}';
+    }
+    
+    /**
+     * Rate and burst of a token bucket in nanoseconds
+     */
+    private static final class Limit {
+        
+        private final double rate;
+        private final double burst;
+        private final long interval;
+        private final long tolerance;
+        
+        private Limit(double rate, double burst) {
+            this.rate = rate;
+            this.burst = burst;
+            this.interval = Math.max(1, (long) (1_000_000_000 / rate));
+            this.tolerance = (long) ((burst - 1) * interval);
+        }
+        
+        private static final Limit of(double rate, double burst) {
+            if (rate < 0 || (rate > 0 && burst < 1)) {
+                throw new IllegalArgumentException("rate must not be negative and burst has to be at least 1");
+            }
+            return rate == 0 ? null : new Limit(rate, burst);
+        }
+        
+        @Override
+        public final String toString() {
+            return rate + "/s (burst " + burst + ")";
+        }
+        
+    }
+    
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+/**
+ * A response, which may carry an {@link EventFrame} instead of text
+ * <br>
+ * The transports send a binary body as {@link EventFrame#CONTENT_TYPE} and
+ * ignore the text then.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+interface BinaryBody {
+    
+    /**
+     * Returns the binary body
+     *
+     * @return Buffer holding the body from 0 to {@link #getBodyLength()} or
+     * null, if the body is text
+     */
+    byte[] getBody();
+    
+    /**
+     * Returns the length of the binary body
+     *
+     * @return Length
+     */
+    int getBodyLength();
+    
+}
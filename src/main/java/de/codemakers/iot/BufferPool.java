@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized direct ByteBuffers
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class BufferPool {
+    
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+    
+    /**
+     * Constructs a new BufferPool
+     *
+     * @param bufferSize Size of every buffer in bytes
+     * @param maxPooled Maximum number of buffers kept in this pool
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+    
+    /**
+     * Returns the size of every buffer
+     *
+     * @return Size in bytes
+     */
+    public final int getBufferSize() {
+        return bufferSize;
+    }
+    
+    /**
+     * Returns a cleared buffer from this pool or a new one, if this pool is
+     * empty
+     *
+     * @return Buffer
+     */
+    public final ByteBuffer acquire() {
+        final ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+    
+    /**
+     * Returns a buffer to this pool
+     * <br>
+     * Buffers of a different size and buffers exceeding the maximum number of
+     * pooled buffers are dropped.
+     *
+     * @param buffer Buffer (may be null)
+     */
+    public final void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || !buffer.isDirect()) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+    
+}
@@ -16,32 +16,92 @@
 package de.codemakers.iot;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * IFTTJ Client
+ * <br>
+ * If the Server is a node of a {@link Cluster}, the Client learns the
+ * topology from the first poll answered with 421 (Misdirected Request) or
+ * from {@link #discoverTopology()} and polls every Applet directly at the
+ * node owning it from then on.
  *
  * @author Paul Hagedorn (Panzer1119)
  */
 public class Client {
     
     public static final int SLEEP_TIME_AFTER_EVENT = 10;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int SLEEP_TIME_AFTER_ERROR = 1000;
+    public static final int READ_TIMEOUT_MARGIN = 5000;
+    public static final int SCHEDULER_THREADS = 2;
+    public static final double DEFAULT_JITTER = 0.1;
+    public static final int DEFAULT_MAX_BACKOFF = 8;
+    public static final int DEFAULT_MIN_PERIOD = SLEEP_TIME_AFTER_EVENT;
+    public static final int DEFAULT_HANDLER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    
+    private static final AtomicInteger HANDLER_THREAD_NUMBER = new AtomicInteger(0);
     
     private String ip;
     private int port;
     private String url_suffix;
     private URL url;
-    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private ConnectionPool pool = null;
+    private volatile HashRing topology = null;
+    private final Map<String, ConnectionPool> pools = new ConcurrentHashMap<>();
+    private String clientID = UUID.randomUUID().toString();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private double jitter = DEFAULT_JITTER;
+    private int maxBackoff = DEFAULT_MAX_BACKOFF;
+    private int minPeriod = DEFAULT_MIN_PERIOD;
+    private volatile boolean binary = false;
+    private final Map<String, PollGroup> polls = new ConcurrentHashMap<>();
+    private final Map<Integer, PollGroup> groups = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS, (runnable) -> {
+        final Thread thread = new Thread(runnable, "IFTTJ-Client-Scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ExecutorService handlerPool = createHandlerExecutor(DEFAULT_HANDLER_THREADS); //Only set while the handlers run on a pool of this Client
+    private final Dispatcher dispatcher = new Dispatcher(handlerPool, this::callHandlers, this::resume);
+    private final Map<String, Listener> listeners = new ConcurrentHashMap<>();
     private BiConsumer<String, String> handler = null;
+    private Consumer<List<Event>> batchHandler = null;
     private final Map<String, BiConsumer<String, String>> handlers = new ConcurrentHashMap<>();
+    private final Metrics metrics = new Metrics("ifttj_client");
+    private final Histogram handlerTime = metrics.histogram("handler_seconds", "Execution time of the handlers of one event");
+    private final LongAdder received = metrics.counter("events_received_total", "Received events");
+    private final LongAdder handlerErrors = metrics.counter("handler_errors_total", "Handlers, which threw an Exception");
+    private final LongAdder requestErrors = metrics.counter("request_errors_total", "Failed requests to the Server");
     
     /**
      * Constructs a new Server for IFTTT POSTs and IFTTJ Clients
@@ -64,6 +124,9 @@ public class Client {
         this.ip = ip;
         this.port = port;
         this.url_suffix = url_suffix;
+        metrics.gauge("dispatch_queue_depth", "Received events waiting for their handlers", "applet", (consumer) -> dispatcher.getLanes().forEach((lane) -> consumer.accept(lane.getID(), lane.getQueueDepth())));
+        metrics.counter("applet_handler_nanoseconds_total", "Execution time of the handlers", "applet", (consumer) -> dispatcher.getLanes().forEach((lane) -> consumer.accept(lane.getID(), lane.getHandlerTime().getSum())));
+        metrics.counter("applet_handler_batches_total", "Handled batches of events", "applet", (consumer) -> dispatcher.getLanes().forEach((lane) -> consumer.accept(lane.getID(), lane.getHandlerTime().getCount())));
         update();
     }
     
@@ -142,12 +205,371 @@ public class Client {
         return url;
     }
     
+    /**
+     * Returns the Client ID, which identifies this Client on the Server
+     *
+     * @return Client ID
+     */
+    public final String getClientID() {
+        return clientID;
+    }
+    
+    /**
+     * Sets the Client ID, which identifies this Client on the Server
+     * <br>
+     * Clients with the same Client ID share which events were already
+     * delivered.
+     *
+     * @param clientID Client ID (without whitespaces)
+     *
+     * @return A reference to this Client
+     */
+    public final Client setClientID(String clientID) {
+        if (clientID == null || clientID.isEmpty() || clientID.matches(".*\\s.*")) {
+            throw new IllegalArgumentException("Invalid Client ID: " + clientID);
+        }
+        this.clientID = clientID;
+        return this;
+    }
+    
+    /**
+     * Returns the maximum number of events grabbed with one request
+     *
+     * @return Batch size
+     */
+    public final int getBatchSize() {
+        return batchSize;
+    }
+    
+    /**
+     * Sets the maximum number of events grabbed with one request
+     *
+     * @param batchSize Batch size
+     *
+     * @return A reference to this Client
+     */
+    public final Client setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize has to be positive");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+    
+    /**
+     * Returns the share of the period, by which every poll is randomly moved
+     *
+     * @return Jitter between 0 and 1
+     */
+    public final double getJitter() {
+        return jitter;
+    }
+    
+    /**
+     * Sets the share of the period, by which every poll is randomly moved, so
+     * polls of many Clients do not hit the Server at the same time
+     *
+     * @param jitter Jitter between 0 and 1
+     *
+     * @return A reference to this Client
+     */
+    public final Client setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter has to be between 0 and 1");
+        }
+        this.jitter = jitter;
+        return this;
+    }
+    
+    /**
+     * Returns the maximum factor, by which the period grows while no events
+     * arrive
+     *
+     * @return Maximum backoff factor (1 disables the backoff)
+     */
+    public final int getMaxBackoff() {
+        return maxBackoff;
+    }
+    
+    /**
+     * Sets the maximum factor, by which the period grows while no events
+     * arrive
+     * <br>
+     * The period of an Applet doubles with every poll without events until it
+     * reaches "period * maxBackoff" and drops back to the period as soon as an
+     * event arrives. If the Server sends {@link PollHint}s, the period does
+     * not grow beyond the suggested delay, so Applets, which fired recently,
+     * are still polled tightly.
+     *
+     * @param maxBackoff Maximum backoff factor (1 disables the backoff)
+     *
+     * @return A reference to this Client
+     */
+    public final Client setMaxBackoff(int maxBackoff) {
+        if (maxBackoff < 1) {
+            throw new IllegalArgumentException("maxBackoff has to be positive");
+        }
+        this.maxBackoff = maxBackoff;
+        return this;
+    }
+    
+    /**
+     * Returns the time between polls of an Applet, while it has pending
+     * events
+     *
+     * @return Minimum period in milliseconds
+     */
+    public final int getMinPeriod() {
+        return minPeriod;
+    }
+    
+    /**
+     * Sets the time between polls of an Applet, while it has pending events
+     * (the Server reported pending events or a full batch was returned)
+     *
+     * @param minPeriod Minimum period in milliseconds
+     *
+     * @return A reference to this Client
+     */
+    public final Client setMinPeriod(int minPeriod) {
+        if (minPeriod <= 0) {
+            throw new IllegalArgumentException("minPeriod has to be positive");
+        }
+        this.minPeriod = minPeriod;
+        return this;
+    }
+    
+    /**
+     * Returns if events are requested as {@link EventFrame}s
+     *
+     * @return <tt>true</tt> if the binary format is used
+     */
+    public final boolean isBinary() {
+        return binary;
+    }
+    
+    /**
+     * Sets if events are requested as {@link EventFrame}s instead of text
+     * <br>
+     * Frames are smaller and faster to decode, especially for many small
+     * events, and keep the sequence and timestamp of every event. Servers
+     * without support answer with text, which is decoded as before. Streams
+     * always use text.
+     *
+     * @param binary <tt>true</tt> if the binary format is used
+     *
+     * @return A reference to this Client
+     */
+    public final Client setBinary(boolean binary) {
+        this.binary = binary;
+        return this;
+    }
+    
+    /**
+     * Returns the executor, which runs the handlers
+     *
+     * @return Handler executor
+     */
+    public final Executor getHandlerExecutor() {
+        return dispatcher.getExecutor();
+    }
+    
+    /**
+     * Sets the executor, which runs the handlers, so a slow handler does not
+     * delay the polls
+     * <br>
+     * The events of one Applet are always handled one after the other, in
+     * the order they arrived, while different Applets are handled in
+     * parallel (e.g. on virtual Threads with
+     * "Executors.newVirtualThreadPerTaskExecutor()"). The default executor
+     * has {@link #DEFAULT_HANDLER_THREADS} Threads. A pool created by this
+     * Client is shut down when it gets replaced, a given executor is never
+     * shut down by this Client.
+     *
+     * @param handlerExecutor Handler executor
+     *
+     * @return A reference to this Client
+     */
+    public final Client setHandlerExecutor(Executor handlerExecutor) {
+        setHandlerExecutor(handlerExecutor, null);
+        return this;
+    }
+    
+    private final synchronized void setHandlerExecutor(Executor handlerExecutor, ExecutorService handlerPool) {
+        dispatcher.setExecutor(handlerExecutor);
+        final ExecutorService previous = this.handlerPool;
+        this.handlerPool = handlerPool;
+        if (previous != null && previous != handlerPool) {
+            previous.shutdown(); //Already queued lanes still run
+        }
+    }
+    
+    /**
+     * Runs the handlers on a new pool of Threads (see
+     * {@link #setHandlerExecutor(Executor)})
+     *
+     * @param threads Number of Threads
+     *
+     * @return A reference to this Client
+     */
+    public final Client setHandlerThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads has to be positive");
+        }
+        final ExecutorService temp = createHandlerExecutor(threads);
+        setHandlerExecutor(temp, temp);
+        return this;
+    }
+    
+    private static final ExecutorService createHandlerExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, (runnable) -> {
+            final Thread thread = new Thread(runnable, "IFTTJ-Client-Handler-" + HANDLER_THREAD_NUMBER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Returns the maximum number of events of one Applet, which are handed to
+     * the handlers at once
+     *
+     * @return Maximum batch size
+     */
+    public final int getMaxHandlerBatchSize() {
+        return dispatcher.getMaxBatchSize();
+    }
+    
+    /**
+     * Sets the maximum number of events of one Applet, which are handed to
+     * the handlers at once
+     * <br>
+     * Events, which queued up while the handlers of an Applet were busy, are
+     * handed to the batch handler as one List (the other handlers are still
+     * called once per event).
+     *
+     * @param maxHandlerBatchSize Maximum batch size (1 handles every event
+     * on its own)
+     *
+     * @return A reference to this Client
+     */
+    public final Client setMaxHandlerBatchSize(int maxHandlerBatchSize) {
+        dispatcher.setMaxBatchSize(maxHandlerBatchSize);
+        return this;
+    }
+    
+    /**
+     * Returns the Dispatcher, which queues the received events per Applet
+     * until their handlers run
+     *
+     * @return Dispatcher
+     */
+    public final Dispatcher getDispatcher() {
+        return dispatcher;
+    }
+    
+    /**
+     * Returns the pool of kept-alive connections used to grab events
+     *
+     * @return ConnectionPool
+     */
+    public final ConnectionPool getConnectionPool() {
+        return pool;
+    }
+    
     private final void update() {
         try {
             url = new URL(String.format("http://%s:%d/%s", ip, port, url_suffix));
+            if (pool != null) {
+                pool.close();
+            }
+            pool = new ConnectionPool(ip, port, url_suffix);
+            topology = null;
+            pools.values().forEach(ConnectionPool::close);
+            pools.clear();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+    
+    /**
+     * Returns the topology of the cluster
+     *
+     * @return HashRing of the nodes or null, if the Server is not a node of
+     * a cluster or the topology is not known yet
+     */
+    public final HashRing getTopology() {
+        return topology;
+    }
+    
+    /**
+     * Asks the Server for the topology of its cluster
+     *
+     * @return <tt>true</tt> if the Server is a node of a cluster
+     */
+    public final boolean discoverTopology() {
+        try {
+            setTopology(pool.post(IFTTJ.IFTTJ_GET_TOPOLOGY, 0));
+            return topology != null;
         } catch (Exception ex) {
+            requestErrors.increment();
             ex.printStackTrace();
+            return false;
+        }
+    }
+    
+    private final void setTopology(String nodes) {
+        final HashRing temp = HashRing.parse(nodes);
+        if (!Objects.equals(temp, topology)) {
+            topology = temp;
+        }
+    }
+    
+    /**
+     * Asks the other known nodes for the topology, after a node could not be
+     * reached
+     */
+    private final void refreshTopology(String failed) {
+        final HashRing temp = topology;
+        if (temp == null) {
+            return;
+        }
+        for (String node : temp.getNodes()) {
+            if (node.equals(failed)) {
+                continue;
+            }
+            try {
+                setTopology(getPool(node).post(IFTTJ.IFTTJ_GET_TOPOLOGY, READ_TIMEOUT_MARGIN));
+                return;
+            } catch (Exception ex) {
+                //Tries the next node
+            }
+        }
+    }
+    
+    /**
+     * Groups Applets by the node owning them
+     *
+     * @return Applet IDs by node (the null key stands for the configured
+     * Server)
+     */
+    private final Map<String, List<String>> groupByOwner(Iterable<String> ids) {
+        final HashRing temp = topology;
+        final Map<String, List<String>> owners = new HashMap<>();
+        for (String id : ids) {
+            owners.computeIfAbsent(temp == null ? null : temp.getOwner(id), (key) -> new ArrayList<>()).add(id);
         }
+        return owners;
+    }
+    
+    private final ConnectionPool getPool(String node) {
+        if (node == null) {
+            return pool;
+        }
+        return pools.computeIfAbsent(node, (key) -> new ConnectionPool(key.substring(0, key.lastIndexOf(':')), Integer.parseInt(key.substring(key.lastIndexOf(':') + 1)), url_suffix));
+    }
+    
+    private final URL getURL(String node) throws IOException {
+        return node == null ? url : new URL(String.format("http://%s/%s", node, url_suffix));
     }
     
     /**
@@ -171,6 +593,30 @@ public class Client {
         return handler;
     }
     
+    /**
+     * Sets the handler, which handles every event coming from IFTTT in
+     * batches of events of one Applet (see
+     * {@link #setMaxHandlerBatchSize(int)})
+     *
+     * @param batchHandler Batch handler
+     *
+     * @return A reference to this Client
+     */
+    public final Client setBatchHandler(Consumer<List<Event>> batchHandler) {
+        this.batchHandler = batchHandler;
+        return this;
+    }
+    
+    /**
+     * Returns the handler, which handles every event coming from IFTTT in
+     * batches of events of one Applet
+     *
+     * @return Batch handler
+     */
+    public final Consumer<List<Event>> getBatchHandler() {
+        return batchHandler;
+    }
+    
     /**
      * Returns a handler, which handles every event coming from a specific
      * Applet
@@ -208,6 +654,16 @@ public class Client {
         return handlers.remove(id);
     }
     
+    /**
+     * Returns the Metrics of this Client (e.g. to register them via
+     * {@link Metrics#registerMBean(String)})
+     *
+     * @return Metrics
+     */
+    public final Metrics getMetrics() {
+        return metrics;
+    }
+    
     /**
      * Grabs the newest event
      *
@@ -216,29 +672,135 @@ public class Client {
      * @return null Reference or the text of the event
      */
     public final String grabEvent(String id) {
+        final String request = IFTTJ.IFTTJ_GET_EVENTS_PREFIX + id + " " + clientID;
+        final HashRing temp = topology;
         try {
-            final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            final String request = IFTTJ.IFTTJ_GET_EVENTS_PREFIX + id;
-            connection.setDoOutput(true);
-            final DataOutputStream dos = new DataOutputStream(connection.getOutputStream());
-            dos.writeBytes(request);
-            dos.flush();
-            dos.close();
-            final BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            String line = null;
-            final StringBuffer response = new StringBuffer();
-            while ((line = br.readLine()) != null) {
-                response.append(line);
+            try {
+                return grabEvent(getPool(temp == null ? null : temp.getOwner(id)), request);
+            } catch (ConnectionPool.HttpException ex) {
+                if (ex.getResponseCode() != 421) {
+                    throw ex;
+                }
+                setTopology(ex.getBody());
+                final HashRing moved = topology;
+                return grabEvent(getPool(moved == null ? null : moved.getOwner(id)), request);
             }
-            br.close();
-            return convertNullToNull(response.toString());
         } catch (Exception ex) {
+            if (temp != null && !(ex instanceof ConnectionPool.HttpException)) {
+                refreshTopology(temp.getOwner(id));
+            }
+            requestErrors.increment();
             ex.printStackTrace();
             return null;
         }
     }
     
+    private final String grabEvent(ConnectionPool pool, String request) throws IOException {
+        if (!binary) {
+            return convertNullToNull(pool.post(request, 0));
+        }
+        final List<Event> events = pool.poll(request, 0);
+        return events.isEmpty() ? null : events.get(0).getData();
+    }
+    
+    /**
+     * Grabs every pending event of some Applets with one request (per node
+     * owning them)
+     * <br>
+     * At most {@link #getBatchSize()} events are returned per node, so if
+     * that many are returned, there may be more.
+     *
+     * @param ids Applet IDs
+     *
+     * @return Events (empty if there are none or an error occurred)
+     */
+    public final List<Event> grabEvents(String... ids) {
+        final List<Event> events = new ArrayList<>();
+        if (ids != null && ids.length > 0) {
+            grabEvents(Arrays.asList(ids), true, events, null);
+        }
+        return events;
+    }
+    
+    /**
+     * Grabs the pending events of some Applets and collects the
+     * {@link PollHint}s of the Server (if "hints" is not null)
+     */
+    private final void grabEvents(List<String> ids, boolean retry, List<Event> events, Map<String, PollHint> hints) {
+        for (Map.Entry<String, List<String>> owner : groupByOwner(ids).entrySet()) {
+            try {
+                final String request = IFTTJ.IFTTJ_GET_BATCH_PREFIX + String.join(",", owner.getValue()) + " " + batchSize + " " + clientID;
+                final List<PollHint> temp = hints == null ? null : new ArrayList<>(owner.getValue().size());
+                events.addAll(getPool(owner.getKey()).poll(request, 0, binary, temp));
+                if (temp != null && temp.size() == owner.getValue().size()) {
+                    for (int i = 0; i < temp.size(); i++) {
+                        hints.put(owner.getValue().get(i), temp.get(i));
+                    }
+                }
+            } catch (ConnectionPool.HttpException ex) {
+                if (ex.getResponseCode() == 421 && retry) {
+                    setTopology(ex.getBody());
+                    grabEvents(owner.getValue(), false, events, hints);
+                } else {
+                    requestErrors.increment();
+                    ex.printStackTrace();
+                }
+            } catch (Exception ex) {
+                requestErrors.increment();
+                ex.printStackTrace();
+                if (owner.getKey() != null) {
+                    refreshTopology(owner.getKey());
+                }
+            }
+        }
+    }
+    
+    private final HttpURLConnection open(URL url, int readTimeout) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setReadTimeout(readTimeout);
+        return connection;
+    }
+    
+    private static final String send(HttpURLConnection connection, String request) throws IOException {
+        write(connection, request);
+        return read(connection.getInputStream());
+    }
+    
+    private static final void write(HttpURLConnection connection, String request) throws IOException {
+        final OutputStream os = connection.getOutputStream();
+        os.write(request.getBytes(StandardCharsets.UTF_8));
+        os.close();
+        checkResponseCode(connection);
+    }
+    
+    /**
+     * Throws the response code and body of an error response
+     */
+    private static final void checkResponseCode(HttpURLConnection connection) throws IOException {
+        final int responseCode = connection.getResponseCode();
+        if (responseCode < 200 || responseCode >= 300) {
+            final InputStream is = connection.getErrorStream();
+            throw new ConnectionPool.HttpException(responseCode, is == null ? "" : read(is));
+        }
+    }
+    
+    private static final String read(InputStream is) throws IOException {
+        return new String(readBytes(is), StandardCharsets.UTF_8);
+    }
+    
+    private static final byte[] readBytes(InputStream is) throws IOException {
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            response.write(buffer, 0, read);
+        }
+        is.close();
+        return response.toByteArray();
+    }
+    
     /**
      * Starts some listeners for some specific Applets
      *
@@ -263,6 +825,12 @@ public class Client {
     
     /**
      * Starts a listener for a specific Applet
+     * <br>
+     * All Applets started with the same period are polled together with one
+     * request per tick. Every Applet adapts its own period between
+     * {@link #getMinPeriod()} and "period * {@link #getMaxBackoff()}" to the
+     * events it receives and the {@link PollHint}s of the Server, so only
+     * the Applets due at a tick are requested.
      *
      * @param id Applet ID
      * @param period Time period to check for updates in milliseconds
@@ -270,34 +838,105 @@ public class Client {
      * @return <tt>true</tt> if the listener was started successfully
      */
     public final boolean start(final String id, int period) {
-        if (timers.get(id) != null) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period has to be positive");
+        }
+        synchronized (groups) {
+            if (polls.containsKey(id) || listeners.containsKey(id)) {
+                return false;
+            }
+            PollGroup group = groups.get(period);
+            if (group == null) {
+                group = new PollGroup(period);
+                groups.put(period, group);
+                group.add(id);
+                group.schedule((long) (ThreadLocalRandom.current().nextDouble() * jitter * period));
+            } else {
+                group.add(id);
+            }
+            polls.put(id, group);
+        }
+        return true;
+    }
+    
+    /**
+     * Starts one long polling listener for some specific Applets
+     * <br>
+     * The Server holds every request until an event arrives or the timeout
+     * expires, so events are received immediately without polling
+     * periodically.
+     *
+     * @param timeout Maximum time in milliseconds the Server holds a request
+     * @param ids Applet IDs
+     *
+     * @return <tt>true</tt> if the listener was started successfully
+     */
+    public final boolean startLongPolling(long timeout, final String... ids) {
+        return start(new LongPollListener(timeout), ids);
+    }
+    
+    /**
+     * Starts one streaming listener for some specific Applets
+     * <br>
+     * The Server keeps one response open and writes every event to it as soon
+     * as it arrives, so only one connection is needed for all Applets.
+     *
+     * @param ids Applet IDs
+     *
+     * @return <tt>true</tt> if the listener was started successfully
+     */
+    public final boolean startStreaming(final String... ids) {
+        return start(new StreamListener(), ids);
+    }
+    
+    private final boolean start(Listener listener, String... ids) {
+        final String[] temp = (ids == null || ids.length == 0) ? handlers.keySet().toArray(new String[0]) : ids;
+        for (String id : temp) {
+            if (!polls.containsKey(id) && listeners.putIfAbsent(id, listener) == null) {
+                listener.ids.add(id);
+            }
+        }
+        if (listener.ids.isEmpty()) {
             return false;
         }
-        final Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public final void run() {
-                try {
-                    String event = null;
-                    while ((event = grabEvent(id)) != null) {
-                        if (event != null) {
-                            if (handler != null) {
-                                handler.accept(id, event);
-                            }
-                            final BiConsumer<String, String> consumer = handlers.get(id);
-                            if (consumer != null) {
-                                consumer.accept(id, event);
-                            }
-                        }
-                        Thread.sleep(SLEEP_TIME_AFTER_EVENT);
-                    }
-                } catch (Exception ex) {
-                    ex.printStackTrace();
+        relocate(listener);
+        if (!listener.ids.isEmpty()) {
+            listener.thread.start();
+        }
+        return true;
+    }
+    
+    /**
+     * Moves the Applets of a listener, which are owned by another node, to
+     * new listeners for these nodes
+     *
+     * @return <tt>true</tt> if the listener changed
+     */
+    private final boolean relocate(Listener listener) {
+        final Map<String, List<String>> owners = groupByOwner(listener.ids);
+        if (owners.isEmpty()) {
+            return false;
+        }
+        final String node = owners.containsKey(listener.node) ? listener.node : owners.keySet().iterator().next();
+        boolean changed = !Objects.equals(node, listener.node);
+        listener.node = node;
+        for (Map.Entry<String, List<String>> owner : owners.entrySet()) {
+            if (Objects.equals(owner.getKey(), node)) {
+                continue;
+            }
+            final Listener moved = listener.copy();
+            moved.node = owner.getKey();
+            for (String id : owner.getValue()) {
+                if (listener.ids.remove(id) && listeners.replace(id, listener, moved)) {
+                    moved.ids.add(id);
                 }
             }
-        }, 0, period);
-        timers.put(id, timer);
-        return true;
+            if (!moved.ids.isEmpty()) {
+                moved.thread.start();
+                changed = true;
+            }
+        }
+        return changed;
     }
     
     /**
@@ -308,12 +947,22 @@ public class Client {
      * @return <tt>true</tt> if the listener was stopped successfully
      */
     public final boolean stop(String id) {
-        final Timer timer = timers.get(id);
-        if (timer == null) {
-            return false;
+        final Listener listener = listeners.remove(id);
+        if (listener != null) {
+            listener.remove(id);
+            return true;
+        }
+        synchronized (groups) {
+            final PollGroup group = polls.remove(id);
+            if (group == null) {
+                return false;
+            }
+            group.applets.remove(id);
+            if (group.applets.isEmpty()) {
+                groups.remove(group.period);
+                group.cancel();
+            }
         }
-        timer.cancel();
-        timers.remove(id);
         return true;
     }
     
@@ -323,13 +972,86 @@ public class Client {
      * @return <tt>true</tt> if some listeners were stopped successfully
      */
     public final boolean stopAll() {
-        if (timers.isEmpty()) {
+        if (polls.isEmpty() && listeners.isEmpty()) {
             return false;
         }
-        timers.keySet().forEach(this::stop);
+        polls.keySet().forEach(this::stop);
+        listeners.keySet().forEach(this::stop);
         return true;
     }
     
+    /**
+     * Stops all listeners, shuts down the Threads of this Client and closes
+     * all connections
+     * <br>
+     * Events, which were already received, are still handed to the handlers.
+     */
+    public final void close() {
+        stopAll();
+        scheduler.shutdown();
+        synchronized (this) {
+            if (handlerPool != null) {
+                handlerPool.shutdown();
+            }
+        }
+        if (pool != null) {
+            pool.close();
+        }
+        pools.values().forEach(ConnectionPool::close);
+        pools.clear();
+    }
+    
+    /**
+     * Dispatches an event of a listener, which blocks its own Thread while
+     * the lane of the Applet is full
+     */
+    private final void dispatch(Event event) {
+        received.increment();
+        dispatcher.dispatchAndWait(event);
+    }
+    
+    /**
+     * Polls an Applet again, after its full lane of the Dispatcher drained
+     */
+    private final void resume(String id) {
+        final PollGroup group = polls.get(id);
+        if (group != null) {
+            group.wake();
+        }
+    }
+    
+    /**
+     * Calls the handlers with a batch of events of one Applet (on a Thread of
+     * the handler executor)
+     */
+    private final void callHandlers(List<Event> events) {
+        final Consumer<List<Event>> temp = batchHandler;
+        if (temp != null) {
+            try {
+                temp.accept(events);
+            } catch (Exception ex) {
+                handlerErrors.increment();
+                ex.printStackTrace();
+            }
+        }
+        for (Event event : events) {
+            final long start = System.nanoTime();
+            try {
+                if (handler != null) {
+                    handler.accept(event.getID(), event.getData());
+                }
+                final BiConsumer<String, String> consumer = handlers.get(event.getID());
+                if (consumer != null) {
+                    consumer.accept(event.getID(), event.getData());
+                }
+            } catch (Exception ex) {
+                handlerErrors.increment();
+                ex.printStackTrace();
+            }
+            handlerTime.recordSince(start);
+        }
+    }
+    
     /**
      * Converts an empty or 'null' containing String to a null Reference
      *
@@ -341,4 +1063,317 @@ public class Client {
         return temp == null ? null : ((temp.equals("" + null) || temp.isEmpty()) ? null : temp);
     }
     
+    /**
+     * Polls the due Applets sharing one period with one request per tick
+     * <br>
+     * The group ticks at least once per period (a tick without due Applets
+     * sends nothing), so newly added Applets are polled within one period.
+     */
+    private final class PollGroup implements Runnable {
+        
+        private final int period;
+        private final Map<String, AppletPoll> applets = new ConcurrentHashMap<>();
+        private volatile ScheduledFuture<?> future = null;
+        private volatile boolean cancelled = false;
+        
+        private PollGroup(int period) {
+            this.period = period;
+        }
+        
+        private final void add(String id) {
+            applets.put(id, new AppletPoll(period, System.currentTimeMillis()));
+        }
+        
+        private final void schedule(long delay) {
+            if (!cancelled) {
+                future = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        /**
+         * Ticks now instead of at the scheduled time (unless it is ticking
+         * already)
+         */
+        private final void wake() {
+            final ScheduledFuture<?> temp = future;
+            if (temp != null && temp.cancel(false)) {
+                try {
+                    schedule(0);
+                } catch (RejectedExecutionException ex) {
+                    //The Client was closed
+                }
+            }
+        }
+        
+        private final void cancel() {
+            cancelled = true;
+            final ScheduledFuture<?> temp = future;
+            if (temp != null) {
+                temp.cancel(false);
+            }
+        }
+        
+        @Override
+        public final void run() {
+            if (cancelled || applets.isEmpty()) {
+                return;
+            }
+            long next = period;
+            try {
+                next = poll();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            } finally { //Whatever went wrong, the next poll has to be scheduled
+                try {
+                    schedule(Math.max(1, next));
+                } catch (RejectedExecutionException ex) {
+                    //The Client was closed
+                }
+            }
+        }
+        
+        /**
+         * Polls the due Applets
+         * <br>
+         * Applets, whose lane of the Dispatcher is full, are skipped (the
+         * shared scheduler Thread must not wait for their handlers), until
+         * the lane drained and woke this group.
+         *
+         * @return Delay until the next poll in milliseconds
+         */
+        private final long poll() {
+            final long now = System.currentTimeMillis();
+            final long window = Math.max(1, (long) (jitter * period)); //Applets due soon are polled with this tick
+            final List<String> due = new ArrayList<>();
+            applets.forEach((id, poll) -> {
+                if (poll.due <= now + window && !dispatcher.isFull(id)) {
+                    due.add(id);
+                }
+            });
+            if (!due.isEmpty()) {
+                final List<Event> events = new ArrayList<>();
+                final Map<String, PollHint> hints = new HashMap<>();
+                try {
+                    grabEvents(due, true, events, hints);
+                    Client.this.received.add(events.size());
+                    events.forEach(dispatcher::dispatch);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+                final Map<String, Integer> received = new HashMap<>();
+                events.forEach((event) -> received.merge(event.getID(), 1, Integer::sum));
+                final boolean full = events.size() >= batchSize;
+                final long polled = System.currentTimeMillis();
+                for (String id : due) {
+                    final AppletPoll poll = applets.get(id);
+                    if (poll != null) {
+                        poll.update(received.getOrDefault(id, 0), full, hints.get(id), polled);
+                    }
+                }
+            }
+            long next = period;
+            for (Map.Entry<String, AppletPoll> applet : applets.entrySet()) {
+                if (!dispatcher.isFull(applet.getKey())) {
+                    next = Math.min(next, applet.getValue().due - now);
+                }
+            }
+            return next;
+        }
+        
+    }
+    
+    /**
+     * Adaptive period of one polled Applet
+     */
+    private final class AppletPoll {
+        
+        private final int period;
+        private volatile long interval;
+        private volatile long due;
+        
+        private AppletPoll(int period, long due) {
+            this.period = period;
+            this.interval = period;
+            this.due = due;
+        }
+        
+        /**
+         * Chooses the next period after a poll
+         *
+         * @param received Number of received events of this Applet
+         * @param full <tt>true</tt> if the whole batch was used (without
+         * hints there may be more events)
+         * @param hint Hint of the Server (may be null)
+         * @param now Current time in milliseconds
+         */
+        private final void update(int received, boolean full, PollHint hint, long now) {
+            if (hint != null ? hint.getPending() > 0 : (full && received > 0)) {
+                interval = minPeriod; //Drains the backlog
+            } else if (received > 0) {
+                interval = period;
+            } else {
+                long backoff = Math.min(Math.max(interval, period) * 2, (long) period * maxBackoff);
+                if (hint != null) {
+                    backoff = Math.min(backoff, Math.max(period, hint.getDelay()));
+                }
+                interval = backoff;
+            }
+            final double offset = interval <= minPeriod ? 0 : (ThreadLocalRandom.current().nextDouble() * 2 - 1) * jitter * period;
+            due = now + Math.max(1, (long) (interval + offset));
+        }
+        
+    }
+    
+    private abstract class Listener implements Runnable {
+        
+        protected final Set<String> ids = ConcurrentHashMap.newKeySet();
+        private final Thread thread;
+        protected volatile HttpURLConnection connection = null;
+        protected volatile String node = null;
+        private volatile boolean reconnect = false;
+        
+        private Listener(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+        
+        private final void remove(String id) {
+            ids.remove(id);
+            final HttpURLConnection temp = connection;
+            if (temp != null) {
+                reconnect = true;
+                temp.disconnect();
+            }
+        }
+        
+        protected abstract void listen() throws Exception;
+        
+        /**
+         * Creates a new listener of the same kind without any Applets
+         */
+        protected abstract Listener copy();
+        
+        @Override
+        public final void run() {
+            while (!ids.isEmpty()) {
+                try {
+                    listen();
+                } catch (Exception ex) {
+                    if (ids.isEmpty()) {
+                        return;
+                    }
+                    if (reconnect) {
+                        reconnect = false;
+                        continue;
+                    }
+                    if (ex instanceof ConnectionPool.HttpException && ((ConnectionPool.HttpException) ex).getResponseCode() == 421) {
+                        setTopology(((ConnectionPool.HttpException) ex).getBody());
+                        if (relocate(this)) {
+                            continue;
+                        }
+                    } else if (node != null && !(ex instanceof ConnectionPool.HttpException)) {
+                        refreshTopology(node);
+                        relocate(this);
+                    }
+                    requestErrors.increment();
+                    ex.printStackTrace();
+                    try {
+                        Thread.sleep(SLEEP_TIME_AFTER_ERROR);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+        
+    }
+    
+    private final class LongPollListener extends Listener {
+        
+        private final long timeout;
+        private final EventFrame frame = new EventFrame();
+        
+        private LongPollListener(long timeout) {
+            super("IFTTJ-Client-LongPolling");
+            this.timeout = timeout;
+        }
+        
+        @Override
+        protected final void listen() throws Exception {
+            connection = open(getURL(node), (int) timeout + READ_TIMEOUT_MARGIN);
+            final String request = IFTTJ.IFTTJ_WAIT_EVENTS_PREFIX + String.join(",", ids) + " " + batchSize + " " + timeout + " " + clientID;
+            if (!binary) {
+                EventBatch.decode(send(connection, request)).forEach(Client.this::dispatch);
+                return;
+            }
+            connection.setRequestProperty("Accept", EventFrame.CONTENT_TYPE);
+            write(connection, request);
+            final String contentType = connection.getContentType();
+            final byte[] response = readBytes(connection.getInputStream());
+            if (contentType == null || !contentType.contains(EventFrame.CONTENT_TYPE)) {
+                EventBatch.decode(new String(response, StandardCharsets.UTF_8)).forEach(Client.this::dispatch);
+                return;
+            }
+            try {
+                frame.decode(response, 0, response.length).forEach(Client.this::dispatch);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Malformed frame", ex);
+            }
+        }
+        
+        @Override
+        protected final Listener copy() {
+            return new LongPollListener(timeout);
+        }
+        
+    }
+    
+    private final class StreamListener extends Listener {
+        
+        private StreamListener() {
+            super("IFTTJ-Client-Streaming");
+        }
+        
+        @Override
+        protected final void listen() throws Exception {
+            final URL streamURL = new URL(String.format("%s%s?ids=%s&client=%s", getURL(node), EventStreams.CONTEXT_SUFFIX, URLEncoder.encode(String.join(",", ids), "UTF-8"), URLEncoder.encode(clientID, "UTF-8")));
+            connection = (HttpURLConnection) streamURL.openConnection();
+            connection.setReadTimeout((int) EventStreams.PING_PERIOD * 2 + READ_TIMEOUT_MARGIN);
+            checkResponseCode(connection);
+            final BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+            String line = null;
+            String id = null;
+            long sequence = EventBuffer.NO_SEQUENCE;
+            StringBuilder data = null;
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty()) {
+                    if (id != null) {
+                        dispatch(new Event(id, sequence, System.currentTimeMillis(), data == null ? null : data.toString()));
+                    }
+                    id = null;
+                    sequence = EventBuffer.NO_SEQUENCE;
+                    data = null;
+                } else if (line.startsWith("event: ")) {
+                    id = line.substring("event: ".length());
+                } else if (line.startsWith("id: ")) {
+                    sequence = Long.parseLong(line.substring("id: ".length()));
+                } else if (line.startsWith("data: ")) {
+                    if (data == null) {
+                        data = new StringBuilder();
+                    } else {
+                        data.append('\n');
+                    }
+                    data.append(line, "data: ".length(), line.length());
+                }
+            }
+            br.close();
+        }
+        
+        @Override
+        protected final Listener copy() {
+            return new StreamListener();
+        }
+        
+    }
+    
 }
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Shards the Applets over several IFTTJ Servers
+ * <br>
+ * Every Server of a cluster knows every node ("host:port") and maps every
+ * Applet ID to the node owning it via a {@link HashRing}, so only the owner
+ * keeps the events and Subscribers of an Applet. Events of other Applets are
+ * forwarded to their owner (or redirected there), polls of other Applets
+ * are answered with 421 (Misdirected Request) and the topology, so the
+ * {@link Client} polls the owner directly from then on.
+ * <br>
+ * Every other node is checked every {@link #DEFAULT_CHECK_INTERVAL}
+ * milliseconds. A node, which can not be reached, is removed from the ring
+ * until it is reachable again, so its Applets are taken over by the next
+ * node meanwhile. Events are not replicated, so the events, which were
+ * retained by a node going down, are lost.
+ * <br>
+ * The nodes share a secret, which they send with every request in the
+ * {@link Server#PEER_HEADER}. Only requests carrying it are trusted as
+ * forwarded and exempt from the source limit of the {@link Admission}, the
+ * source address alone could be any Client on the same host.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class Cluster {
+    
+    public static final long DEFAULT_CHECK_INTERVAL = 1000;
+    public static final int CHECK_TIMEOUT = 1000;
+    public static final int FORWARD_TIMEOUT = 5000;
+    public static final int FORWARD_THREADS = 4;
+    public static final int MAX_QUEUED_FORWARDS = 1024;
+    
+    private final String self;
+    private final String headers;
+    private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+    private volatile HashRing ring;
+    private volatile Routing routing = Routing.FORWARD;
+    private final LongAdder failovers = new LongAdder();
+    private final ThreadPoolExecutor forwarder;
+    private Thread checker = null;
+    
+    /**
+     * Constructs a new Cluster
+     *
+     * @param self Node of this Server ("host:port" as the other nodes know
+     * it)
+     * @param nodes Every node (including this one)
+     * @param secret Secret shared by every node (see
+     * {@link Server#setPeerSecret(String)})
+     */
+    public Cluster(String self, Collection<String> nodes, String secret) {
+        HashRing.parseNodes(self);
+        if (secret == null || secret.isEmpty() || secret.indexOf('\r') >= 0 || secret.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("secret must not be empty or contain line breaks");
+        }
+        this.self = self;
+        this.headers = Server.PEER_HEADER + ": " + secret + "\r\n";
+        final AtomicInteger threadNumber = new AtomicInteger(0);
+        forwarder = new ThreadPoolExecutor(FORWARD_THREADS, FORWARD_THREADS, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_FORWARDS), (runnable) -> {
+            final Thread thread = new Thread(runnable, "IFTTJ-Cluster-Forwarder-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        setNodes(nodes);
+    }
+    
+    /**
+     * Returns the node of this Server
+     *
+     * @return Node ("host:port")
+     */
+    public final String getSelf() {
+        return self;
+    }
+    
+    /**
+     * Returns every configured node
+     *
+     * @return Sorted nodes (including the ones, which are down)
+     */
+    public final List<String> getNodes() {
+        final List<String> temp = new ArrayList<>(nodes.keySet());
+        Collections.sort(temp);
+        return temp;
+    }
+    
+    /**
+     * Sets every node of the cluster
+     * <br>
+     * This node is always a part of the cluster. Applets, which are now owned
+     * by another node, keep their retained events here, but new events and
+     * polls go to the new owner.
+     *
+     * @param nodes Every node ("host:port")
+     *
+     * @return A reference to this Cluster
+     */
+    public final synchronized Cluster setNodes(Collection<String> nodes) {
+        final List<String> temp = new ArrayList<>(nodes);
+        if (!temp.contains(self)) {
+            temp.add(self);
+        }
+        this.nodes.keySet().removeIf((node) -> {
+            if (temp.contains(node)) {
+                return false;
+            }
+            this.nodes.get(node).close();
+            return true;
+        });
+        for (String node : temp) {
+            this.nodes.computeIfAbsent(node, (key) -> new Node(key, key.equals(self) ? null : headers));
+        }
+        update();
+        return this;
+    }
+    
+    /**
+     * Returns if a node is reachable
+     *
+     * @param node Node ("host:port")
+     *
+     * @return <tt>true</tt> if the node is a part of the ring
+     */
+    public final boolean isUp(String node) {
+        final Node temp = nodes.get(node);
+        return temp != null && temp.up;
+    }
+    
+    /**
+     * Returns the ring of every reachable node
+     *
+     * @return HashRing
+     */
+    public final HashRing getRing() {
+        return ring;
+    }
+    
+    /**
+     * Returns the reachable nodes in the format of
+     * {@link Request.Command#GET_TOPOLOGY}
+     *
+     * @return Nodes separated by commas
+     */
+    public final String getTopology() {
+        return ring.toString();
+    }
+    
+    /**
+     * Returns the node owning an Applet
+     *
+     * @param id Applet ID
+     *
+     * @return Node ("host:port")
+     */
+    public final String getOwner(String id) {
+        return ring.getOwner(id);
+    }
+    
+    /**
+     * Returns if an Applet is owned by this Server
+     *
+     * @param id Applet ID
+     *
+     * @return <tt>true</tt> if this Server owns the Applet
+     */
+    public final boolean isLocal(String id) {
+        return ring.getOwner(id).equals(self);
+    }
+    
+    /**
+     * Returns the URL of the requests context of a node
+     *
+     * @param node Node ("host:port")
+     *
+     * @return URL
+     */
+    public final String getURL(String node) {
+        return "http://" + node + "/" + IFTTJ.URL_SUFFIX;
+    }
+    
+    /**
+     * Returns how events of other Applets are routed
+     *
+     * @return Routing
+     */
+    public final Routing getRouting() {
+        return routing;
+    }
+    
+    /**
+     * Sets how events of other Applets are routed
+     *
+     * @param routing Routing
+     *
+     * @return A reference to this Cluster
+     */
+    public final Cluster setRouting(Routing routing) {
+        this.routing = routing;
+        return this;
+    }
+    
+    /**
+     * Returns the number of forwards, which failed, because the owner could
+     * not be reached, so the next node was tried
+     *
+     * @return Number of failovers
+     */
+    public final long getFailoverCount() {
+        return failovers.sum();
+    }
+    
+    /**
+     * Returns the number of reachable nodes
+     *
+     * @return Number of reachable nodes (including this one)
+     */
+    public final int getUpCount() {
+        return ring.getNodes().size();
+    }
+    
+    /**
+     * Forwards a request to the owner of an Applet without blocking the
+     * calling Thread
+     * <br>
+     * If the owner can not be reached, it is removed from the ring and the
+     * next owner is tried. If this Server became the owner meanwhile, the
+     * request is handled locally.
+     *
+     * @param id Applet ID
+     * @param request Request body (starting with
+     * {@link IFTTJ#IFTTJ_FORWARDED_PREFIX}, so it is not forwarded again)
+     * @param local Handles the request locally
+     *
+     * @return DeferredResponse, which is completed with the response of the
+     * owner
+     */
+    public final DeferredResponse forward(String id, String request, Supplier<Map.Entry<Integer, String>> local) {
+        final DeferredResponse response = new DeferredResponse();
+        try {
+            forwarder.execute(() -> {
+                try {
+                    for (int i = 0; i < nodes.size(); i++) {
+                        final String owner = getOwner(id);
+                        final Node node = nodes.get(owner);
+                        if (node == null || node.pool == null) {
+                            final Map.Entry<Integer, String> temp = local.get();
+                            response.complete(temp.getKey(), temp.getValue());
+                            return;
+                        }
+                        try {
+                            response.complete(200, node.pool.post(request, FORWARD_TIMEOUT));
+                            return;
+                        } catch (ConnectionPool.HttpException ex) {
+                            response.complete(ex.getResponseCode(), ex.getBody());
+                            return;
+                        } catch (SocketTimeoutException ex) {
+                            response.complete(504, "Node " + owner + " did not respond in time!"); //It may have received the request, so it is not sent again
+                            return;
+                        } catch (Exception ex) {
+                            failovers.increment();
+                            setUp(node, false);
+                        }
+                    }
+                    response.complete(503, "No node available, try again later!");
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    response.complete(500, null);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            response.complete(503, "Server busy, try again later!");
+        }
+        return response;
+    }
+    
+    /**
+     * Starts checking the other nodes
+     *
+     * @param interval Time between two checks in milliseconds
+     *
+     * @return A reference to this Cluster
+     */
+    public final synchronized Cluster start(long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval has to be positive");
+        }
+        if (checker != null) {
+            return this;
+        }
+        checker = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(interval); //The other nodes may still be starting
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                nodes.values().forEach(this::check);
+            }
+        }, "IFTTJ-Cluster-Checker");
+        checker.setDaemon(true);
+        checker.start();
+        return this;
+    }
+    
+    /**
+     * Stops checking the other nodes and closes every connection to them (so
+     * nothing can be forwarded afterwards)
+     */
+    public final synchronized void stop() {
+        if (checker != null) {
+            checker.interrupt();
+        }
+        checker = null;
+        nodes.values().forEach(Node::close);
+    }
+    
+    private final void check(Node node) {
+        if (node.pool == null) {
+            return;
+        }
+        boolean up;
+        try {
+            node.pool.post(IFTTJ.IFTTJ_GET_TOPOLOGY, CHECK_TIMEOUT);
+            up = true;
+        } catch (ConnectionPool.HttpException ex) {
+            up = true; //It responded
+        } catch (Exception ex) {
+            up = false;
+        }
+        setUp(node, up);
+    }
+    
+    private final synchronized void setUp(Node node, boolean up) {
+        if (node.up == up || nodes.get(node.address) != node) {
+            return;
+        }
+        node.up = up;
+        update();
+        System.out.println("Node " + node.address + " is " + (up ? "up" : "down") + ", topology: " + ring);
+    }
+    
+    private final void update() {
+        final List<String> temp = new ArrayList<>();
+        nodes.values().stream().filter((node) -> node.up).forEach((node) -> temp.add(node.address));
+        ring = new HashRing(temp);
+    }
+    
+    /**
+     * Searches the node, which is this Server
+     *
+     * @param nodes Nodes ("host:port")
+     * @param port Port of this Server
+     *
+     * @return Node with the given port and a local address or null
+     */
+    public static final String findSelf(Collection<String> nodes, int port) {
+        for (String node : nodes) {
+            final int colon = node.lastIndexOf(':');
+            if (Integer.parseInt(node.substring(colon + 1)) != port) {
+                continue;
+            }
+            try {
+                final InetAddress inetAddress = InetAddress.getByName(node.substring(0, colon));
+                if (inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() || NetworkInterface.getByInetAddress(inetAddress) != null) {
+                    return node;
+                }
+            } catch (Exception ex) {
+                //Not resolvable, so not this Server
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public final String toString() {
+        return "Cluster{" + "self='" + self + '\'' + ", nodes=" + getNodes() + ", ring=" + ring + ", routing=" + routing + '}';
+    }
+    
+    /**
+     * How events of Applets owned by another node are routed
+     */
+    public enum Routing {
+        /**
+         * The event is sent to the owner and its response is returned
+         */
+        FORWARD,
+        /**
+         * The Webhook is answered with 307 (Temporary Redirect) to the owner
+         */
+        REDIRECT
+    }
+    
+    private static final class Node {
+        
+        private final String address;
+        private final ConnectionPool pool;
+        private volatile boolean up = true;
+        
+        private Node(String address, String headers) {
+            this.address = address;
+            final int colon = address.lastIndexOf(':');
+            this.pool = headers != null ? new ConnectionPool(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)), IFTTJ.URL_SUFFIX, ConnectionPool.DEFAULT_MAX_IDLE, headers) : null; //This Server is no peer of itself
+        }
+        
+        private final void close() {
+            if (pool != null) {
+                pool.close();
+            }
+        }
+        
+    }
+    
+}
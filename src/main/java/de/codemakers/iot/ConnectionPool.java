@@ -0,0 +1,650 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of persistent HTTP/1.1 connections to one IFTTJ Server
+ * <br>
+ * Every connection is used by one Thread at a time and returned to the pool
+ * after the response was read, so all listeners of a {@link Client} share a
+ * few kept-alive connections. Requests and responses are written and read
+ * through buffers owned by the connection, which are reused for every
+ * request.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class ConnectionPool {
+    
+    public static final int DEFAULT_MAX_IDLE = 8;
+    public static final int CONNECT_TIMEOUT = 5000;
+    public static final long MAX_IDLE_TIME = 20000;
+    public static final long STALE_CHECK_TIME = 1000;
+    public static final int BUFFER_SIZE = 8 * 1024;
+    
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION = "connection".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE = "close".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNKED = "chunked".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_TYPE = "content-type".getBytes(StandardCharsets.US_ASCII);
+    private static final char[] FRAME_TYPE = EventFrame.CONTENT_TYPE.toCharArray();
+    private static final byte[] HINTS = PollHint.HEADER.toLowerCase().getBytes(StandardCharsets.US_ASCII);
+    
+    private final String host;
+    private final int port;
+    private final byte[] head;
+    private final byte[] frameHead;
+    private final int maxIdle;
+    private final Deque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger(0);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder latency = new LongAdder();
+    private volatile boolean closed = false;
+    
+    /**
+     * Constructs a new ConnectionPool
+     *
+     * @param host Host to connect to
+     * @param port Port to connect to
+     * @param url_suffix URL suffix after "http://host:port/"
+     */
+    public ConnectionPool(String host, int port, String url_suffix) {
+        this(host, port, url_suffix, DEFAULT_MAX_IDLE);
+    }
+    
+    /**
+     * Constructs a new ConnectionPool
+     *
+     * @param host Host to connect to
+     * @param port Port to connect to
+     * @param url_suffix URL suffix after "http://host:port/"
+     * @param maxIdle Maximum number of idle connections kept open
+     */
+    public ConnectionPool(String host, int port, String url_suffix, int maxIdle) {
+        this(host, port, url_suffix, maxIdle, "");
+    }
+    
+    /**
+     * Constructs a new ConnectionPool
+     *
+     * @param host Host to connect to
+     * @param port Port to connect to
+     * @param url_suffix URL suffix after "http://host:port/"
+     * @param maxIdle Maximum number of idle connections kept open
+     * @param headers Additional header lines sent with every request (each
+     * ending with "\r\n")
+     */
+    public ConnectionPool(String host, int port, String url_suffix, int maxIdle, String headers) {
+        this.host = host;
+        this.port = port;
+        final String temp = String.format("POST /%s HTTP/1.1\r\nHost: %s:%d\r\nContent-Type: text/plain; charset=utf-8\r\n%s", url_suffix, host, port, headers);
+        this.head = (temp + "Content-Length: ").getBytes(StandardCharsets.UTF_8);
+        this.frameHead = (temp + "Accept: " + EventFrame.CONTENT_TYPE + "\r\nContent-Length: ").getBytes(StandardCharsets.UTF_8);
+        this.maxIdle = maxIdle;
+    }
+    
+    /**
+     * Returns the number of sent requests
+     *
+     * @return Number of requests
+     */
+    public final long getRequestCount() {
+        return requests.sum();
+    }
+    
+    /**
+     * Returns the number of requests, which were sent over an already open
+     * connection
+     *
+     * @return Number of requests on reused connections
+     */
+    public final long getReuseCount() {
+        return reused.sum();
+    }
+    
+    /**
+     * Returns the number of opened connections
+     *
+     * @return Number of opened connections
+     */
+    public final long getOpenedCount() {
+        return opened.sum();
+    }
+    
+    /**
+     * Returns the share of requests, which were sent over an already open
+     * connection
+     *
+     * @return Reuse rate between 0 and 1
+     */
+    public final double getReuseRate() {
+        final long temp = requests.sum();
+        return temp == 0 ? 0 : (double) reused.sum() / temp;
+    }
+    
+    /**
+     * Returns the average time from sending a request until its response was
+     * read
+     *
+     * @return Average latency in milliseconds
+     */
+    public final double getAverageLatency() {
+        final long temp = requests.sum();
+        return temp == 0 ? 0 : latency.sum() / 1_000_000.0 / temp;
+    }
+    
+    /**
+     * Returns the number of idle connections
+     *
+     * @return Number of idle connections
+     */
+    public final int getIdleCount() {
+        return idleCount.get();
+    }
+    
+    /**
+     * Sends a POST request and reads its response
+     * <br>
+     * A request, which could not be written to a reused connection (e.g.
+     * because the Server closed it meanwhile), is sent on a new connection.
+     * Once a request was written, it is never sent again, because it may not
+     * be idempotent.
+     *
+     * @param request Request body
+     * @param readTimeout Read timeout in milliseconds (0 waits forever)
+     *
+     * @return Response body
+     *
+     * @throws IOException If the request failed or the Server did not respond
+     * with 2xx
+     */
+    public final String post(String request, int readTimeout) throws IOException {
+        final PooledConnection connection = exchange(request, readTimeout, false);
+        try {
+            return connection.getText();
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Sends a poll request, which accepts {@link EventFrame#CONTENT_TYPE},
+     * and decodes the returned events
+     * <br>
+     * If the Server responds with text anyway, it is decoded as an
+     * {@link EventBatch}.
+     *
+     * @param request Request body
+     * @param readTimeout Read timeout in milliseconds (0 waits forever)
+     *
+     * @return Events
+     *
+     * @throws IOException If the request failed or the Server did not respond
+     * with 2xx
+     */
+    public final List<Event> poll(String request, int readTimeout) throws IOException {
+        return poll(request, readTimeout, true, null);
+    }
+    
+    /**
+     * Sends a poll request and decodes the returned events and
+     * {@link PollHint}s
+     *
+     * @param request Request body
+     * @param readTimeout Read timeout in milliseconds (0 waits forever)
+     * @param binary <tt>true</tt> if {@link EventFrame#CONTENT_TYPE} is
+     * accepted
+     * @param hints Receives the hints of the response in the order of the
+     * requested Applets (may be null)
+     *
+     * @return Events
+     *
+     * @throws IOException If the request failed or the Server did not respond
+     * with 2xx
+     */
+    public final List<Event> poll(String request, int readTimeout, boolean binary, List<PollHint> hints) throws IOException {
+        final PooledConnection connection = exchange(request, readTimeout, binary);
+        try {
+            if (hints != null && connection.hintsStart >= 0) {
+                try {
+                    hints.addAll(PollHint.decode(new String(connection.in, connection.hintsStart, connection.hintsEnd - connection.hintsStart, StandardCharsets.US_ASCII)));
+                } catch (IllegalArgumentException ex) {
+                    //Hints are optional, so the events are still returned
+                }
+            }
+            return connection.getEvents();
+        } finally {
+            release(connection);
+        }
+    }
+    
+    /**
+     * Sends a request and reads its response into the buffer of the returned
+     * connection, which has to be released afterwards
+     */
+    private final PooledConnection exchange(String request, int readTimeout, boolean binary) throws IOException {
+        if (closed) {
+            throw new IOException("ConnectionPool is closed");
+        }
+        final long started = System.nanoTime();
+        PooledConnection connection = acquire();
+        boolean reuse = connection != null;
+        if (!reuse) {
+            connection = open();
+        }
+        try {
+            connection.write(request, readTimeout, binary);
+        } catch (IOException ex) {
+            connection.close();
+            if (!reuse) {
+                throw ex;
+            }
+            reuse = false;
+            connection = open();
+            try {
+                connection.write(request, readTimeout, binary);
+            } catch (IOException ex2) {
+                connection.close();
+                throw ex2;
+            }
+        }
+        try {
+            connection.read(); //The request was sent, so it is not retried anymore
+        } catch (HttpException ex) {
+            release(connection); //The response was read completely, so the connection is still usable
+            throw ex;
+        } catch (IOException ex) {
+            connection.close();
+            throw ex;
+        }
+        requests.increment();
+        if (reuse) {
+            reused.increment();
+        }
+        latency.add(System.nanoTime() - started);
+        return connection;
+    }
+    
+    /**
+     * Closes every idle connection and every connection returned afterwards
+     */
+    public final void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            connection.close();
+        }
+    }
+    
+    private final PooledConnection acquire() {
+        final long now = System.currentTimeMillis();
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            if (now - connection.lastUsed < MAX_IDLE_TIME && !connection.socket.isClosed() && (now - connection.lastUsed < STALE_CHECK_TIME || !connection.isStale())) {
+                return connection;
+            }
+            connection.close();
+        }
+        return null;
+    }
+    
+    private final void release(PooledConnection connection) {
+        if (connection.keepAlive && !closed) {
+            if (idleCount.incrementAndGet() <= maxIdle) {
+                connection.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(connection);
+                return;
+            }
+            idleCount.decrementAndGet();
+        }
+        connection.close();
+    }
+    
+    private final PooledConnection open() throws IOException {
+        final Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        opened.increment();
+        return new PooledConnection(socket);
+    }
+    
+    /**
+     * Thrown if the Server responded with an error, the connection itself
+     * was fine
+     */
+    static final class HttpException extends IOException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final int responseCode;
+        private final String body;
+        
+        HttpException(int responseCode, String body) {
+            super("Server returned HTTP response code: " + responseCode);
+            this.responseCode = responseCode;
+            this.body = body;
+        }
+        
+        /**
+         * Returns the HTTP response code
+         *
+         * @return HTTP response code
+         */
+        final int getResponseCode() {
+            return responseCode;
+        }
+        
+        /**
+         * Returns the response body
+         *
+         * @return Response body (may be empty)
+         */
+        final String getBody() {
+            return body;
+        }
+        
+    }
+    
+    private final class PooledConnection {
+        
+        private final Socket socket;
+        private final InputStream is;
+        private final OutputStream os;
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+        private byte[] in = new byte[BUFFER_SIZE];
+        private char[] chars = new char[BUFFER_SIZE];
+        private EventFrame frame = null;
+        private int bodyStart = 0;
+        private int bodyEnd = 0;
+        private int hintsStart = -1;
+        private int hintsEnd = -1;
+        private boolean binary = false;
+        private boolean keepAlive = true;
+        private long lastUsed = System.currentTimeMillis();
+        
+        private PooledConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.is = socket.getInputStream();
+            this.os = socket.getOutputStream();
+        }
+        
+        private final void write(String request, int readTimeout, boolean binary) throws IOException {
+            socket.setSoTimeout(readTimeout);
+            write(request, binary ? frameHead : head);
+        }
+        
+        /**
+         * Checks if the Server closed this idle connection (blocks for at most
+         * one millisecond)
+         *
+         * @return <tt>true</tt> if the connection can not be used anymore
+         */
+        private final boolean isStale() {
+            try {
+                if (is.available() > 0) {
+                    return true; //Nothing was requested, so any data is unexpected
+                }
+                socket.setSoTimeout(1);
+                is.read(); //Returns data or the end of the stream, both make this connection unusable
+                return true;
+            } catch (SocketTimeoutException ex) {
+                return false;
+            } catch (IOException ex) {
+                return true;
+            }
+        }
+        
+        private final String getText() {
+            if (chars.length < bodyEnd - bodyStart) {
+                chars = new char[bodyEnd - bodyStart];
+            }
+            return new String(chars, 0, Utf8.decode(ByteBuffer.wrap(in), bodyStart, bodyEnd, chars));
+        }
+        
+        private final List<Event> getEvents() throws IOException {
+            if (!binary) {
+                return EventBatch.decode(getText());
+            }
+            if (frame == null) {
+                frame = new EventFrame();
+            }
+            try {
+                return frame.decode(in, bodyStart, bodyEnd - bodyStart);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Malformed frame", ex);
+            }
+        }
+        
+        private final void write(String request, byte[] head) throws IOException {
+            final int length = Utf8.length(request);
+            if (out.capacity() < head.length + length + 32) {
+                out = ByteBuffer.allocate(head.length + length + 32);
+            }
+            out.clear();
+            out.put(head);
+            putLong(out, length);
+            out.put(CRLF);
+            out.put(CRLF);
+            Utf8.encode(request, out);
+            os.write(out.array(), 0, out.position());
+            os.flush();
+        }
+        
+        private final void read() throws IOException {
+            int limit = 0;
+            int headEnd;
+            while ((headEnd = indexOf(in, 0, limit, '\r', '\n', '\r', '\n')) < 0) {
+                limit = fill(limit);
+            }
+            final int lineEnd = indexOf(in, 0, headEnd + 2, '\r', '\n');
+            if (lineEnd < 12 || in[8] != ' ') {
+                throw new IOException("Malformed status line");
+            }
+            final int responseCode = (int) parseLong(in, 9, 12, 10);
+            long contentLength = -1;
+            boolean chunked = false;
+            binary = false;
+            keepAlive = true;
+            hintsStart = -1;
+            hintsEnd = -1;
+            int position = lineEnd + 2;
+            while (position < headEnd) {
+                final int end = indexOf(in, position, headEnd + 2, '\r', '\n');
+                final int colon = indexOf(in, position, end, ':');
+                if (colon > 0) {
+                    int valueStart = colon + 1;
+                    while (valueStart < end && in[valueStart] == ' ') {
+                        valueStart++;
+                    }
+                    if (equalsIgnoreCase(in, position, colon, CONTENT_LENGTH)) {
+                        contentLength = parseLong(in, valueStart, end, 10);
+                    } else if (equalsIgnoreCase(in, position, colon, CONNECTION)) {
+                        keepAlive = !equalsIgnoreCase(in, valueStart, end, CLOSE);
+                    } else if (equalsIgnoreCase(in, position, colon, TRANSFER_ENCODING)) {
+                        chunked = equalsIgnoreCase(in, valueStart, end, CHUNKED);
+                    } else if (equalsIgnoreCase(in, position, colon, CONTENT_TYPE)) {
+                        binary = indexOf(in, valueStart, end, FRAME_TYPE) >= 0;
+                    } else if (equalsIgnoreCase(in, position, colon, HINTS)) {
+                        hintsStart = valueStart;
+                        hintsEnd = end;
+                    }
+                }
+                position = end + 2;
+            }
+            bodyStart = headEnd + 4;
+            if (chunked) {
+                bodyEnd = readChunked(bodyStart, limit);
+            } else if (contentLength >= 0) {
+                bodyEnd = (int) (bodyStart + contentLength);
+                ensureCapacity(bodyEnd);
+                while (limit < bodyEnd) {
+                    limit = fill(limit);
+                }
+            } else {
+                keepAlive = false;
+                bodyEnd = limit;
+                int read;
+                while (true) {
+                    ensureCapacity(bodyEnd + 1);
+                    if ((read = is.read(in, bodyEnd, in.length - bodyEnd)) < 0) {
+                        break;
+                    }
+                    bodyEnd += read;
+                }
+            }
+            if (responseCode < 200 || responseCode >= 300) {
+                throw new HttpException(responseCode, getText());
+            }
+        }
+        
+        /**
+         * Decodes a chunked body in place
+         *
+         * @return End of the decoded body
+         */
+        private final int readChunked(int bodyStart, int limit) throws IOException {
+            int bodyEnd = bodyStart;
+            int position = bodyStart;
+            while (true) {
+                int lineEnd;
+                while ((lineEnd = indexOf(in, position, limit, '\r', '\n')) < 0) {
+                    limit = fill(limit);
+                }
+                int sizeEnd = indexOf(in, position, lineEnd, ';');
+                final int size = (int) parseLong(in, position, sizeEnd < 0 ? lineEnd : sizeEnd, 16);
+                position = lineEnd + 2;
+                if (size == 0) {
+                    while (indexOf(in, position, limit, '\r', '\n') != position) { //Skips the trailers
+                        final int end = indexOf(in, position, limit, '\r', '\n');
+                        if (end < 0) {
+                            limit = fill(limit);
+                        } else {
+                            position = end + 2;
+                        }
+                    }
+                    return bodyEnd;
+                }
+                ensureCapacity(position + size + 2);
+                while (limit < position + size + 2) {
+                    limit = fill(limit);
+                }
+                System.arraycopy(in, position, in, bodyEnd, size);
+                bodyEnd += size;
+                position += size + 2;
+            }
+        }
+        
+        private final int fill(int limit) throws IOException {
+            ensureCapacity(limit + 1);
+            final int read = is.read(in, limit, in.length - limit);
+            if (read < 0) {
+                throw new IOException("Connection closed by the Server");
+            }
+            return limit + read;
+        }
+        
+        private final void ensureCapacity(int capacity) {
+            if (in.length < capacity) {
+                final byte[] temp = new byte[Math.max(capacity, in.length * 2)];
+                System.arraycopy(in, 0, temp, 0, in.length);
+                in = temp;
+            }
+        }
+        
+        private final void close() {
+            keepAlive = false;
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                //Ignored, the connection is gone anyway
+            }
+        }
+        
+    }
+    
+    private static final int indexOf(byte[] bytes, int from, int to, char... sequence) {
+        outer:
+        for (int i = from; i <= to - sequence.length; i++) {
+            for (int j = 0; j < sequence.length; j++) {
+                if (bytes[i + j] != sequence[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+    
+    private static final boolean equalsIgnoreCase(byte[] bytes, int from, int to, byte[] lowerCase) {
+        if (to - from != lowerCase.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCase.length; i++) {
+            if (bytes[from + i] != lowerCase[i] && (bytes[from + i] | 0x20) != lowerCase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static final long parseLong(byte[] bytes, int from, int to, int radix) throws IOException {
+        if (from >= to) {
+            throw new IOException("Malformed response");
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            final int digit = Character.digit(bytes[i], radix);
+            if (digit < 0) {
+                throw new IOException("Malformed response");
+            }
+            value = value * radix + digit;
+        }
+        return value;
+    }
+    
+    private static final void putLong(ByteBuffer buffer, long value) {
+        if (value >= 10) {
+            putLong(buffer, value / 10);
+        }
+        buffer.put((byte) ('0' + value % 10));
+    }
+    
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * A response, which is completed later by another Thread
+ * <br>
+ * A handler can return this instead of a finished response, then the
+ * {@link Server} sends the response as soon as it gets completed without
+ * blocking a Thread in the meantime.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class DeferredResponse implements Map.Entry<Integer, String>, BinaryBody {
+    
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+    private volatile int responseCode = 200;
+    private volatile String output = null;
+    private volatile byte[] body = null;
+    private volatile int bodyLength = 0;
+    private Consumer<DeferredResponse> callback = null;
+    private boolean done = false;
+    
+    /**
+     * Completes this response, if it was not already completed
+     *
+     * @param responseCode HTTP response code
+     * @param output Response body (may be null)
+     *
+     * @return <tt>true</tt> if this call completed the response
+     */
+    public final boolean complete(int responseCode, String output) {
+        if (!completed.compareAndSet(false, true)) {
+            return false;
+        }
+        return finish(responseCode, output);
+    }
+    
+    private final boolean finish(int responseCode, String output) {
+        this.responseCode = responseCode;
+        this.output = output;
+        final Consumer<DeferredResponse> temp;
+        synchronized (this) {
+            done = true;
+            temp = callback;
+        }
+        if (temp != null) {
+            temp.accept(this);
+        }
+        return true;
+    }
+    
+    /**
+     * Completes this response with a binary body, if it was not already
+     * completed
+     *
+     * @param responseCode HTTP response code
+     * @param body Buffer holding an {@link EventFrame} from 0 to "length" (not
+     * copied, so it must not change afterwards)
+     * @param length Length of the body
+     *
+     * @return <tt>true</tt> if this call completed the response
+     */
+    public final boolean complete(int responseCode, byte[] body, int length) {
+        if (!completed.compareAndSet(false, true)) {
+            return false;
+        }
+        this.body = body;
+        this.bodyLength = length;
+        return finish(responseCode, null);
+    }
+    
+    /**
+     * Returns if this response was completed
+     *
+     * @return <tt>true</tt> if this response was completed
+     */
+    public final boolean isCompleted() {
+        return completed.get();
+    }
+    
+    /**
+     * Sets the callback, which sends the completed response
+     * <br>
+     * If this response is already completed, the callback is called
+     * immediately.
+     *
+     * @param callback Callback
+     *
+     * @return A reference to this DeferredResponse
+     */
+    public final DeferredResponse onComplete(Consumer<DeferredResponse> callback) {
+        final boolean temp;
+        synchronized (this) {
+            this.callback = callback;
+            temp = done;
+        }
+        if (temp) {
+            callback.accept(this);
+        }
+        return this;
+    }
+    
+    @Override
+    public final byte[] getBody() {
+        return body;
+    }
+    
+    @Override
+    public final int getBodyLength() {
+        return bodyLength;
+    }
+    
+    @Override
+    public final Integer getKey() {
+        return responseCode;
+    }
+    
+    @Override
+    public final String getValue() {
+        return output;
+    }
+    
+    @Override
+    public final String setValue(String value) {
+        final String temp = output;
+        output = value;
+        return temp;
+    }
+    
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs the handlers of received events on an {@link Executor}, one serial
+ * lane per Applet
+ * <br>
+ * The events of one Applet are handled strictly in the order they were
+ * dispatched, one batch after the other, while the lanes of different
+ * Applets run in parallel. A lane is only submitted to the executor while
+ * it has queued events and hands the Thread back after every batch, so one
+ * busy Applet can not starve the others. If the executor rejects a lane, the
+ * queued events are handled on the dispatching Thread. A lane is full with
+ * {@link #getMaxQueued()} events: {@link #dispatch(Event)} never blocks, so a
+ * Thread receiving several Applets checks {@link #isFull(String)} and skips
+ * the full ones until their drain listener is called, while
+ * {@link #dispatchAndWait(Event)} blocks a Thread receiving one stream until
+ * the handlers caught up. Either way a slow Applet slows down receiving
+ * instead of filling the memory.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class Dispatcher {
+    
+    public static final int DEFAULT_MAX_QUEUED = 10000;
+    
+    private final Consumer<List<Event>> target;
+    private final Consumer<String> drainListener;
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+    private volatile Executor executor;
+    private volatile int maxBatchSize = 1;
+    private volatile int maxQueued = DEFAULT_MAX_QUEUED;
+    
+    /**
+     * Constructs a new Dispatcher
+     *
+     * @param executor Executor running the lanes
+     * @param target Handles a batch of events of one Applet
+     */
+    public Dispatcher(Executor executor, Consumer<List<Event>> target) {
+        this(executor, target, null);
+    }
+    
+    /**
+     * Constructs a new Dispatcher
+     *
+     * @param executor Executor running the lanes
+     * @param target Handles a batch of events of one Applet
+     * @param drainListener Called with the Applet ID, when a full lane has
+     * space again (on a Thread of the executor, may be null)
+     */
+    public Dispatcher(Executor executor, Consumer<List<Event>> target, Consumer<String> drainListener) {
+        this.executor = executor;
+        this.target = target;
+        this.drainListener = drainListener;
+    }
+    
+    /**
+     * Returns the executor running the lanes
+     *
+     * @return Executor
+     */
+    public final Executor getExecutor() {
+        return executor;
+    }
+    
+    /**
+     * Sets the executor running the lanes (already submitted lanes finish on
+     * the old executor)
+     *
+     * @param executor Executor
+     *
+     * @return A reference to this Dispatcher
+     */
+    public final Dispatcher setExecutor(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        this.executor = executor;
+        return this;
+    }
+    
+    /**
+     * Returns the maximum number of events of one Applet handled as one batch
+     *
+     * @return Maximum batch size
+     */
+    public final int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+    
+    /**
+     * Sets the maximum number of events of one Applet handled as one batch
+     *
+     * @param maxBatchSize Maximum batch size (1 handles every event on its
+     * own)
+     *
+     * @return A reference to this Dispatcher
+     */
+    public final Dispatcher setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize has to be positive");
+        }
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+    
+    /**
+     * Returns the maximum number of queued events of one Applet
+     *
+     * @return Maximum number of queued events
+     */
+    public final int getMaxQueued() {
+        return maxQueued;
+    }
+    
+    /**
+     * Sets the maximum number of queued events of one Applet
+     *
+     * @param maxQueued Maximum number of queued events
+     *
+     * @return A reference to this Dispatcher
+     */
+    public final Dispatcher setMaxQueued(int maxQueued) {
+        if (maxQueued <= 0) {
+            throw new IllegalArgumentException("maxQueued has to be positive");
+        }
+        this.maxQueued = maxQueued;
+        return this;
+    }
+    
+    /**
+     * Queues an event in the lane of its Applet without blocking
+     * <br>
+     * The event is queued even if the lane is full, so the caller has to
+     * stop receiving events of a full lane (see {@link #isFull(String)}).
+     *
+     * @param event Event
+     */
+    public final void dispatch(Event event) {
+        add(getOrCreateLane(event.getID()), event);
+    }
+    
+    /**
+     * Queues an event in the lane of its Applet
+     * <br>
+     * Blocks while the lane is full (if the calling Thread is interrupted,
+     * the event is queued anyway and the interrupt flag is kept).
+     *
+     * @param event Event
+     */
+    public final void dispatchAndWait(Event event) {
+        final Lane lane = getOrCreateLane(event.getID());
+        if (lane.depth.get() >= maxQueued) {
+            lane.awaitSpace();
+        }
+        add(lane, event);
+    }
+    
+    /**
+     * Returns if the lane of an Applet is full
+     *
+     * @param id Applet ID
+     *
+     * @return <tt>true</tt> if at least {@link #getMaxQueued()} events of
+     * this Applet wait for their handlers
+     */
+    public final boolean isFull(String id) {
+        final Lane lane = lanes.get(id);
+        return lane != null && lane.depth.get() >= maxQueued;
+    }
+    
+    private final Lane getOrCreateLane(String id) {
+        final Lane lane = lanes.get(id);
+        return lane != null ? lane : lanes.computeIfAbsent(id, Lane::new);
+    }
+    
+    private final void add(Lane lane, Event event) {
+        lane.queue.add(event);
+        lane.depth.incrementAndGet();
+        lane.submit();
+    }
+    
+    /**
+     * Returns the lane of an Applet
+     *
+     * @param id Applet ID
+     *
+     * @return Lane or null, if no event of this Applet was dispatched yet
+     */
+    public final Lane getLane(String id) {
+        return lanes.get(id);
+    }
+    
+    /**
+     * Returns every lane
+     *
+     * @return Lanes
+     */
+    public final Collection<Lane> getLanes() {
+        return lanes.values();
+    }
+    
+    /**
+     * Returns the number of events waiting to be handled
+     *
+     * @return Queued events of every Applet
+     */
+    public final int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes.values()) {
+            depth += lane.getQueueDepth();
+        }
+        return depth;
+    }
+    
+    @Override
+    public final String toString() {
+        return "Dispatcher{" + "lanes=" + lanes.size() + ", queueDepth=" + getQueueDepth() + ", maxBatchSize=" + maxBatchSize + ", maxQueued=" + maxQueued + '}';
+    }
+    
+    /**
+     * Serial queue of the events of one Applet
+     */
+    public final class Lane implements Runnable {
+        
+        private final String id;
+        private final Queue<Event> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger(0);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final Histogram handlerTime = new Histogram();
+        
+        private Lane(String id) {
+            this.id = id;
+        }
+        
+        /**
+         * Returns the Applet ID
+         *
+         * @return Applet ID
+         */
+        public final String getID() {
+            return id;
+        }
+        
+        /**
+         * Returns the number of events waiting to be handled
+         *
+         * @return Queued events
+         */
+        public final int getQueueDepth() {
+            return depth.get();
+        }
+        
+        /**
+         * Returns the execution time of the handlers of one batch
+         *
+         * @return Histogram of nanoseconds
+         */
+        public final Histogram getHandlerTime() {
+            return handlerTime;
+        }
+        
+        private final void submit() {
+            if (!scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                executor.execute(this);
+                return;
+            } catch (RejectedExecutionException ex) {
+                //Handled on this Thread below
+            }
+            do { //A loop instead of run(), which would submit (and recurse) again
+                try {
+                    handleBatch();
+                } finally {
+                    scheduled.set(false);
+                }
+            } while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+        
+        private final synchronized void awaitSpace() {
+            try {
+                while (depth.get() >= maxQueued) {
+                    wait(100); //Also notices a raised maxQueued
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        @Override
+        public final void run() {
+            try {
+                handleBatch();
+            } finally { //Even if a handler threw an Error, otherwise this lane would never run again
+                scheduled.set(false);
+                if (!queue.isEmpty()) {
+                    submit(); //Events were added meanwhile or did not fit into this batch
+                }
+            }
+        }
+        
+        private final void handleBatch() {
+            final int temp = maxBatchSize;
+            final List<Event> events = new ArrayList<>(Math.min(temp, Math.max(1, depth.get())));
+            Event event;
+            while (events.size() < temp && (event = queue.poll()) != null) {
+                events.add(event);
+            }
+            if (events.isEmpty()) {
+                return;
+            }
+            final int max = maxQueued;
+            if (depth.getAndAdd(-events.size()) >= max) {
+                synchronized (this) {
+                    notifyAll(); //Wakes the dispatching Threads waiting for space
+                }
+                if (drainListener != null && depth.get() < max) {
+                    try {
+                        drainListener.accept(id);
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            }
+            final long start = System.nanoTime();
+            try {
+                target.accept(events);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            } finally {
+                handlerTime.recordSince(start);
+            }
+        }
+        
+        @Override
+        public final String toString() {
+            return "Lane{" + "id='" + id + '\'' + ", queueDepth=" + depth.get() + ", handlerTime=" + handlerTime + '}';
+        }
+        
+    }
+    
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+/**
+ * A single event of an Applet
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class Event {
+    
+    private final String id;
+    private final long sequence;
+    private final long timestamp;
+    private final String data;
+    
+    /**
+     * Constructs a new Event
+     *
+     * @param id Applet ID
+     * @param sequence Sequence number of this event (unique per Applet)
+     * @param timestamp Time in milliseconds this event was received
+     * @param data Text of the event (may be null)
+     */
+    public Event(String id, long sequence, long timestamp, String data) {
+        this.id = id;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.data = data;
+    }
+    
+    /**
+     * Returns the Applet ID
+     *
+     * @return Applet ID
+     */
+    public final String getID() {
+        return id;
+    }
+    
+    /**
+     * Returns the sequence number
+     *
+     * @return Sequence number
+     */
+    public final long getSequence() {
+        return sequence;
+    }
+    
+    /**
+     * Returns the time this event was received
+     *
+     * @return Timestamp in milliseconds
+     */
+    public final long getTimestamp() {
+        return timestamp;
+    }
+    
+    /**
+     * Returns the text of the event
+     *
+     * @return Text of the event (may be null)
+     */
+    public final String getData() {
+        return data;
+    }
+    
+    @Override
+    public final String toString() {
+        return "Event{" + "id='" + id + '\'' + ", sequence=" + sequence + ", timestamp=" + timestamp + ", data='" + data + '\'' + '}';
+    }
+    
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes and decodes multiple events in one response
+ * <br>
+ * Every event is written as a header line
+ * "&lt;Applet ID&gt; &lt;Sequence&gt; &lt;Timestamp&gt; &lt;Length&gt;"
+ * followed by exactly "Length" characters of text and a line break. A null
+ * text has the length -1.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class EventBatch {
+    
+    private EventBatch() {
+    }
+    
+    /**
+     * Encodes some events
+     *
+     * @param events Events
+     *
+     * @return Encoded events
+     */
+    public static final String encode(List<Event> events) {
+        final StringBuilder sb = new StringBuilder();
+        for (Event event : events) {
+            final String data = event.getData();
+            sb.append(event.getID()).append(' ').append(event.getSequence()).append(' ').append(event.getTimestamp()).append(' ').append(data == null ? -1 : data.length()).append('\n');
+            if (data != null) {
+                sb.append(data);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Decodes some events
+     *
+     * @param text Encoded events
+     *
+     * @return Events
+     *
+     * @throws IllegalArgumentException If the text is malformed
+     */
+    public static final List<Event> decode(String text) {
+        final List<Event> events = new ArrayList<>();
+        if (text == null) {
+            return events;
+        }
+        int position = 0;
+        while (position < text.length()) {
+            final int end = text.indexOf('\n', position);
+            if (end < 0) {
+                throw new IllegalArgumentException("Missing line break after header at " + position);
+            }
+            final String[] header = text.substring(position, end).split(" ");
+            if (header.length != 4) {
+                throw new IllegalArgumentException("Malformed header at " + position);
+            }
+            final int length = Integer.parseInt(header[3]);
+            position = end + 1;
+            String data = null;
+            if (length >= 0) {
+                if (position + length > text.length()) {
+                    throw new IllegalArgumentException("Text too short at " + position);
+                }
+                data = text.substring(position, position + length);
+                position += length;
+            }
+            if (position >= text.length() || text.charAt(position) != '\n') {
+                throw new IllegalArgumentException("Missing line break after text at " + position);
+            }
+            position++;
+            events.add(new Event(header[0], Long.parseLong(header[1]), Long.parseLong(header[2]), data));
+        }
+        return events;
+    }
+    
+}
@@ -0,0 +1,565 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free, fixed-capacity ring buffer holding the events of one Applet
+ * <br>
+ * Every event gets a monotonically increasing sequence number (starting at 1),
+ * which also determines its slot, so looking up an event by its sequence
+ * number is O(1). Any number of threads may add and read events concurrently.
+ * <br>
+ * The cursors of the {@link Subscriber}s polling this buffer are attached to
+ * it. Unless the {@link OverflowPolicy} is {@link OverflowPolicy#DROP_OLDEST},
+ * an event, which would overwrite an event not yet delivered to every
+ * attached cursor, is not added. The slowest cursor is cached and only
+ * looked up again, when the buffer seems full, so adding stays O(1).
+ * <br>
+ * The texts are either kept as Strings or encoded into a {@link PayloadLog}
+ * in direct memory, so a buffer retaining millions of events only holds a
+ * few primitive arrays on the heap. An event, whose text was overwritten in
+ * the log by newer texts, counts as overwritten.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class EventBuffer {
+    
+    /**
+     * Sequence number, which is used, when nothing was seen yet
+     */
+    public static final long NO_SEQUENCE = 0;
+    /**
+     * Returned instead of a sequence number, when an event was dropped by
+     * {@link OverflowPolicy#DROP_NEWEST}
+     */
+    public static final long DROPPED = -1;
+    /**
+     * Returned instead of a sequence number, when an event was rejected by
+     * {@link OverflowPolicy#REJECT}
+     */
+    public static final long REJECTED = -2;
+    
+    private final String id;
+    private final int capacity;
+    private final AtomicLong head = new AtomicLong(NO_SEQUENCE);
+    private final AtomicLong tail = new AtomicLong(NO_SEQUENCE + 1);
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray timestamps;
+    private final AtomicReferenceArray<String> data;
+    private final PayloadLog payloads;
+    private final AtomicLongArray positions;
+    private final AtomicIntegerArray lengths;
+    private final Set<AtomicLong> cursors = ConcurrentHashMap.newKeySet();
+    private final AtomicLong slowest = new AtomicLong(Long.MAX_VALUE);
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong newestTimestamp = new AtomicLong(0);
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    
+    /**
+     * Constructs a new EventBuffer
+     *
+     * @param id Applet ID
+     * @param capacity Maximum number of events, that are retained
+     */
+    public EventBuffer(String id, int capacity) {
+        this(id, capacity, 0);
+    }
+    
+    /**
+     * Constructs a new EventBuffer
+     *
+     * @param id Applet ID
+     * @param capacity Maximum number of events, that are retained
+     * @param payloadBytes Bytes of direct memory per event for the texts (0
+     * keeps the texts on the heap)
+     */
+    public EventBuffer(String id, int capacity, int payloadBytes) {
+        if (capacity <= 0 || payloadBytes < 0) {
+            throw new IllegalArgumentException("capacity has to be positive and payloadBytes must not be negative");
+        }
+        this.id = id;
+        this.capacity = capacity;
+        this.sequences = new AtomicLongArray(capacity);
+        this.timestamps = new AtomicLongArray(capacity);
+        if (payloadBytes == 0) {
+            this.data = new AtomicReferenceArray<>(capacity);
+            this.payloads = null;
+            this.positions = null;
+            this.lengths = null;
+        } else {
+            this.data = null;
+            this.payloads = new PayloadLog((long) capacity * payloadBytes);
+            this.positions = new AtomicLongArray(capacity);
+            this.lengths = new AtomicIntegerArray(capacity);
+        }
+    }
+    
+    /**
+     * Returns the Applet ID
+     *
+     * @return Applet ID
+     */
+    public final String getID() {
+        return id;
+    }
+    
+    /**
+     * Returns the maximum number of retained events
+     *
+     * @return Capacity
+     */
+    public final int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Returns the log holding the texts in direct memory
+     *
+     * @return PayloadLog or null, if the texts are kept on the heap
+     */
+    public final PayloadLog getPayloadLog() {
+        return payloads;
+    }
+    
+    /**
+     * Returns the policy for new events, when this buffer is full
+     *
+     * @return OverflowPolicy
+     */
+    public final OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+    
+    /**
+     * Sets the policy for new events, when this buffer is full
+     *
+     * @param overflowPolicy OverflowPolicy
+     *
+     * @return A reference to this EventBuffer
+     */
+    public final EventBuffer setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new NullPointerException("overflowPolicy");
+        }
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+    
+    /**
+     * Returns the number of events, which were dropped or rejected, because
+     * this buffer was full
+     *
+     * @return Number of dropped events
+     */
+    public final long getDroppedCount() {
+        return dropped.sum();
+    }
+    
+    /**
+     * Attaches the cursor of a Subscriber, so events it did not receive yet
+     * are not overwritten (unless the policy is
+     * {@link OverflowPolicy#DROP_OLDEST})
+     *
+     * @param cursor Sequence number of the last delivered event
+     */
+    public final void attach(AtomicLong cursor) {
+        cursors.add(cursor); //Before lowering the slowest cursor, so a concurrent lookup either sees it or fails to store its result
+        slowest.accumulateAndGet(cursor.get(), Math::min);
+    }
+    
+    /**
+     * Detaches the cursor of a Subscriber
+     *
+     * @param cursor Cursor
+     */
+    public final void detach(AtomicLong cursor) {
+        cursors.remove(cursor);
+    }
+    
+    /**
+     * Returns the sequence number of the newest event
+     *
+     * @return Newest sequence number or {@link #NO_SEQUENCE}
+     */
+    public final long getHeadSequence() {
+        return head.get();
+    }
+    
+    /**
+     * Returns the sequence number of the oldest retained event
+     *
+     * @return Oldest sequence number (greater than the head sequence, if this
+     * buffer is empty)
+     */
+    public final long getTailSequence() {
+        return Math.max(tail.get(), head.get() - capacity + 1);
+    }
+    
+    /**
+     * Returns the time the newest event was received (even if it was evicted
+     * meanwhile)
+     *
+     * @return Time in milliseconds (0 if there was no event yet)
+     */
+    public final long getNewestTimestamp() {
+        return newestTimestamp.get();
+    }
+    
+    /**
+     * Returns the number of retained events
+     *
+     * @return Number of events
+     */
+    public final int size() {
+        return (int) Math.max(0, head.get() - getTailSequence() + 1);
+    }
+    
+    /**
+     * Adds an event
+     *
+     * @param timestamp Time in milliseconds the event was received
+     * @param text Text of the event (may be null)
+     *
+     * @return Sequence number of the added event, {@link #DROPPED} or
+     * {@link #REJECTED}
+     */
+    public final long add(long timestamp, String text) {
+        final int length = length(text);
+        final OverflowPolicy temp = overflowPolicy;
+        final long sequence;
+        if (temp == OverflowPolicy.DROP_OLDEST) {
+            sequence = head.incrementAndGet();
+        } else {
+            long current;
+            do {
+                current = head.get();
+                if (isFull(current)) {
+                    dropped.increment();
+                    return temp == OverflowPolicy.REJECT ? REJECTED : DROPPED;
+                }
+            } while (!head.compareAndSet(current, current + 1));
+            sequence = current + 1;
+        }
+        final int slot = slot(sequence);
+        long current;
+        do {
+            current = sequences.get(slot);
+            if (Math.abs(current) > sequence) {
+                return sequence; //Lapped by a faster producer, so this event is already overwritten
+            }
+        } while (current < 0 || !sequences.compareAndSet(slot, current, -sequence));
+        timestamps.set(slot, timestamp);
+        setText(slot, text, length);
+        sequences.set(slot, sequence);
+        if (timestamp > newestTimestamp.get()) {
+            newestTimestamp.accumulateAndGet(timestamp, Math::max); //Concurrent producers must not move it backwards
+        }
+        return sequence;
+    }
+    
+    /**
+     * Restores an event with its original sequence number (e.g. while
+     * replaying a {@link Journal})
+     * <br>
+     * This must not be called concurrently with any other modifying method.
+     * Events may be restored in any order, events, which are already
+     * contained or too old for the capacity are ignored. Call
+     * {@link #trimGaps()} after the last restored event.
+     *
+     * @param sequence Sequence number
+     * @param timestamp Time in milliseconds the event was received
+     * @param text Text of the event (may be null)
+     *
+     * @return <tt>true</tt> if the event was restored
+     */
+    public final boolean restore(long sequence, long timestamp, String text) {
+        if (sequence <= NO_SEQUENCE) {
+            return false;
+        }
+        if (sequence > head.get()) {
+            head.set(sequence);
+        }
+        if (sequence < getTailSequence()) {
+            return false;
+        }
+        final int slot = slot(sequence);
+        if (Math.abs(sequences.get(slot)) >= sequence) {
+            return false;
+        }
+        timestamps.set(slot, timestamp);
+        setText(slot, text, length(text));
+        sequences.set(slot, sequence);
+        if (timestamp > newestTimestamp.get()) {
+            newestTimestamp.accumulateAndGet(timestamp, Math::max);
+        }
+        return true;
+    }
+    
+    /**
+     * Drops every restored event older than the newest missing one, so the
+     * retained events are contiguous again (a missing event would otherwise
+     * look like one, which is not published yet)
+     *
+     * @return Number of dropped events
+     */
+    public final int trimGaps() {
+        final long tailSequence = getTailSequence();
+        for (long sequence = head.get(); sequence >= tailSequence; sequence--) {
+            if (sequences.get(slot(sequence)) != sequence) {
+                tail.set(sequence + 1);
+                return (int) (sequence - tailSequence);
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Returns the event with the given sequence number
+     *
+     * @param sequence Sequence number
+     *
+     * @return Event or null, if it is not (or no longer) available
+     */
+    public final Event get(long sequence) {
+        if (sequence < getTailSequence() || sequence > head.get()) {
+            return null;
+        }
+        final int slot = slot(sequence);
+        if (sequences.get(slot) != sequence) {
+            return null;
+        }
+        final long timestamp = timestamps.get(slot);
+        final String text;
+        if (payloads == null) {
+            text = data.get(slot);
+        } else {
+            final int length = lengths.get(slot);
+            text = length < 0 ? null : payloads.read(positions.get(slot), length);
+            if (length >= 0 && text == null) {
+                return null; //Overwritten in the log
+            }
+        }
+        if (sequences.get(slot) != sequence) {
+            return null;
+        }
+        return new Event(id, sequence, timestamp, text);
+    }
+    
+    /**
+     * Returns the first available event after the given sequence number
+     *
+     * @param cursor Sequence number of the last seen event
+     *
+     * @return Event or null, if there is no newer event
+     */
+    public final Event next(long cursor) {
+        long sequence = Math.max(cursor + 1, getTailSequence());
+        while (sequence <= head.get()) {
+            final Event event = get(sequence);
+            if (event != null) {
+                return event;
+            }
+            if (!isOverwritten(sequence)) {
+                return null; //Not published yet, so newer events have to wait to keep the order
+            }
+            sequence = Math.max(sequence + 1, getTailSequence());
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the sequence number of the first event received after the given
+     * time
+     * <br>
+     * This is a binary search over the retained events, so it takes O(log n).
+     *
+     * @param timestamp Time in milliseconds
+     *
+     * @return Sequence number (greater than the head sequence, if there is no
+     * such event)
+     */
+    public final long seek(long timestamp) {
+        long low = getTailSequence();
+        long high = head.get() + 1;
+        while (low < high) {
+            final long middle = (low + high) >>> 1;
+            final int slot = slot(middle);
+            final long sequence = sequences.get(slot);
+            if (Math.abs(sequence) > middle) {
+                low = middle + 1; //Already overwritten, so it is older than every retained event
+            } else if (sequence != middle || timestamps.get(slot) > timestamp) {
+                high = middle; //Not published yet, so it is at least as new as every published event
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Removes every event received before the given time
+     * <br>
+     * Events are ordered by time, so this stops at the first event, which is
+     * not expired.
+     *
+     * @param before Time in milliseconds
+     *
+     * @return Number of removed events
+     */
+    public final int evict(long before) {
+        int evicted = 0;
+        while (true) {
+            final long current = tail.get();
+            final long sequence = Math.max(current, head.get() - capacity + 1);
+            if (sequence > head.get()) {
+                return evicted;
+            }
+            final Event event = get(sequence);
+            if (event == null) {
+                if (!isOverwritten(sequence)) {
+                    return evicted;
+                }
+            } else if (event.getTimestamp() >= before) {
+                return evicted;
+            }
+            if (tail.compareAndSet(current, sequence + 1)) {
+                evicted++;
+            }
+        }
+    }
+    
+    /**
+     * Removes the oldest events, so at most the given number of events is
+     * retained
+     * <br>
+     * Unless the policy is {@link OverflowPolicy#DROP_OLDEST}, events, which
+     * are not yet delivered to every attached cursor, are not removed.
+     *
+     * @param maxCount Maximum number of retained events
+     *
+     * @return Number of removed events
+     */
+    public final int trim(int maxCount) {
+        while (true) {
+            final long current = tail.get();
+            final long first = Math.max(current, head.get() - capacity + 1);
+            long target = head.get() - maxCount + 1;
+            if (overflowPolicy != OverflowPolicy.DROP_OLDEST && target > first) {
+                target = Math.min(target, getSlowestCursor() + 1);
+            }
+            if (first >= target) {
+                return 0;
+            }
+            if (tail.compareAndSet(current, target)) {
+                return (int) (target - first);
+            }
+        }
+    }
+    
+    /**
+     * Removes every event
+     */
+    public final void clear() {
+        long current;
+        do {
+            current = tail.get();
+        } while (!tail.compareAndSet(current, Math.max(current, head.get() + 1)));
+    }
+    
+    /**
+     * Returns if adding an event after the given head would overwrite an
+     * event, which is not yet delivered to every attached cursor
+     */
+    private final boolean isFull(long headSequence) {
+        final long floor = getTailSequence() - 1;
+        if (headSequence - Math.max(slowest.get(), floor) < capacity) {
+            return false;
+        }
+        return headSequence - Math.max(getSlowestCursor(), floor) >= capacity;
+    }
+    
+    /**
+     * Looks up the slowest attached cursor again
+     *
+     * @return Sequence number of the slowest cursor (the head sequence, if no
+     * cursor is attached)
+     */
+    private final long getSlowestCursor() {
+        final long current = slowest.get();
+        long minimum = Long.MAX_VALUE;
+        for (AtomicLong cursor : cursors) {
+            minimum = Math.min(minimum, cursor.get());
+        }
+        slowest.compareAndSet(current, minimum); //Fails, if a cursor was attached meanwhile
+        return Math.min(minimum, head.get());
+    }
+    
+    private final boolean isOverwritten(long sequence) {
+        if (sequence < getTailSequence()) {
+            return true;
+        }
+        final int slot = slot(sequence);
+        final long current = sequences.get(slot);
+        if (Math.abs(current) > sequence) {
+            return true;
+        }
+        return payloads != null && current == sequence && lengths.get(slot) >= 0 && payloads.isOverwritten(positions.get(slot));
+    }
+    
+    /**
+     * Returns the UTF-8 encoded length of a text, which is stored in the
+     * PayloadLog
+     *
+     * @return Length or -1, if the text is null or kept on the heap
+     */
+    private final int length(String text) {
+        if (payloads == null || text == null) {
+            return -1;
+        }
+        final int length = Utf8.length(text);
+        if (length > payloads.getCapacity()) {
+            throw new IllegalArgumentException("Text is larger than the PayloadLog");
+        }
+        return length;
+    }
+    
+    private final void setText(int slot, String text, int length) {
+        if (payloads == null) {
+            data.set(slot, text);
+        } else {
+            positions.set(slot, length < 0 ? 0 : payloads.append(text, length));
+            lengths.set(slot, length);
+        }
+    }
+    
+    private final int slot(long sequence) {
+        return (int) (sequence % capacity);
+    }
+    
+    @Override
+    public final String toString() {
+        return "EventBuffer{" + "id='" + id + '\'' + ", capacity=" + capacity + ", head=" + head.get() + ", tail=" + getTailSequence() + (payloads == null ? "" : ", payloads=" + payloads) + '}';
+    }
+    
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reusable encoder and decoder for the binary event format
+ * ({@link #CONTENT_TYPE})
+ * <br>
+ * A frame starts with the version and a flags byte. If the flag
+ * {@link #DEFLATED} is set, the inflated length follows as a varint and the
+ * rest is deflated. The rest is the number of events followed by the events,
+ * every number is a varint (7 bits per byte, lowest bits first):
+ * <ul>
+ * <li>Applet ID handle: 0 means a new Applet ID follows (length and UTF-8
+ * bytes), which gets the next handle of this frame, otherwise the Applet ID
+ * with the handle "n - 1"</li>
+ * <li>Sequence</li>
+ * <li>Timestamp minus the timestamp of the previous event (zigzag encoded,
+ * the first event is relative to 0)</li>
+ * <li>Length of the text plus one (0 means null) followed by the UTF-8
+ * bytes</li>
+ * </ul>
+ * So an event of a known Applet takes about 5 bytes plus its text, there is
+ * no escaping and no "null" sentinel. Frames larger than
+ * {@link #COMPRESSION_THRESHOLD} bytes are deflated, if that makes them
+ * smaller. One EventFrame must only be used by one Thread at a time.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class EventFrame {
+    
+    public static final String CONTENT_TYPE = "application/vnd.ifttj.frame";
+    public static final byte VERSION = 1;
+    public static final int DEFLATED = 1;
+    public static final int COMPRESSION_THRESHOLD = 512;
+    public static final int MAX_SIZE = 16 * 1024 * 1024;
+    
+    private final Map<String, Integer> handles = new HashMap<>();
+    private final List<String> ids = new ArrayList<>();
+    private byte[] bytes = new byte[256];
+    private int length = 0;
+    private byte[] temp = new byte[256];
+    private char[] chars = new char[256];
+    private Deflater deflater = null;
+    private Inflater inflater = null;
+    
+    /**
+     * Encodes some events into one frame
+     *
+     * @param events Events
+     *
+     * @return A reference to this EventFrame
+     */
+    public final EventFrame encode(List<Event> events) {
+        length = 0;
+        put(VERSION);
+        put((byte) 0);
+        putVarint(events.size());
+        handles.clear();
+        long timestamp = 0;
+        for (Event event : events) {
+            final Integer handle = handles.get(event.getID());
+            if (handle == null) {
+                handles.put(event.getID(), handles.size());
+                putVarint(0);
+                putText(event.getID(), 0);
+            } else {
+                putVarint(handle + 1);
+            }
+            putVarint(event.getSequence());
+            final long delta = event.getTimestamp() - timestamp;
+            putVarint((delta << 1) ^ (delta >> 63));
+            timestamp = event.getTimestamp();
+            if (event.getData() == null) {
+                putVarint(0);
+            } else {
+                putText(event.getData(), 1);
+            }
+        }
+        if (length - 2 > COMPRESSION_THRESHOLD) {
+            deflate();
+        }
+        return this;
+    }
+    
+    /**
+     * Returns the number of encoded bytes
+     *
+     * @return Length
+     */
+    public final int length() {
+        return length;
+    }
+    
+    /**
+     * Returns the buffer, which holds the encoded bytes from 0 to
+     * {@link #length()} (it is reused by the next frame)
+     *
+     * @return Buffer
+     */
+    public final byte[] getBuffer() {
+        return bytes;
+    }
+    
+    /**
+     * Returns a copy of the encoded bytes
+     *
+     * @return Encoded bytes
+     */
+    public final byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+    
+    /**
+     * Returns if a frame contains no events
+     *
+     * @param frame Buffer containing the frame from 0 to "length"
+     * @param length Length of the frame
+     *
+     * @return <tt>true</tt> if the frame is empty
+     */
+    public static final boolean isEmpty(byte[] frame, int length) {
+        return length == 3 && frame[2] == 0; //Empty frames are never deflated
+    }
+    
+    /**
+     * Decodes a frame
+     *
+     * @param frame Buffer containing the frame
+     * @param offset First index of the frame
+     * @param size Length of the frame
+     *
+     * @return Events
+     *
+     * @throws IllegalArgumentException If the frame is malformed
+     */
+    public final List<Event> decode(byte[] frame, int offset, int size) {
+        if (size < 2 || frame[offset] != VERSION) {
+            throw new IllegalArgumentException("Unsupported frame version");
+        }
+        final int end = offset + size;
+        final int[] position = {offset + 2};
+        byte[] input = frame;
+        int limit = end;
+        if ((frame[offset + 1] & DEFLATED) != 0) {
+            final long inflated = getSize(frame, position, end);
+            if (inflated > MAX_SIZE) {
+                throw new IllegalArgumentException("Frame too large");
+            }
+            inflate(frame, position[0], end - position[0], (int) inflated);
+            input = temp;
+            position[0] = 0;
+            limit = (int) inflated;
+        }
+        final long count = getSize(input, position, limit);
+        if (count > limit) {
+            throw new IllegalArgumentException("Malformed event count");
+        }
+        final List<Event> events = new ArrayList<>((int) count);
+        ids.clear();
+        long timestamp = 0;
+        for (long i = 0; i < count; i++) {
+            final long handle = getSize(input, position, limit);
+            final String id;
+            if (handle == 0) {
+                id = getText(input, position, limit, getSize(input, position, limit));
+                ids.add(id);
+            } else if (handle <= ids.size()) {
+                id = ids.get((int) handle - 1);
+            } else {
+                throw new IllegalArgumentException("Unknown Applet ID handle " + handle);
+            }
+            final long sequence = getVarint(input, position, limit);
+            final long delta = getVarint(input, position, limit);
+            timestamp += (delta >>> 1) ^ -(delta & 1);
+            final long dataLength = getSize(input, position, limit);
+            events.add(new Event(id, sequence, timestamp, dataLength == 0 ? null : getText(input, position, limit, dataLength - 1)));
+        }
+        if (position[0] != limit) {
+            throw new IllegalArgumentException("Trailing bytes after the events");
+        }
+        return events;
+    }
+    
+    private final void deflate() {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        deflater.reset();
+        deflater.setInput(bytes, 2, length - 2);
+        deflater.finish();
+        if (temp.length < length) {
+            temp = new byte[length];
+        }
+        final int inflated = length - 2;
+        int position = 2 + varintLength(inflated);
+        while (!deflater.finished() && position < length) {
+            position += deflater.deflate(temp, position, length - position);
+        }
+        if (!deflater.finished()) {
+            return; //Not smaller
+        }
+        final byte[] swap = bytes;
+        bytes = temp;
+        temp = swap;
+        bytes[0] = VERSION;
+        bytes[1] = DEFLATED;
+        length = 2;
+        putVarint(inflated);
+        length = position;
+    }
+    
+    private final void inflate(byte[] frame, int offset, int size, int inflated) {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(frame, offset, size);
+        if (temp.length < inflated) {
+            temp = new byte[inflated];
+        }
+        try {
+            int position = 0;
+            while (position < inflated && !inflater.finished()) {
+                final int read = inflater.inflate(temp, position, inflated - position);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                position += read;
+            }
+            if (position != inflated || !inflater.finished()) {
+                throw new IllegalArgumentException("Inflated length does not match");
+            }
+        } catch (DataFormatException ex) {
+            throw new IllegalArgumentException("Malformed deflated frame", ex);
+        }
+    }
+    
+    private final void putText(String text, int add) {
+        final int size = Utf8.length(text);
+        putVarint(size + add);
+        ensureCapacity(length + size);
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes, length, size);
+        Utf8.encode(text, buffer);
+        length += size;
+    }
+    
+    private final String getText(byte[] input, int[] position, int limit, long size) {
+        if (size > limit - position[0]) {
+            throw new IllegalArgumentException("Text too long");
+        }
+        if (chars.length < size) {
+            chars = new char[(int) size];
+        }
+        final String text = new String(chars, 0, Utf8.decode(ByteBuffer.wrap(input), position[0], position[0] + (int) size, chars));
+        position[0] += (int) size;
+        return text;
+    }
+    
+    private final void putVarint(long value) {
+        ensureCapacity(length + 10);
+        while ((value & ~0x7FL) != 0) {
+            bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[length++] = (byte) value;
+    }
+    
+    private static final long getVarint(byte[] input, int[] position, int limit) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= limit) {
+                throw new IllegalArgumentException("Frame too short");
+            }
+            final byte b = input[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+    
+    /**
+     * Reads a varint, which is a length, a count or a handle (a ten byte
+     * varint may set the sign bit)
+     */
+    private static final long getSize(byte[] input, int[] position, int limit) {
+        final long size = getVarint(input, position, limit);
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size");
+        }
+        return size;
+    }
+    
+    private static final int varintLength(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+    
+    private final void put(byte b) {
+        ensureCapacity(length + 1);
+        bytes[length++] = b;
+    }
+    
+    private final void ensureCapacity(int capacity) {
+        if (bytes.length < capacity) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+    
+}
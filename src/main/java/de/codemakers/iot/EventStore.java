@@ -0,0 +1,319 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Holds one {@link EventBuffer} per Applet
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class EventStore {
+    
+    private final Map<String, EventBuffer> buffers = new ConcurrentHashMap<>();
+    private final Map<String, Integer> capacities = new ConcurrentHashMap<>();
+    private final Map<String, OverflowPolicy> overflowPolicies = new ConcurrentHashMap<>();
+    private final List<Consumer<EventBuffer>> listeners = new CopyOnWriteArrayList<>();
+    private volatile int capacity;
+    private volatile int payloadBytes = 0;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private volatile Journal journal = null;
+    
+    /**
+     * Constructs a new EventStore
+     *
+     * @param capacity Maximum number of retained events per Applet
+     */
+    public EventStore(int capacity) {
+        this.capacity = capacity;
+    }
+    
+    /**
+     * Returns the maximum number of retained events for new Applets
+     *
+     * @return Capacity
+     */
+    public final int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Sets the maximum number of retained events for new Applets
+     *
+     * @param capacity Capacity
+     *
+     * @return A reference to this EventStore
+     */
+    public final EventStore setCapacity(int capacity) {
+        this.capacity = capacity;
+        return this;
+    }
+    
+    /**
+     * Returns the bytes of direct memory per event, which new Applets get for
+     * their texts
+     *
+     * @return Bytes per event (0 if the texts are kept on the heap)
+     */
+    public final int getPayloadBytes() {
+        return payloadBytes;
+    }
+    
+    /**
+     * Sets the bytes of direct memory per event, which new Applets get for
+     * their texts
+     * <br>
+     * Every Applet gets a {@link PayloadLog} of "capacity * payloadBytes"
+     * bytes (at least {@link PayloadLog#MIN_CAPACITY}), which is allocated
+     * as it fills up. If the texts are larger on average, the oldest events
+     * are overwritten before the capacity is reached.
+     *
+     * @param payloadBytes Bytes per event (0 keeps the texts on the heap)
+     *
+     * @return A reference to this EventStore
+     */
+    public final EventStore setPayloadBytes(int payloadBytes) {
+        if (payloadBytes < 0) {
+            throw new IllegalArgumentException("payloadBytes must not be negative");
+        }
+        this.payloadBytes = payloadBytes;
+        return this;
+    }
+    
+    /**
+     * Returns the direct memory allocated for the texts of every Applet
+     *
+     * @return Allocated bytes
+     */
+    public final long getPayloadMemory() {
+        long bytes = 0;
+        for (EventBuffer events : buffers.values()) {
+            final PayloadLog payloads = events.getPayloadLog();
+            if (payloads != null) {
+                bytes += payloads.getAllocatedBytes();
+            }
+        }
+        return bytes;
+    }
+    
+    /**
+     * Returns the maximum number of retained events of an Applet
+     *
+     * @param id Applet ID
+     *
+     * @return Capacity
+     */
+    public final int getCapacity(String id) {
+        final EventBuffer events = buffers.get(id);
+        if (events != null) {
+            return events.getCapacity();
+        }
+        return capacities.getOrDefault(id, capacity);
+    }
+    
+    /**
+     * Sets the maximum number of retained events of an Applet, which has not
+     * received any event yet (the capacity of an existing EventBuffer can not
+     * be changed)
+     *
+     * @param id Applet ID
+     * @param capacity Capacity (0 uses the default capacity again)
+     *
+     * @return <tt>true</tt> if the capacity will be used
+     */
+    public final boolean setCapacity(String id, int capacity) {
+        if (capacity > 0) {
+            capacities.put(id, capacity);
+        } else {
+            capacities.remove(id);
+        }
+        return !buffers.containsKey(id);
+    }
+    
+    /**
+     * Returns the policy for new events of Applets without an own policy,
+     * when their buffer is full
+     *
+     * @return OverflowPolicy
+     */
+    public final OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+    
+    /**
+     * Sets the policy for new events of Applets without an own policy, when
+     * their buffer is full
+     *
+     * @param overflowPolicy OverflowPolicy
+     *
+     * @return A reference to this EventStore
+     */
+    public final EventStore setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new NullPointerException("overflowPolicy");
+        }
+        this.overflowPolicy = overflowPolicy;
+        buffers.values().forEach((events) -> events.setOverflowPolicy(overflowPolicies.getOrDefault(events.getID(), overflowPolicy)));
+        return this;
+    }
+    
+    /**
+     * Sets the policy for new events of an Applet, when its buffer is full
+     * (unlike the capacity this also changes an existing EventBuffer)
+     *
+     * @param id Applet ID
+     * @param overflowPolicy OverflowPolicy (null uses the default policy
+     * again)
+     *
+     * @return A reference to this EventStore
+     */
+    public final EventStore setOverflowPolicy(String id, OverflowPolicy overflowPolicy) {
+        if (overflowPolicy != null) {
+            overflowPolicies.put(id, overflowPolicy);
+        } else {
+            overflowPolicies.remove(id);
+        }
+        final EventBuffer events = buffers.get(id);
+        if (events != null) {
+            events.setOverflowPolicy(overflowPolicies.getOrDefault(id, this.overflowPolicy));
+        }
+        return this;
+    }
+    
+    /**
+     * Returns the Journal, which every added event is appended to
+     *
+     * @return Journal (may be null)
+     */
+    public final Journal getJournal() {
+        return journal;
+    }
+    
+    /**
+     * Sets the Journal, which every added event is appended to
+     *
+     * @param journal Journal (may be null)
+     *
+     * @return A reference to this EventStore
+     */
+    public final EventStore setJournal(Journal journal) {
+        this.journal = journal;
+        return this;
+    }
+    
+    /**
+     * Returns the events of an Applet
+     *
+     * @param id Applet ID
+     *
+     * @return EventBuffer or null, if this Applet never received an event
+     */
+    public final EventBuffer get(String id) {
+        return buffers.get(id);
+    }
+    
+    /**
+     * Returns the events of an Applet and creates them if necessary
+     *
+     * @param id Applet ID
+     *
+     * @return EventBuffer
+     */
+    public final EventBuffer getOrCreate(String id) {
+        final EventBuffer events = buffers.get(id);
+        if (events != null) {
+            return events;
+        }
+        return buffers.computeIfAbsent(id, (key) -> new EventBuffer(key, capacities.getOrDefault(key, capacity), payloadBytes).setOverflowPolicy(overflowPolicies.getOrDefault(key, overflowPolicy)));
+    }
+    
+    /**
+     * Adds an event
+     *
+     * @param id Applet ID
+     * @param timestamp Time in milliseconds the event was received
+     * @param text Text of the event (may be null)
+     *
+     * @return Sequence number of the added event,
+     * {@link EventBuffer#DROPPED} or {@link EventBuffer#REJECTED}
+     */
+    public final long add(String id, long timestamp, String text) {
+        final EventBuffer events = getOrCreate(id);
+        final long sequence = events.add(timestamp, text);
+        if (sequence < EventBuffer.NO_SEQUENCE) {
+            return sequence;
+        }
+        final Journal temp = journal;
+        if (temp != null) {
+            temp.append(events.getID(), sequence, timestamp, text);
+        }
+        for (Consumer<EventBuffer> listener : listeners) {
+            try {
+                listener.accept(events);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+        return sequence;
+    }
+    
+    /**
+     * Adds a listener, which gets called with the EventBuffer of an Applet
+     * every time an event was added to it
+     *
+     * @param listener Listener
+     *
+     * @return A reference to this EventStore
+     */
+    public final EventStore addListener(Consumer<EventBuffer> listener) {
+        listeners.add(listener);
+        return this;
+    }
+    
+    /**
+     * Removes a listener
+     *
+     * @param listener Listener
+     *
+     * @return <tt>true</tt> if the listener was removed
+     */
+    public final boolean removeListener(Consumer<EventBuffer> listener) {
+        return listeners.remove(listener);
+    }
+    
+    /**
+     * Returns every EventBuffer
+     *
+     * @return EventBuffers
+     */
+    public final Collection<EventBuffer> getAll() {
+        return buffers.values();
+    }
+    
+    /**
+     * Removes every event of every Applet
+     */
+    public final void clear() {
+        buffers.values().forEach(EventBuffer::clear);
+    }
+    
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams events to subscribed Clients as Server-Sent Events
+ * <br>
+ * Every subscriber keeps one HTTP response open (e.g.
+ * "/requests/stream?ids=a,b&amp;client=c") and gets every new event written
+ * as one chunk as soon as it arrives. Writing happens on a small shared pool,
+ * so a slow subscriber never blocks the Thread adding the event.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class EventStreams implements HttpHandler {
+    
+    public static final String CONTEXT_SUFFIX = "/stream";
+    public static final long PING_PERIOD = 15000;
+    public static final int MAX_EVENTS_PER_WRITE = 100;
+    
+    private final EventStore events;
+    private final Subscriptions subscriptions;
+    private volatile Cluster cluster = null;
+    private final Map<String, Set<Stream>> streams = new ConcurrentHashMap<>();
+    private final ExecutorService writers = Executors.newFixedThreadPool(2, (runnable) -> {
+        final Thread thread = new Thread(runnable, "IFTTJ-EventStreams");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledExecutorService pings = null;
+    
+    /**
+     * Constructs a new EventStreams
+     *
+     * @param events EventStore to listen for
+     * @param subscriptions Subscriptions, which hold the cursors of the
+     * subscribers
+     */
+    public EventStreams(EventStore events, Subscriptions subscriptions) {
+        this.events = events;
+        this.subscriptions = subscriptions;
+        events.addListener(this::notify);
+    }
+    
+    /**
+     * Starts pinging the open streams every {@link #PING_PERIOD}, so idle
+     * subscribers are not expired (called by {@link Server#start(boolean)})
+     *
+     * @return A reference to this EventStreams
+     */
+    public final synchronized EventStreams start() {
+        if (pings == null) {
+            pings = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+                final Thread thread = new Thread(runnable, "IFTTJ-EventStreams-Pings");
+                thread.setDaemon(true);
+                return thread;
+            });
+            pings.scheduleAtFixedRate(this::ping, PING_PERIOD, PING_PERIOD, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+    
+    /**
+     * Returns the Cluster, which owns the Applets
+     *
+     * @return Cluster or null
+     */
+    public final Cluster getCluster() {
+        return cluster;
+    }
+    
+    /**
+     * Sets the Cluster, which owns the Applets, so streams of Applets owned
+     * by another node are answered with 421 (Misdirected Request) and the
+     * topology
+     *
+     * @param cluster Cluster or null
+     *
+     * @return A reference to this EventStreams
+     */
+    public final EventStreams setCluster(Cluster cluster) {
+        this.cluster = cluster;
+        return this;
+    }
+    
+    /**
+     * Returns the number of open streams
+     *
+     * @return Number of open streams
+     */
+    public final int size() {
+        return (int) streams.values().stream().flatMap(Set::stream).distinct().count();
+    }
+    
+    @Override
+    public final void handle(HttpExchange exchange) throws IOException {
+        final Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        final String ids = query.get("ids");
+        if (ids == null || ids.isEmpty()) {
+            reply(exchange, 400, "Missing ids!");
+            return;
+        }
+        final Cluster temp = cluster;
+        if (temp != null) {
+            for (String id : ids.split(",")) {
+                if (!temp.isLocal(id)) {
+                    reply(exchange, 421, temp.getTopology());
+                    return;
+                }
+            }
+        }
+        final String clientID = query.getOrDefault("client", exchange.getRemoteAddress().getAddress().getHostAddress());
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        final Stream stream = new Stream(subscriptions.get(clientID, System.currentTimeMillis()), ids.split(","), exchange);
+        for (String id : stream.ids) {
+            streams.computeIfAbsent(id, (key) -> ConcurrentHashMap.newKeySet()).add(stream);
+        }
+        stream.schedule(); //Sends the pending events
+    }
+    
+    /**
+     * Closes every stream
+     */
+    public final void clear() {
+        streams.values().forEach((set) -> set.forEach(this::close));
+    }
+    
+    private final void notify(EventBuffer buffer) {
+        final Set<Stream> set = streams.get(buffer.getID());
+        if (set != null) {
+            set.forEach(Stream::schedule);
+        }
+    }
+    
+    private final void ping() {
+        final long now = System.currentTimeMillis();
+        streams.values().stream().flatMap(Set::stream).distinct().forEach((stream) -> writers.execute(() -> {
+            stream.subscriber.touch(now);
+            synchronized (stream) {
+                try {
+                    stream.os.write(": ping\n\n".getBytes(StandardCharsets.UTF_8));
+                    stream.os.flush();
+                } catch (Exception ex) {
+                    close(stream);
+                }
+            }
+        }));
+    }
+    
+    private final void close(Stream stream) {
+        if (!stream.closed.compareAndSet(false, true)) {
+            return;
+        }
+        for (String id : stream.ids) {
+            final Set<Stream> set = streams.get(id);
+            if (set != null) {
+                set.remove(stream);
+            }
+        }
+        stream.exchange.close();
+    }
+    
+    private static final void reply(HttpExchange exchange, int responseCode, String output) throws IOException {
+        final byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(responseCode, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+    
+    private static final Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        final Map<String, String> output = new HashMap<>();
+        if (query == null) {
+            return output;
+        }
+        for (String parameter : query.split("&")) {
+            final int index = parameter.indexOf('=');
+            if (index > 0) {
+                output.put(URLDecoder.decode(parameter.substring(0, index), "UTF-8"), URLDecoder.decode(parameter.substring(index + 1), "UTF-8"));
+            }
+        }
+        return output;
+    }
+    
+    /**
+     * Encodes an event as a Server-Sent Event
+     *
+     * @param event Event
+     * @param sb StringBuilder to append to
+     *
+     * @return The given StringBuilder
+     */
+    public static final StringBuilder encode(Event event, StringBuilder sb) {
+        sb.append("id: ").append(event.getSequence()).append('\n');
+        sb.append("event: ").append(event.getID()).append('\n');
+        if (event.getData() != null) {
+            for (String line : event.getData().split("\n", -1)) {
+                sb.append("data: ").append(line).append('\n');
+            }
+        }
+        return sb.append('\n');
+    }
+    
+    private final class Stream implements Runnable {
+        
+        private final Subscriber subscriber;
+        private final String[] ids;
+        private final HttpExchange exchange;
+        private final OutputStream os;
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        
+        private Stream(Subscriber subscriber, String[] ids, HttpExchange exchange) {
+            this.subscriber = subscriber;
+            this.ids = ids;
+            this.exchange = exchange;
+            this.os = exchange.getResponseBody();
+        }
+        
+        private final void schedule() {
+            if (!closed.get() && scheduled.compareAndSet(false, true)) {
+                writers.execute(this);
+            }
+        }
+        
+        @Override
+        public final void run() {
+            scheduled.set(false);
+            final List<EventBuffer> buffers = new ArrayList<>(ids.length);
+            for (String id : ids) {
+                final EventBuffer buffer = events.get(id);
+                if (buffer != null) {
+                    buffers.add(buffer);
+                }
+            }
+            synchronized (this) {
+                try {
+                    List<Event> output;
+                    while (!closed.get() && !(output = subscriber.poll(buffers, MAX_EVENTS_PER_WRITE)).isEmpty()) {
+                        final StringBuilder sb = new StringBuilder();
+                        output.forEach((event) -> encode(event, sb));
+                        os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                        os.flush();
+                    }
+                    subscriber.touch(System.currentTimeMillis());
+                } catch (Exception ex) {
+                    close(this);
+                }
+            }
+        }
+        
+    }
+    
+}
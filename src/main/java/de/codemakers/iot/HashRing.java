@@ -0,0 +1,236 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Immutable consistent hash ring, which maps Applet IDs to the nodes
+ * ("host:port") of a {@link Cluster}
+ * <br>
+ * Every node is placed {@link #VIRTUAL_NODES} times on the ring, an Applet
+ * ID belongs to the first node after its own hash. So adding or removing a
+ * node only moves the Applets of that node, and Servers and Clients knowing
+ * the same nodes always agree on the owner without asking each other.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class HashRing {
+    
+    public static final int VIRTUAL_NODES = 128;
+    
+    private final List<String> nodes;
+    private final long[] hashes;
+    private final String[] owners;
+    
+    /**
+     * Constructs a new HashRing
+     *
+     * @param nodes Nodes ("host:port", at least one)
+     */
+    public HashRing(Collection<String> nodes) {
+        if (nodes == null || nodes.isEmpty()) {
+            throw new IllegalArgumentException("A HashRing needs at least one node");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(nodes)));
+        final int size = this.nodes.size() * VIRTUAL_NODES;
+        final long[] points = new long[size];
+        for (int i = 0; i < this.nodes.size(); i++) {
+            for (int j = 0; j < VIRTUAL_NODES; j++) {
+                points[i * VIRTUAL_NODES + j] = hash(this.nodes.get(i) + "#" + j);
+            }
+        }
+        final Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            final int result = Long.compareUnsigned(points[a], points[b]);
+            return result != 0 ? result : Integer.compare(a, b); //Collisions are resolved by the node order, so every ring is the same
+        });
+        hashes = new long[size];
+        owners = new String[size];
+        for (int i = 0; i < size; i++) {
+            hashes[i] = points[order[i]];
+            owners[i] = this.nodes.get(order[i] / VIRTUAL_NODES);
+        }
+    }
+    
+    /**
+     * Returns the nodes
+     *
+     * @return Sorted nodes
+     */
+    public final List<String> getNodes() {
+        return nodes;
+    }
+    
+    /**
+     * Returns the node owning an Applet
+     *
+     * @param id Applet ID
+     *
+     * @return Node ("host:port")
+     */
+    public final String getOwner(String id) {
+        final long hash = hash(id);
+        int low = 0;
+        int high = hashes.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (Long.compareUnsigned(hashes[middle], hash) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return owners[low == hashes.length ? 0 : low];
+    }
+    
+    /**
+     * Returns the share of the ring, which is owned by a node
+     *
+     * @param node Node ("host:port")
+     *
+     * @return Share between 0 and 1
+     */
+    public final double getShare(String node) {
+        double share = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (owners[i].equals(node)) {
+                final long previous = hashes[i == 0 ? hashes.length - 1 : i - 1];
+                share += toDouble(hashes[i] - previous) / Math.pow(2, 64);
+            }
+        }
+        return share;
+    }
+    
+    /**
+     * Hashes the UTF-8 bytes of a text with 64 bit FNV-1a and mixes the
+     * result (like the finalizer of MurmurHash3), so similar texts are spread
+     * over the whole ring
+     * <br>
+     * The text is encoded while it is hashed, so hashing an Applet ID with
+     * every request does not allocate anything.
+     *
+     * @param text Text
+     *
+     * @return Hash
+     */
+    static final long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                hash = fnv(hash, c);
+            } else if (c < 0x800) {
+                hash = fnv(fnv(hash, 0xC0 | (c >> 6)), 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                hash = fnv(fnv(fnv(fnv(hash, 0xF0 | (codePoint >> 18)), 0x80 | ((codePoint >> 12) & 0x3F)), 0x80 | ((codePoint >> 6) & 0x3F)), 0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                hash = fnv(hash, '?'); //Like String.getBytes for unpaired surrogates
+            } else {
+                hash = fnv(fnv(fnv(hash, 0xE0 | (c >> 12)), 0x80 | ((c >> 6) & 0x3F)), 0x80 | (c & 0x3F));
+            }
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+    
+    private static final long fnv(long hash, int b) {
+        return (hash ^ (b & 0xFF)) * 0x100000001b3L;
+    }
+    
+    private static final double toDouble(long unsigned) {
+        return unsigned >= 0 ? unsigned : (unsigned >>> 1) * 2.0 + (unsigned & 1);
+    }
+    
+    @Override
+    public final boolean equals(Object object) {
+        return this == object || (object instanceof HashRing && nodes.equals(((HashRing) object).nodes));
+    }
+    
+    @Override
+    public final int hashCode() {
+        return nodes.hashCode();
+    }
+    
+    /**
+     * Returns the nodes separated by commas (the format of
+     * {@link Request.Command#GET_TOPOLOGY})
+     *
+     * @return Nodes separated by commas
+     */
+    @Override
+    public final String toString() {
+        return String.join(",", nodes);
+    }
+    
+    /**
+     * Parses nodes separated by commas
+     *
+     * @param nodes Nodes separated by commas
+     *
+     * @return HashRing or null, if there are no nodes
+     */
+    public static final HashRing parse(String nodes) {
+        final List<String> temp = parseNodes(nodes);
+        return temp.isEmpty() ? null : new HashRing(temp);
+    }
+    
+    /**
+     * Parses and validates nodes separated by commas
+     *
+     * @param nodes Nodes separated by commas ("host:port")
+     *
+     * @return Nodes
+     *
+     * @throws IllegalArgumentException If a node is not "host:port"
+     */
+    public static final List<String> parseNodes(String nodes) {
+        final List<String> temp = new ArrayList<>();
+        if (nodes == null) {
+            return temp;
+        }
+        for (String node : nodes.split(",")) {
+            node = node.trim();
+            if (node.isEmpty()) {
+                continue;
+            }
+            final int colon = node.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Invalid node: " + node);
+            }
+            final int port = Integer.parseInt(node.substring(colon + 1));
+            if (port <= 0 || port > 65535) {
+                throw new IllegalArgumentException("Invalid port: " + node);
+            }
+            temp.add(node);
+        }
+        return temp;
+    }
+    
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with a fixed relative precision (like an
+ * HdrHistogram)
+ * <br>
+ * Every power of two is split into {@link #SUB_BUCKETS} linear buckets, so a
+ * recorded value is counted with an error of at most 1/32 (about 3%). Values
+ * from 0 to 2^{@link #MAX_EXPONENT} (about 4.9 hours in nanoseconds) are
+ * counted exactly in their bucket, larger values in the last one. Recording
+ * is one atomic increment plus two {@link LongAdder}s and never allocates.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class Histogram {
+    
+    public static final int SUB_BUCKET_BITS = 5;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    public static final int MAX_EXPONENT = 44;
+    
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+    
+    /**
+     * Records a value
+     *
+     * @param value Value (e.g. a duration in nanoseconds, negative values are
+     * recorded as 0)
+     */
+    public final void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long temp;
+        while (value > (temp = max.get()) && !max.compareAndSet(temp, value)) {
+            //Retried, only happens while the maximum grows
+        }
+    }
+    
+    /**
+     * Records the time since the given start
+     *
+     * @param start Start time from {@link System#nanoTime()}
+     */
+    public final void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+    
+    /**
+     * Returns the number of recorded values
+     *
+     * @return Count
+     */
+    public final long getCount() {
+        return count.sum();
+    }
+    
+    /**
+     * Returns the sum of all recorded values
+     *
+     * @return Sum
+     */
+    public final long getSum() {
+        return sum.sum();
+    }
+    
+    /**
+     * Returns the largest recorded value
+     *
+     * @return Maximum (0 if nothing was recorded)
+     */
+    public final long getMax() {
+        return max.get();
+    }
+    
+    /**
+     * Returns the mean of all recorded values
+     *
+     * @return Mean (0 if nothing was recorded)
+     */
+    public final double getMean() {
+        final long temp = count.sum();
+        return temp == 0 ? 0 : (double) sum.sum() / temp;
+    }
+    
+    /**
+     * Returns the value at the given percentile
+     *
+     * @param percentile Percentile (0 to 100)
+     *
+     * @return Highest value of the bucket, which contains the percentile (0
+     * if nothing was recorded)
+     */
+    public final long getValueAtPercentile(double percentile) {
+        long total = 0;
+        final long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE, max.get());
+            }
+        }
+        return max.get();
+    }
+    
+    /**
+     * Clears every recorded value (values recorded meanwhile may be lost)
+     */
+    public final void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+    
+    static final int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+    
+    static final long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (1L << exponent) | ((long) (index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS));
+    }
+    
+    @Override
+    public final String toString() {
+        return "Histogram{" + "count=" + getCount() + ", mean=" + getMean() + ", p50=" + getValueAtPercentile(50) + ", p99=" + getValueAtPercentile(99) + ", max=" + getMax() + '}';
+    }
+    
+}
@@ -15,25 +15,19 @@
  */
 package de.codemakers.iot;
 
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
-import java.net.URL;
-import java.util.AbstractMap;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 /**
  * If This Than Java (IFTTT for Java)
@@ -42,36 +36,72 @@ import java.util.stream.IntStream;
  */
 public class IFTTJ {
     
-    public static final String IFTTT_TRIGGER_ENDPOINT = "https://maker.ifttt.com/trigger/%s/with/key/%s";
+    public static final String IFTTT_TRIGGER_PATH = "/trigger/%s/with/key/%s";
+    public static String IFTTT_TRIGGER_BASE_URL = "https://maker.ifttt.com";
     public static String KEY = null;
+    /**
+     * Maximum age of the events in milliseconds, which is only read, when
+     * the state of the Server is created
+     *
+     * @deprecated Changing it later has no effect, use
+     * {@link #getRetention()} and
+     * {@link Retention#setDefaultPolicy(RetentionPolicy)} instead
+     */
+    @Deprecated
     public static long MAX_EVENT_TIME = 5000;
+    /**
+     * Maximum idle time of a Client in milliseconds, which is only read, when
+     * the state of the Server is created
+     *
+     * @deprecated Changing it later has no effect, use
+     * {@link #getRetention()} and {@link Retention#setMaxIdleTime(long)}
+     * instead
+     */
+    @Deprecated
     public static long MAX_CLIENT_AFK_TIME = 60000;
-    public static final String INET_ADDRESS_OUT = getOutInetAddress();
+    public static final AddressResolver ADDRESS = new AddressResolver();
+    /**
+     * The address known when this class was loaded (the configured address
+     * or a local address, the probe is not awaited)
+     *
+     * @deprecated Use {@link #ADDRESS} or {@link #getOutInetAddress()}, which
+     * also know the probed public address
+     */
+    @Deprecated
+    public static final String INET_ADDRESS_OUT = ADDRESS.getAddress();
     public static String URL_SUFFIX = "requests";
     private static Server SERVER;
-    private static final Map.Entry<Long, String> EMPTY_EVENT = new AbstractMap.SimpleEntry<>(0L, null);
+    private static Journal JOURNAL;
+    public static final String IFTTT_APPLET_PREFIX = "IFTTT_APPLET_";
     public static final String IFTTT_APPLET_REGEX = "IFTTT_APPLET_([A-Za-z0-9]+)(?: (.*))?";
     public static final Pattern IFTTT_APPLET_REGEX_PATTERN = Pattern.compile(IFTTT_APPLET_REGEX);
     public static final String IFTTJ_GET_EVENTS_PREFIX = "IFTTJ_GET_EVENTS_";
-    public static final Map<String, LinkedList<Map.Entry<Long, String>>> EVENTS = new ConcurrentHashMap<>();
-    public static final Map<InetSocketAddress, Long> CLIENTS_LAST_UPDATE_TIMES = new ConcurrentHashMap<>();
+    public static final String IFTTJ_GET_BATCH_PREFIX = "IFTTJ_GET_BATCH_";
+    public static final String IFTTJ_WAIT_EVENTS_PREFIX = "IFTTJ_WAIT_EVENTS_";
+    public static final String IFTTJ_GET_TOPOLOGY = "IFTTJ_GET_TOPOLOGY";
+    public static final String IFTTJ_FORWARDED_PREFIX = "IFTTJ_FORWARDED ";
+    public static final int MAX_BATCH_SIZE = 1000;
+    public static long MAX_WAIT_TIME = 60000;
+    public static long MAX_POLL_DELAY = PollHint.DEFAULT_MAX_DELAY;
+    public static final int MAX_INTERNED_IDS = 65536;
+    private static final ThreadLocal<JSONEncoder> JSON_ENCODERS = ThreadLocal.withInitial(JSONEncoder::new);
+    public static final Metrics METRICS = new Metrics("ifttj");
     private static boolean DEBUG = false;
+    private static volatile AccessLog ACCESS_LOG = null;
+    private static volatile Cluster CLUSTER = null;
     
     /**
      * Main method, which contains helpfull Information, when the JAR is started
      * lonely
      *
-     * @param args Arguments (Port and Debug mode)
+     * @param args Arguments (Port, Debug mode and options like "threads=8")
      *
      * @throws Exception Exception
      */
     public static void main(String[] args) throws Exception {
-        if (INET_ADDRESS_OUT == null) {
-            System.err.println("Maybe you have no internet connection? Program stopped!");
-            return;
-        }
         int port = 8080;
         int maxSize = 100;
+        final Map<String, String> options = new HashMap<>();
         if (args != null && args.length > 0) {
             for (String temp : args) {
                 try {
@@ -83,14 +113,33 @@ public class IFTTJ {
                 } catch (Exception ex) {
                     if (temp.equalsIgnoreCase("debug")) {
                         DEBUG = true;
+                    } else if (temp.indexOf('=') > 0) {
+                        options.put(temp.substring(0, temp.indexOf('=')).toLowerCase(), temp.substring(temp.indexOf('=') + 1));
                     }
                 }
             }
         }
-        System.out.println("Running now as an IFTTT Server (IP: " + INET_ADDRESS_OUT + " Port: " + port + ").");
+        try {
+            ADDRESS.setConfiguredAddress(options.get("address"));
+            if (options.containsKey("probe")) {
+                ADDRESS.setProbeURL(options.get("probe").equalsIgnoreCase("off") ? null : options.get("probe"));
+            }
+            ADDRESS.setProbeTimeout(Integer.parseInt(options.getOrDefault("probe_timeout", "" + ADDRESS.getProbeTimeout())));
+        } catch (Exception ex) {
+            System.err.println("Invalid option: " + ex.getMessage());
+            return;
+        }
+        final String address = ADDRESS.getAddress();
+        final int serverPort = port;
+        ADDRESS.resolveAsync().thenAccept((resolved) -> {
+            if (!resolved.equals(address)) {
+                System.out.println("Resolved the public IP " + resolved + ", copy this URL into the IFTTT Applet URL field instead: " + String.format("http://%s:%d/%s", resolved, serverPort, URL_SUFFIX));
+            }
+        });
+        System.out.println("Running now as an IFTTT Server (IP: " + address + " Port: " + port + ").");
         System.out.println("-------------------------------------------------------------------------------------------------------------------------------------------");
         System.out.println("To connect an IFTTT Applet to this Server, you need to create a new Applet and select 'Webhooks' (Make a web request) as the 'that' Action.");
-        System.out.println("Copy this URL into the IFTTT Applet URL field: " + String.format("http://%s:%d/%s", INET_ADDRESS_OUT, port, URL_SUFFIX));
+        System.out.println("Copy this URL into the IFTTT Applet URL field: " + String.format("http://%s:%d/%s", address, port, URL_SUFFIX));
         System.out.println("For the next step you will need the Applet ID, which you will get AFTER you have created the Action.");
         System.out.println("Just edit your Applet after you have finished the Applet and you will see the ID at the top of the page.");
         System.out.println("Set the Method to 'POST' (Content Type does not matter) and write 'IFTTT_APPLET_{your Applet ID} [Some Text]' in the Body field.");
@@ -102,48 +151,117 @@ public class IFTTJ {
         System.out.println("The Client can automatically monitor every registered Handler or just the ones you want to be monitored.");
         System.out.println("---------------------------------------------------------------------");
         System.out.println("Example Code:");
-        System.out.printf("    final Client client = new Client(\"%1$s\", %2$d); //Creates a new Client, which connects to %1$s:%2$d\n" + "    client.addHandler(\"{APPLET ID}\", (id, event) -> {\n" + "        System.out.println(\"Do Something\");\n" + "    }); //Adds a handler that listens for {APPLET ID}\n" + "    client.start(500); //Starts the client and checks every 500ms for updates\n", INET_ADDRESS_OUT, port);
+        System.out.printf("    final Client client = new Client(\"%1$s\", %2$d); //Creates a new Client, which connects to %1$s:%2$d\n" + "    client.addHandler(\"{APPLET ID}\", (id, event) -> {\n" + "        System.out.println(\"Do Something\");\n" + "    }); //Adds a handler that listens for {APPLET ID}\n" + "    client.start(500); //Starts the client and checks every 500ms for updates\n", address, port);
         System.out.println("-------------------------------------------------------------------------------------------------------------------------------------------");
         System.out.println("You can stop the server by typing 'stop' or 'shutdown'.");
         System.out.println("You can start the server by typing 'start' or 'boot'.");
         System.out.println("You can restart the server by typing 'restart' or 'reboot'.");
         System.out.println("You can exit toggle the debug mode by typing 'd' or 'debug'");
         System.out.println("You can exit the program by typing 'q', 'quit' or 'exit'");
+        System.out.println("You can list the retention policies by typing 'retention' and change them by typing 'retention {APPLET ID} {max age in ms} {max count} [drop_oldest|drop_newest|reject]' or 'retention {APPLET ID} reset'.");
+        System.out.println("You can print the metrics by typing 'metrics', they are also served via JMX and at " + String.format("http://127.0.0.1:%d%s", port + 1, Metrics.CONTEXT) + " (change it with 'metrics_address=<host:port>' or 'metrics_address=off').");
+        System.out.println("You can add the metrics of every Applet with 'metrics_applets=on', they are labeled with a hash of the Applet ID, because the ID is the only secret of an Applet.");
+        System.out.println("You can set the public address with 'address=<ip or host>', change the probe with 'probe=<url>' (or 'probe=off') and 'probe_timeout=" + AddressResolver.DEFAULT_PROBE_TIMEOUT + "' (ms).");
+        System.out.println("You can keep the events and cursors across restarts with 'journal=<directory>', replayed events do not age while the Server was down, so Clients have the rest of 'max_age' to catch up after a restart (raise it for a longer replay window).");
+        System.out.println("You can log every request with 'access_log=<file>' (rotated with 'access_log_size=" + AccessLog.DEFAULT_MAX_FILE_SIZE + "' bytes and 'access_log_files=" + AccessLog.DEFAULT_MAX_FILES + "'), debug mode logs them to the console.");
+        System.out.println("You can change the default retention with 'max_age=" + MAX_EVENT_TIME + "', 'max_count=" + maxSize + "' and 'max_idle=" + MAX_CLIENT_AFK_TIME + "' (Client idle time in ms).");
+        System.out.println("You can cap the delay, which the Server suggests to polling Clients, with 'max_poll_delay=" + MAX_POLL_DELAY + "' (ms).");
+        System.out.println("You can choose what happens, when Clients fall behind, with 'overflow=drop_oldest' (drop_oldest, drop_newest or reject with 429).");
+        System.out.println("You can keep the texts of the retained events in direct memory instead of the heap with 'payload_bytes=<bytes per event>' (useful with a large 'max_count').");
+        System.out.println("You can run several Servers as a cluster with 'cluster=<host:port>,<host:port>' (this Server is found by its port or set with 'node=<host:port>'), 'cluster_secret=<secret>' (shared by every node, required), 'routing=forward' (forward or redirect) and 'cluster_check=" + Cluster.DEFAULT_CHECK_INTERVAL + "' (ms).");
+        System.out.println("You can list the nodes of the cluster by typing 'topology' and change them by typing 'topology {host:port},{host:port}'.");
+        System.out.println("You can limit the requests with 'source_rate=<per second>' and 'source_burst=<requests>' per remote address, 'applet_rate' and 'applet_burst' per Applet and 'max_concurrent=<requests>' (0 is unlimited).");
+        System.out.println("You can list the limits by typing 'limits' and change them by typing 'limits source|applet {rate} [burst]' or 'limits concurrency {max}'.");
+        System.out.println("You can tune the server with arguments like 'executor=fixed' (direct, fixed, work_stealing or virtual), 'threads=8', 'queue=1024', 'backlog=128' or 'transport=nio' (http or nio), the http transport sends responses without delay with the JVM option '-D" + Server.NO_DELAY_PROPERTY + "=true'.");
         System.out.println("-------------------------------------------------------------------------------------------------------------------------------------------");
-        SERVER = new Server(port);
-        SERVER.setHandler((inetSocketAddress, input) -> {
-            int responseCode = 200;
-            String output = input;
-            final long now = System.currentTimeMillis();
+        try {
+            ServerHolder.RETENTION.setDefaultPolicy(new RetentionPolicy(Long.parseLong(options.getOrDefault("max_age", "" + MAX_EVENT_TIME)), Integer.parseInt(options.getOrDefault("max_count", "" + maxSize)), OverflowPolicy.valueOf(options.getOrDefault("overflow", "" + OverflowPolicy.DROP_OLDEST).toUpperCase().replace('-', '_'))));
+            ServerHolder.RETENTION.setMaxIdleTime(Long.parseLong(options.getOrDefault("max_idle", "" + MAX_CLIENT_AFK_TIME)));
+            MAX_POLL_DELAY = Long.parseLong(options.getOrDefault("max_poll_delay", "" + MAX_POLL_DELAY));
+            ServerHolder.ADMISSION.setSourceLimit(Double.parseDouble(options.getOrDefault("source_rate", "0")), Double.parseDouble(options.getOrDefault("source_burst", options.getOrDefault("source_rate", "1"))));
+            ServerHolder.ADMISSION.setAppletLimit(Double.parseDouble(options.getOrDefault("applet_rate", "0")), Double.parseDouble(options.getOrDefault("applet_burst", options.getOrDefault("applet_rate", "1"))));
+            ServerHolder.ADMISSION.setMaxConcurrent(Integer.parseInt(options.getOrDefault("max_concurrent", "0")));
+            ServerHolder.EVENTS.setPayloadBytes(Integer.parseInt(options.getOrDefault("payload_bytes", "" + ServerHolder.EVENTS.getPayloadBytes())));
+            SERVER = new Server(port, Integer.parseInt(options.getOrDefault("backlog", "" + Server.DEFAULT_BACKLOG)));
+            SERVER.setTransport(Server.Transport.valueOf(options.getOrDefault("transport", "" + SERVER.getTransport()).toUpperCase()));
+            SERVER.setExecutor(Server.ExecutorType.valueOf(options.getOrDefault("executor", "" + SERVER.getExecutorType()).toUpperCase().replace('-', '_')), Integer.parseInt(options.getOrDefault("threads", "" + Server.DEFAULT_THREADS)), Integer.parseInt(options.getOrDefault("queue", "" + Server.DEFAULT_MAX_QUEUED)));
+        } catch (Exception ex) {
+            System.err.println("Invalid option: " + ex.getMessage());
+            return;
+        }
+        if (options.containsKey("journal")) {
             try {
-                if (input.startsWith(IFTTJ_GET_EVENTS_PREFIX)) {
-                    final LinkedList<Map.Entry<Long, String>> events = EVENTS.get(input.substring(IFTTJ_GET_EVENTS_PREFIX.length()));
-                    if (events != null) {
-                        clearOldData(events, now);
-                        output = getEvent(events, CLIENTS_LAST_UPDATE_TIMES.get(inetSocketAddress)).getValue();
-                    } else {
-                        output = null;
-                    }
-                    CLIENTS_LAST_UPDATE_TIMES.put(inetSocketAddress, now);
-                } else {
-                    final Matcher matcher = IFTTT_APPLET_REGEX_PATTERN.matcher(input);
-                    if (matcher.find()) {
-                        final String id = matcher.group(1);
-                        final String data = matcher.group(2);
-                        EVENTS.computeIfAbsent(id, (key) -> newLinkedList(maxSize)).add(new AbstractMap.SimpleEntry<>(now, data));
-                    } else {
-                        responseCode = 404;
-                        output = "Not recognized any commands!";
-                    }
+                JOURNAL = new Journal(new File(options.get("journal")));
+                System.out.println("Replayed " + JOURNAL.open(ServerHolder.EVENTS, ServerHolder.SUBSCRIPTIONS) + " journal records.");
+                ServerHolder.RETENTION.setReplayed(JOURNAL.getReplayedUntil(), JOURNAL.getReplayedAt());
+                Runtime.getRuntime().addShutdownHook(new Thread(JOURNAL::close, "IFTTJ-Journal-Shutdown"));
+            } catch (Exception ex) {
+                System.err.println("Could not open the journal: " + ex);
+                return;
+            }
+        }
+        if (options.containsKey("cluster")) {
+            try {
+                final List<String> nodes = HashRing.parseNodes(options.get("cluster"));
+                final String self = options.containsKey("node") ? options.get("node") : Cluster.findSelf(nodes, port);
+                if (self == null) {
+                    System.err.println("Could not find this Server in the cluster, set it with 'node=<host:port>'");
+                    return;
                 }
-                if (DEBUG) {
-                    System.out.println(String.format("[SERVER] Request from '%s': \"%s\", response: \"%s\"", inetSocketAddress.getAddress(), input, output));
+                if (!options.containsKey("cluster_secret")) {
+                    System.err.println("The nodes of the cluster have to share a secret, set it with 'cluster_secret=<secret>'");
+                    return;
                 }
+                final Cluster cluster = new Cluster(self, nodes, options.get("cluster_secret")).setRouting(Cluster.Routing.valueOf(options.getOrDefault("routing", "" + Cluster.Routing.FORWARD).toUpperCase()));
+                cluster.start(Long.parseLong(options.getOrDefault("cluster_check", "" + Cluster.DEFAULT_CHECK_INTERVAL)));
+                METRICS.gauge("cluster_nodes_up", "Reachable nodes of the cluster", cluster::getUpCount);
+                METRICS.counter("cluster_failovers_total", "Forwards to a node, which was not reachable", cluster::getFailoverCount);
+                ServerHolder.STREAMS.setCluster(cluster);
+                SERVER.setPeerSecret(options.get("cluster_secret"));
+                CLUSTER = cluster;
+                System.out.println("Running as node " + self + " of the cluster " + cluster.getNodes() + ".");
             } catch (Exception ex) {
-                ex.printStackTrace();
+                System.err.println("Invalid option: " + ex.getMessage());
+                return;
             }
-            return new AbstractMap.SimpleEntry<>(responseCode, output);
-        });
+        }
+        METRICS.counter("requests_rejected_total", "Requests rejected, because the Server was busy", SERVER::getRejectedCount);
+        if (JOURNAL != null) {
+            METRICS.counter("journal_written_total", "Written journal records", JOURNAL::getWrittenCount);
+            METRICS.counter("journal_dropped_total", "Dropped journal records", JOURNAL::getDroppedCount);
+        }
+        if (options.getOrDefault("metrics_applets", "off").equalsIgnoreCase("on")) {
+            ServerHolder.addAppletMetrics();
+        }
+        METRICS.registerMBean("Server");
+        if (options.containsKey("access_log")) {
+            try {
+                final AccessLog accessLog = new AccessLog(new File(options.get("access_log")), Long.parseLong(options.getOrDefault("access_log_size", "" + AccessLog.DEFAULT_MAX_FILE_SIZE)), Integer.parseInt(options.getOrDefault("access_log_files", "" + AccessLog.DEFAULT_MAX_FILES))).start();
+                Runtime.getRuntime().addShutdownHook(new Thread(accessLog::close, "IFTTJ-Access-Log-Shutdown"));
+                METRICS.counter("access_log_written_total", "Written access log records", accessLog::getWrittenCount);
+                METRICS.counter("access_log_dropped_total", "Dropped access log records", accessLog::getDroppedCount);
+                ACCESS_LOG = accessLog;
+            } catch (Exception ex) {
+                System.err.println("Could not open the access log: " + ex);
+                return;
+            }
+        } else if (DEBUG) {
+            setDebug(true);
+        }
+        ServerHolder.RETENTION.start(Retention.DEFAULT_INTERVAL);
+        SERVER.setRequestHandler(IFTTJ::handle);
+        SERVER.setAdmission(ServerHolder.ADMISSION);
+        SERVER.setStreams(ServerHolder.STREAMS);
+        final String metricsAddress = options.getOrDefault("metrics_address", "127.0.0.1:" + (port + 1));
+        if (!metricsAddress.equalsIgnoreCase("off")) {
+            try {
+                final int colon = metricsAddress.lastIndexOf(':');
+                SERVER.setMetrics(METRICS, new InetSocketAddress(metricsAddress.substring(0, colon), Integer.parseInt(metricsAddress.substring(colon + 1))));
+            } catch (Exception ex) {
+                System.err.println("Invalid option: metrics_address=" + metricsAddress);
+                return;
+            }
+        }
         SERVER.start(true);
         new Thread(() -> {
             try {
@@ -165,8 +283,17 @@ public class IFTTJ {
                         SERVER.stop(false);
                         SERVER.start(false);
                         System.out.println("Server restarted!");
+                    } else if (line.equalsIgnoreCase("metrics")) {
+                        System.out.print(METRICS.toPrometheus());
+                    } else if (line.toLowerCase().startsWith("retention")) {
+                        handleRetention(line);
+                    } else if (line.toLowerCase().startsWith("topology")) {
+                        handleTopology(line);
+                    } else if (line.toLowerCase().startsWith("limits")) {
+                        handleLimits(line);
                     } else if (line.equalsIgnoreCase("d") || line.equalsIgnoreCase("debug")) {
                         DEBUG = !DEBUG;
+                        setDebug(DEBUG);
                         System.out.println("Toggled Debug Mode to " + DEBUG);
                     } else {
                         System.err.println("Input not recognized: " + line);
@@ -180,57 +307,324 @@ public class IFTTJ {
         }).start();
     }
     
-    public static final String getOutInetAddress() {
+    static final Map.Entry<Integer, String> handle(InetSocketAddress inetSocketAddress, ByteBuffer buffer, int from, int to) {
+        return handle(inetSocketAddress, buffer, from, to, false, false);
+    }
+    
+    static final Map.Entry<Integer, String> handle(InetSocketAddress inetSocketAddress, ByteBuffer buffer, int from, int to, boolean binary, boolean peer) {
+        final long start = System.nanoTime();
+        final long now = System.currentTimeMillis();
+        final Request request = ServerHolder.REQUESTS.get();
+        final Response response = ServerHolder.RESPONSES.get().set(200, null);
+        final Cluster cluster = CLUSTER;
         try {
-            final URL url = new URL("http://checkip.amazonaws.com");
-            final BufferedReader br = new BufferedReader(new InputStreamReader(url.openStream()));
-            final String ip = br.lines().collect(Collectors.joining());
-            br.close();
-            return ip;
+            final boolean parsed = request.parse(buffer, from, to);
+            ServerHolder.REQUESTS_BY_COMMAND[request.getCommand().ordinal()].increment();
+            if (!parsed) {
+                response.set(request.getCommand() == Request.Command.UNKNOWN ? 404 : 400, request.getError());
+            } else if (cluster != null && request.getCommand() != Request.Command.TRIGGER && isMisdirected(cluster, request)) {
+                ServerHolder.MISDIRECTED.increment();
+                response.set(421, cluster.getTopology());
+            } else {
+                switch (request.getCommand()) {
+                    case TRIGGER:
+                        final String id = request.getID(0);
+                        final String data = request.getData();
+                        if (cluster == null || (request.isForwarded() && peer) || cluster.isLocal(id)) {
+                            trigger(id, now, data, response);
+                        } else if (cluster.getRouting() == Cluster.Routing.REDIRECT) {
+                            ServerHolder.REDIRECTED.increment();
+                            response.set(307, null).setLocation(cluster.getURL(cluster.getOwner(id)));
+                        } else {
+                            ServerHolder.FORWARDED.increment();
+                            final DeferredResponse forwarded = cluster.forward(id, IFTTJ_FORWARDED_PREFIX + IFTTT_APPLET_PREFIX + id + (data == null ? "" : " " + data), () -> trigger(id, now, data, new Response()));
+                            log(inetSocketAddress, request, now, start, AccessLog.FORWARDED);
+                            return forwarded;
+                        }
+                        break;
+                    case GET_EVENTS:
+                        final EventBuffer events = ServerHolder.EVENTS.get(request.getID(0));
+                        final Subscriber subscriber = events == null ? null : getSubscriber(request, inetSocketAddress, now);
+                        final Event event = events == null ? null : subscriber.poll(events);
+                        (event == null ? ServerHolder.POLL_MISSES : ServerHolder.POLL_HITS).increment();
+                        if (binary) {
+                            frame(response, event == null ? Collections.emptyList() : Collections.singletonList(event));
+                        } else {
+                            response.set(200, event == null ? null : event.getData());
+                        }
+                        hint(response, subscriber, events, now);
+                        break;
+                    case GET_BATCH:
+                        final Subscriber batchSubscriber = getSubscriber(request, inetSocketAddress, now);
+                        final List<Event> batch = batchSubscriber.poll(getBuffers(request), Math.min(request.getMaxSize(), MAX_BATCH_SIZE));
+                        (batch.isEmpty() ? ServerHolder.POLL_MISSES : ServerHolder.POLL_HITS).increment();
+                        if (binary) {
+                            frame(response, batch);
+                        } else {
+                            response.set(200, EventBatch.encode(batch));
+                        }
+                        for (int i = 0; i < request.getIDCount(); i++) {
+                            hint(response, batchSubscriber, ServerHolder.EVENTS.get(request.getID(i)), now);
+                        }
+                        break;
+                    case WAIT_EVENTS:
+                        final Map.Entry<Integer, String> deferredResponse = ServerHolder.LONG_POLLS.poll(getSubscriber(request, inetSocketAddress, now), request.getIDs(), Math.min(request.getMaxSize(), MAX_BATCH_SIZE), Math.min(request.getTimeout(), MAX_WAIT_TIME), binary);
+                        (deferredResponse instanceof DeferredResponse || isEmpty(deferredResponse) ? ServerHolder.POLL_MISSES : ServerHolder.POLL_HITS).increment();
+                        log(inetSocketAddress, request, now, start, deferredResponse instanceof DeferredResponse ? AccessLog.PARKED : deferredResponse.getKey());
+                        return deferredResponse;
+                    case GET_TOPOLOGY:
+                        response.set(200, cluster == null ? null : cluster.getTopology());
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (NumberFormatException ex) {
+            response.set(400, ex.getMessage());
         } catch (Exception ex) {
             ex.printStackTrace();
         }
-        return null;
+        log(inetSocketAddress, request, now, start, response.getKey());
+        return response;
+    }
+    
+    private static final Response trigger(String id, long now, String data, Response response) {
+        if (!ServerHolder.ADMISSION.admitTrigger(id)) {
+            return response.set(429, "Applet triggered too often, try again later!");
+        }
+        ServerHolder.EVENTS_RECEIVED.increment();
+        try {
+            if (ServerHolder.EVENTS.add(id, now, data) == EventBuffer.REJECTED) {
+                return response.set(429, "Subscribers are behind, try again later!");
+            }
+        } catch (IllegalArgumentException ex) { //The text does not fit into the PayloadLog (e.g. invalid bytes were decoded to 3 byte replacement characters)
+            return response.set(413, "Request too large!");
+        }
+        return response.set(200, null);
+    }
+    
+    /**
+     * Sets an {@link EventFrame} as the body, which is reused by the next
+     * request of this Thread (like the Response itself)
+     */
+    private static final Response frame(Response response, List<Event> events) {
+        final EventFrame frame = ServerHolder.FRAMES.get().encode(events);
+        return response.set(200, frame.getBuffer(), frame.length());
+    }
+    
+    /**
+     * Adds the {@link PollHint} of one requested Applet
+     */
+    private static final void hint(Response response, Subscriber subscriber, EventBuffer events, long now) {
+        if (events == null) {
+            response.addHint(0, MAX_POLL_DELAY, 0);
+            return;
+        }
+        final long pending = Math.max(0, events.getHeadSequence() - Math.max(subscriber.getCursor(events.getID()), events.getTailSequence() - 1));
+        final long newest = events.getNewestTimestamp();
+        response.addHint(pending, PollHint.suggestDelay(pending, newest, now, MAX_POLL_DELAY), newest);
+    }
+    
+    private static final boolean isEmpty(Map.Entry<Integer, String> response) {
+        if (response instanceof BinaryBody && ((BinaryBody) response).getBody() != null) {
+            return EventFrame.isEmpty(((BinaryBody) response).getBody(), ((BinaryBody) response).getBodyLength());
+        }
+        return response.getValue() == null || response.getValue().isEmpty();
+    }
+    
+    private static final boolean isMisdirected(Cluster cluster, Request request) {
+        for (int i = 0; i < request.getIDCount(); i++) {
+            if (!cluster.isLocal(request.getID(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static final void log(InetSocketAddress inetSocketAddress, Request request, long now, long start, int responseCode) {
+        final long latency = System.nanoTime() - start;
+        ServerHolder.REQUEST_TIME.record(latency);
+        final AccessLog accessLog = ACCESS_LOG;
+        if (accessLog != null) {
+            accessLog.log(now, inetSocketAddress, request.getCommand(), request.getIDCount() > 0 ? request.getID(0) : null, request.getIDCount(), responseCode, latency);
+        }
+    }
+    
+    private static final Subscriber getSubscriber(Request request, InetSocketAddress inetSocketAddress, long now) {
+        return ServerHolder.SUBSCRIPTIONS.get(request.getClientID() != null ? request.getClientID() : inetSocketAddress.getAddress().getHostAddress(), now);
+    }
+    
+    /**
+     * Resolves the public address of this Server via {@link #ADDRESS} and
+     * waits for it
+     *
+     * @return Configured, probed or local address
+     */
+    public static final String getOutInetAddress() {
+        return ADDRESS.resolve();
+    }
+    
+    /**
+     * Returns the Cluster, which this Server is a node of
+     *
+     * @return Cluster or null
+     */
+    public static final Cluster getCluster() {
+        return CLUSTER;
+    }
+    
+    /**
+     * Returns the events received by this Server (they are created on first
+     * use)
+     *
+     * @return EventStore
+     */
+    public static final EventStore getEvents() {
+        return ServerHolder.EVENTS;
+    }
+    
+    /**
+     * Returns the Clients subscribed to this Server (they are created on
+     * first use)
+     *
+     * @return Subscriptions
+     */
+    public static final Subscriptions getSubscriptions() {
+        return ServerHolder.SUBSCRIPTIONS;
     }
     
-    private static final Map.Entry<Long, String> getEvent(LinkedList<Map.Entry<Long, String>> events, long lastUpdateTime) {
-        return events.stream().filter((event) -> event.getKey() > lastUpdateTime).findFirst().orElse(EMPTY_EVENT);
+    /**
+     * Returns the retention of this Server (it is created on first use)
+     *
+     * @return Retention
+     */
+    public static final Retention getRetention() {
+        return ServerHolder.RETENTION;
+    }
+    
+    /**
+     * Returns the admission control of this Server (it is created on first
+     * use)
+     *
+     * @return Admission
+     */
+    public static final Admission getAdmission() {
+        return ServerHolder.ADMISSION;
+    }
+    
+    /**
+     * Returns the queue, which sends the IFTTT triggers (it is created on
+     * first use)
+     *
+     * @return Triggers
+     */
+    public static final Triggers getTriggers() {
+        return TriggersHolder.TRIGGERS;
     }
     
-    private static final void clearOldData(LinkedList<Map.Entry<Long, String>> events, long now) {
-        events.removeIf((event) -> (now - event.getKey()) >= MAX_EVENT_TIME);
-        CLIENTS_LAST_UPDATE_TIMES.entrySet().removeIf((entry) -> (now - entry.getValue()) >= MAX_CLIENT_AFK_TIME);
+    private static final List<EventBuffer> getBuffers(Request request) {
+        final List<EventBuffer> buffers = new ArrayList<>(request.getIDCount());
+        for (int i = 0; i < request.getIDCount(); i++) {
+            final EventBuffer events = ServerHolder.EVENTS.get(request.getID(i));
+            if (events != null) {
+                buffers.add(events);
+            }
+        }
+        return buffers;
     }
     
-    private static final LinkedList<Map.Entry<Long, String>> newLinkedList(final int maxSize) {
-        return new LinkedList<Map.Entry<Long, String>>() {
-            
-            @Override
-            public final boolean addAll(Collection<? extends Map.Entry<Long, String>> c) {
-                if (c != null) {
-                    c.forEach(this::add);
+    /**
+     * Logs every request to {@link System#out} in debug mode, unless there
+     * is an access log file
+     */
+    private static final synchronized void setDebug(boolean debug) {
+        try {
+            if (debug && ACCESS_LOG == null) {
+                ACCESS_LOG = new AccessLog().start();
+            } else if (!debug && ACCESS_LOG != null && ACCESS_LOG.getFile() == null) {
+                ACCESS_LOG.close();
+                ACCESS_LOG = null;
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+    
+    private static final void handleRetention(String line) {
+        final String[] split = line.trim().split("\\s+");
+        try {
+            if (split.length == 3 && split[2].equalsIgnoreCase("reset")) {
+                ServerHolder.RETENTION.setPolicy(ServerHolder.APPLET_IDS.intern(split[1]), null);
+            } else if (split.length == 4 || split.length == 5) {
+                final String id = ServerHolder.APPLET_IDS.intern(split[1]);
+                final RetentionPolicy policy = new RetentionPolicy(Long.parseLong(split[2]), Integer.parseInt(split[3]), split.length == 5 ? OverflowPolicy.valueOf(split[4].toUpperCase().replace('-', '_')) : ServerHolder.RETENTION.getDefaultPolicy().getOverflowPolicy());
+                ServerHolder.RETENTION.setPolicy(id, policy);
+                if (policy.getMaxCount() > ServerHolder.EVENTS.getCapacity(id)) {
+                    System.out.println("Applet " + id + " already retains at most " + ServerHolder.EVENTS.getCapacity(id) + " events!");
                 }
-                return c != null;
+            } else if (split.length != 1) {
+                System.err.println("Usage: retention [{APPLET ID} ({max age in ms} {max count} [drop_oldest|drop_newest|reject]|reset)]");
+                return;
             }
-            
-            @Override
-            public final boolean add(Map.Entry<Long, String> e) {
-                if (size() >= maxSize) {
-                    remove();
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Invalid retention: " + ex.getMessage());
+            return;
+        }
+        System.out.println("Default: " + ServerHolder.RETENTION.getDefaultPolicy() + ", max Client idle time: " + ServerHolder.RETENTION.getMaxIdleTime() + "ms");
+        ServerHolder.RETENTION.getPolicies().forEach((id, policy) -> System.out.println(id + ": " + policy));
+    }
+    
+    private static final void handleLimits(String line) {
+        final String[] split = line.trim().split("\\s+");
+        try {
+            if (split.length == 3 && split[1].equalsIgnoreCase("concurrency")) {
+                ServerHolder.ADMISSION.setMaxConcurrent(Integer.parseInt(split[2]));
+            } else if ((split.length == 3 || split.length == 4) && (split[1].equalsIgnoreCase("source") || split[1].equalsIgnoreCase("applet"))) {
+                final double rate = Double.parseDouble(split[2]);
+                final double burst = split.length == 4 ? Double.parseDouble(split[3]) : Math.max(1, rate);
+                if (split[1].equalsIgnoreCase("source")) {
+                    ServerHolder.ADMISSION.setSourceLimit(rate, burst);
+                } else {
+                    ServerHolder.ADMISSION.setAppletLimit(rate, burst);
                 }
-                return super.add(e);
+            } else if (split.length != 1) {
+                System.err.println("Usage: limits [source|applet {rate per second (0 is unlimited)} [burst]] or limits [concurrency {max (0 is unlimited)}]");
+                return;
             }
-            
-            @Override
-            public final String toString() {
-                return stream().map(Object::toString).collect(Collectors.joining("#"));
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Invalid limit: " + ex.getMessage());
+            return;
+        }
+        System.out.println(ServerHolder.ADMISSION);
+    }
+    
+    private static final void handleTopology(String line) {
+        final Cluster cluster = CLUSTER;
+        if (cluster == null) {
+            System.err.println("This Server is not a part of a cluster, start it with 'cluster=<host:port>,<host:port>'");
+            return;
+        }
+        final String[] split = line.trim().split("\\s+");
+        try {
+            if (split.length == 2) {
+                cluster.setNodes(HashRing.parseNodes(split[1]));
+            } else if (split.length != 1) {
+                System.err.println("Usage: topology [{host:port},{host:port}]");
+                return;
             }
-            
-        };
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Invalid topology: " + ex.getMessage());
+            return;
+        }
+        final HashRing ring = cluster.getRing();
+        System.out.println("This node: " + cluster.getSelf() + ", routing: " + cluster.getRouting());
+        cluster.getNodes().forEach((node) -> System.out.println(node + ": " + (cluster.isUp(node) ? String.format("up, owns %.1f%% of the Applets", ring.getShare(node) * 100) : "down")));
     }
     
     /**
      * First set your IFTTT Webhook Key with 'IFTTJ.KEY = "Your Key";'
+     * <br>
+     * Waits for {@link #triggerAsync(String, Object...)}.
      *
      * @param event Event name
      * @param values Optionally up to 3 values
@@ -238,27 +632,96 @@ public class IFTTJ {
      * @return <tt>true</tt> if the Applet was successfully triggered
      */
     public static final boolean trigger(String event, Object... values) {
-        try {
-            final CloseableHttpClient client = HttpClients.createDefault();
-            final HttpPost post = new HttpPost(String.format(IFTTT_TRIGGER_ENDPOINT, event, KEY));
-            final StringEntity entity = new StringEntity(toJSON(values));
-            System.out.println("VALUES: " + toJSON(values));
-            post.setEntity(entity);
-            post.setHeader("Accept", "application/json");
-            post.setHeader("Content-type", "application/json");
-            final CloseableHttpResponse response = client.execute(post);
-            final int responseCode = response.getStatusLine().getStatusCode();
-            response.close();
-            client.close();
-            return responseCode == 200;
-        } catch (Exception ex) {
-            ex.printStackTrace();
-            return false;
+        return triggerAsync(event, values).join();
+    }
+    
+    /**
+     * First set your IFTTT Webhook Key with 'IFTTJ.KEY = "Your Key";'
+     * <br>
+     * The trigger is sent to {@link #IFTTT_TRIGGER_BASE_URL} via
+     * {@link #getTriggers()}, which rate limits and retries it.
+     *
+     * @param event Event name
+     * @param values Optionally up to 3 values
+     *
+     * @return Future, which completes with <tt>true</tt> if the Applet was
+     * successfully triggered
+     */
+    public static final CompletableFuture<Boolean> triggerAsync(String event, Object... values) {
+        return getTriggers().submit(IFTTT_TRIGGER_BASE_URL + String.format(IFTTT_TRIGGER_PATH, event, KEY), JSON_ENCODERS.get().encodeValues(values).toByteArray());
+    }
+    
+    /**
+     * Holds the state of the Server, so Clients and triggers do not create
+     * it (it is created on first use)
+     */
+    private static final class ServerHolder {
+        
+        private static final EventStore EVENTS = new EventStore(100);
+        private static final Subscriptions SUBSCRIPTIONS = new Subscriptions();
+        private static final LongPolls LONG_POLLS = new LongPolls(EVENTS);
+        private static final EventStreams STREAMS = new EventStreams(EVENTS, SUBSCRIPTIONS);
+        private static final Admission ADMISSION = new Admission();
+        private static final Retention RETENTION = new Retention(EVENTS, SUBSCRIPTIONS, new RetentionPolicy(MAX_EVENT_TIME, EVENTS.getCapacity()), MAX_CLIENT_AFK_TIME);
+        private static final Interner APPLET_IDS = new Interner(MAX_INTERNED_IDS);
+        private static final ThreadLocal<Request> REQUESTS = ThreadLocal.withInitial(() -> new Request(APPLET_IDS));
+        private static final ThreadLocal<Response> RESPONSES = ThreadLocal.withInitial(Response::new);
+        private static final ThreadLocal<EventFrame> FRAMES = ThreadLocal.withInitial(EventFrame::new);
+        private static final LongAdder[] REQUESTS_BY_COMMAND = new LongAdder[Request.Command.values().length];
+        private static final Histogram REQUEST_TIME = METRICS.histogram("request_seconds", "Time to handle a request (parked long polls until they were parked)");
+        private static final LongAdder EVENTS_RECEIVED = METRICS.counter("events_received_total", "Received IFTTT events");
+        private static final Metrics.LabeledCounter POLLS = METRICS.counter("polls_total", "Polls, which returned events (hit) or none (miss)", "result");
+        private static final LongAdder POLL_HITS = POLLS.get("hit");
+        private static final LongAdder POLL_MISSES = POLLS.get("miss");
+        private static final Metrics.LabeledCounter ROUTED = METRICS.counter("cluster_requests_total", "Requests for Applets owned by another node, which were forwarded, redirected or misdirected (polls)", "result");
+        private static final LongAdder FORWARDED = ROUTED.get("forwarded");
+        private static final LongAdder REDIRECTED = ROUTED.get("redirected");
+        private static final LongAdder MISDIRECTED = ROUTED.get("misdirected");
+        
+        static {
+            final Metrics.LabeledCounter requests = METRICS.counter("requests_total", "Handled requests", "command");
+            for (Request.Command command : Request.Command.values()) {
+                REQUESTS_BY_COMMAND[command.ordinal()] = requests.get(command.name());
+            }
+            METRICS.gauge("queue_depth", "Retained events", () -> EVENTS.getAll().stream().mapToLong(EventBuffer::size).sum());
+            METRICS.gauge("clients", "Subscribed Clients", () -> SUBSCRIPTIONS.getAll().size());
+            METRICS.counter("events_evicted_total", "Events evicted by the retention", RETENTION::getEvictedCount);
+            METRICS.counter("events_dropped_total", "Events dropped or rejected, because the Subscribers were behind", () -> EVENTS.getAll().stream().mapToLong(EventBuffer::getDroppedCount).sum());
+            METRICS.gauge("events_skipped", "Events overwritten or evicted before the current Subscribers received them", () -> SUBSCRIPTIONS.getAll().stream().mapToLong(Subscriber::getSkippedCount).sum());
+            METRICS.counter("clients_expired_total", "Idle Clients expired by the retention", RETENTION::getExpiredCount);
+            METRICS.counter("requests_shed_total", "Requests rejected by the rate limits (source, applet) or the concurrency limit", "reason", (consumer) -> {
+                consumer.accept("source", ADMISSION.getRejectedSourceCount());
+                consumer.accept("applet", ADMISSION.getRejectedAppletCount());
+                consumer.accept("concurrency", ADMISSION.getRejectedConcurrencyCount());
+            });
+            METRICS.gauge("requests_in_flight", "Admitted requests, which were neither answered nor parked yet", ADMISSION::getInFlight);
+            METRICS.gauge("payload_memory_bytes", "Direct memory allocated for the texts of the retained events", EVENTS::getPayloadMemory);
         }
+        
+        /**
+         * Adds the metrics of every Applet, labeled with a hash of its ID,
+         * so scraping the metrics does not reveal the IDs
+         */
+        private static final void addAppletMetrics() {
+            METRICS.counter("applet_events_total", "Events added per Applet", "applet", (consumer) -> EVENTS.getAll().forEach((buffer) -> consumer.accept(Metrics.hash(buffer.getID()), buffer.getHeadSequence())));
+            METRICS.gauge("applet_queue_depth", "Retained events per Applet", "applet", (consumer) -> EVENTS.getAll().forEach((buffer) -> consumer.accept(Metrics.hash(buffer.getID()), buffer.size())));
+            METRICS.counter("applet_events_dropped_total", "Events dropped or rejected per Applet, because the Subscribers were behind", "applet", (consumer) -> EVENTS.getAll().forEach((buffer) -> consumer.accept(Metrics.hash(buffer.getID()), buffer.getDroppedCount())));
+        }
+        
     }
     
-    private static final String toJSON(Object... values) {
-        return IntStream.range(0, values.length).boxed().collect(Collectors.toMap((i) -> "value" + (i + 1), (i) -> values[i])).entrySet().stream().map((entry) -> "\"" + entry.getKey() + "\":\"" + entry.getValue() + "\"").collect(Collectors.joining(",", "{", "}"));
+    private static final class TriggersHolder {
+        
+        private static final Triggers TRIGGERS = new Triggers();
+        
+        static {
+            METRICS.counter("triggers_sent_total", "Successfully sent IFTTT triggers", TRIGGERS::getSentCount);
+            METRICS.counter("triggers_failed_total", "Finally failed IFTTT triggers", TRIGGERS::getFailedCount);
+            METRICS.counter("triggers_retried_total", "Retried IFTTT triggers", TRIGGERS::getRetryCount);
+            METRICS.gauge("triggers_queued", "Queued IFTTT triggers", TRIGGERS::getQueuedCount);
+            METRICS.histogram("trigger_seconds", "Time from queueing an IFTTT trigger until it was sent or failed", TRIGGERS.getLatency());
+        }
+        
     }
     
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Interns IDs read straight from request bytes, so a known ID is looked up
+ * without creating a String
+ * <br>
+ * Lookups are lock-free. New IDs are added under a lock into a free slot of
+ * the open addressed table, which is copied only when it doubles, so adding
+ * costs amortized constant time. Interned IDs are never removed, so only
+ * bounded sets of IDs (e.g. Applet IDs) should be interned.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class Interner {
+    
+    private final int maxSize;
+    private volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<>(16);
+    private int size = 0;
+    
+    /**
+     * Constructs a new Interner
+     *
+     * @param maxSize Maximum number of interned IDs (IDs beyond are still
+     * returned, but not interned)
+     */
+    public Interner(int maxSize) {
+        this.maxSize = maxSize;
+    }
+    
+    /**
+     * Returns the number of interned IDs
+     *
+     * @return Number of interned IDs
+     */
+    public final int size() {
+        return size;
+    }
+    
+    /**
+     * Returns the interned ID for some UTF-8 encoded bytes (absolute
+     * positions, the position of the buffer is not changed)
+     *
+     * @param buffer Buffer
+     * @param from First index (inclusive)
+     * @param to Last index (exclusive)
+     *
+     * @return ID
+     */
+    public final String intern(ByteBuffer buffer, int from, int to) {
+        final int hash = hash(buffer, from, to);
+        final Entry entry = find(table, buffer, from, to, hash);
+        if (entry != null) {
+            return entry.id;
+        }
+        final byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return add(bytes, hash);
+    }
+    
+    /**
+     * Returns the interned ID for some UTF-8 encoded bytes without interning
+     * a new ID (absolute positions, the position of the buffer is not
+     * changed)
+     *
+     * @param buffer Buffer
+     * @param from First index (inclusive)
+     * @param to Last index (exclusive)
+     *
+     * @return Interned ID or a new String, if the ID is not interned
+     */
+    public final String lookup(ByteBuffer buffer, int from, int to) {
+        final Entry entry = find(table, buffer, from, to, hash(buffer, from, to));
+        if (entry != null) {
+            return entry.id;
+        }
+        final byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Returns the interned ID for a String
+     *
+     * @param id ID
+     *
+     * @return Interned ID
+     */
+    public final String intern(String id) {
+        final ByteBuffer buffer = ByteBuffer.wrap(id.getBytes(StandardCharsets.UTF_8));
+        return intern(buffer, 0, buffer.capacity());
+    }
+    
+    private final synchronized String add(byte[] bytes, int hash) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final Entry entry = find(table, buffer, 0, bytes.length, hash);
+        if (entry != null) {
+            return entry.id;
+        }
+        final String id = new String(bytes, StandardCharsets.UTF_8);
+        if (size >= maxSize) {
+            return id;
+        }
+        if ((size + 1) * 2 > table.length()) {
+            final AtomicReferenceArray<Entry> temp = new AtomicReferenceArray<>(table.length() * 2);
+            for (int i = 0; i < table.length(); i++) {
+                final Entry old = table.get(i);
+                if (old != null) {
+                    put(temp, old);
+                }
+            }
+            table = temp;
+        }
+        put(table, new Entry(bytes, hash, id)); //Readers either see the new entry or stop at the empty slot before
+        size++;
+        return id;
+    }
+    
+    private static final void put(AtomicReferenceArray<Entry> table, Entry entry) {
+        int index = entry.hash & (table.length() - 1);
+        while (table.get(index) != null) {
+            index = (index + 1) & (table.length() - 1);
+        }
+        table.set(index, entry);
+    }
+    
+    private static final Entry find(AtomicReferenceArray<Entry> table, ByteBuffer buffer, int from, int to, int hash) {
+        int index = hash & (table.length() - 1);
+        Entry entry;
+        while ((entry = table.get(index)) != null) {
+            if (entry.hash == hash && entry.matches(buffer, from, to)) {
+                return entry;
+            }
+            index = (index + 1) & (table.length() - 1);
+        }
+        return null;
+    }
+    
+    private static final int hash(ByteBuffer buffer, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + buffer.get(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+    
+    private static final class Entry {
+        
+        private final byte[] bytes;
+        private final int hash;
+        private final String id;
+        
+        private Entry(byte[] bytes, int hash, String id) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.id = id;
+        }
+        
+        private final boolean matches(ByteBuffer buffer, int from, int to) {
+            if (to - from != bytes.length) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (buffer.get(from + i) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reusable encoder for IFTTT Webhook bodies
+ * <br>
+ * Writes <code>{"value1":"..","value2":"..","value3":".."}</code> in one pass
+ * as escaped UTF-8 into a byte buffer, which is reused for every body.
+ * Strings and other CharSequences are encoded char by char and Integers and
+ * Longs digit by digit, so no intermediate Strings are created for them. One
+ * JSONEncoder must only be used by one Thread at a time.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class JSONEncoder {
+    
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[][] KEYS = new byte[10][];
+    
+    static {
+        for (int i = 0; i < KEYS.length; i++) {
+            KEYS[i] = ("\"value" + (i + 1) + "\":\"").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+    
+    private byte[] bytes = new byte[256];
+    private int length = 0;
+    
+    /**
+     * Encodes the values of a trigger ("value1", "value2" and so on, in this
+     * order)
+     *
+     * @param values Values (null is encoded as "null")
+     *
+     * @return A reference to this JSONEncoder
+     */
+    public final JSONEncoder encodeValues(Object... values) {
+        length = 0;
+        put((byte) '{');
+        if (values != null) {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    put((byte) ',');
+                }
+                putKey(i);
+                putValue(values[i]);
+                put((byte) '"');
+            }
+        }
+        put((byte) '}');
+        return this;
+    }
+    
+    /**
+     * Returns the number of encoded bytes
+     *
+     * @return Length
+     */
+    public final int length() {
+        return length;
+    }
+    
+    /**
+     * Returns the internal buffer, which is only valid until the next call
+     * of {@link #encodeValues(Object...)}
+     *
+     * @return Buffer (the first {@link #length()} bytes are the encoded body)
+     */
+    public final byte[] getBuffer() {
+        return bytes;
+    }
+    
+    /**
+     * Returns a copy of the encoded body
+     *
+     * @return UTF-8 encoded JSON
+     */
+    public final byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+    
+    @Override
+    public final String toString() {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+    
+    private final void putKey(int index) {
+        if (index < KEYS.length) {
+            put(KEYS[index]);
+        } else {
+            put((byte) '"');
+            putASCII("value");
+            putLong(index + 1);
+            putASCII("\":\"");
+        }
+    }
+    
+    private final void putValue(Object value) {
+        if (value instanceof CharSequence) {
+            putEscaped((CharSequence) value);
+        } else if (value instanceof Integer || value instanceof Long) {
+            putLong(((Number) value).longValue());
+        } else {
+            putEscaped(String.valueOf(value));
+        }
+    }
+    
+    private final void putEscaped(CharSequence text) {
+        final int size = text.length();
+        ensureCapacity(length + size);
+        for (int i = 0; i < size; i++) {
+            final char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                put((byte) '\\');
+                put((byte) c);
+            } else if (c < 0x20) {
+                switch (c) {
+                    case '\n':
+                        putASCII("\\n");
+                        break;
+                    case '\r':
+                        putASCII("\\r");
+                        break;
+                    case '\t':
+                        putASCII("\\t");
+                        break;
+                    case '\b':
+                        putASCII("\\b");
+                        break;
+                    case '\f':
+                        putASCII("\\f");
+                        break;
+                    default:
+                        putASCII("\\u00");
+                        put(HEX[c >> 4]);
+                        put(HEX[c & 0xF]);
+                }
+            } else if (c < 0x80) {
+                put((byte) c);
+            } else if (c < 0x800) {
+                put((byte) (0xC0 | (c >> 6)));
+                put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < size && Character.isLowSurrogate(text.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                put((byte) (0xF0 | (codePoint >> 18)));
+                put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                put((byte) '?'); //Unpaired surrogate, like String.getBytes
+            } else {
+                put((byte) (0xE0 | (c >> 12)));
+                put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+    
+    private final void putLong(long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                putASCII(Long.toString(value));
+                return;
+            }
+            put((byte) '-');
+            value = -value;
+        }
+        if (value >= 10) {
+            putLong(value / 10);
+        }
+        put((byte) ('0' + value % 10));
+    }
+    
+    private final void putASCII(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            put((byte) text.charAt(i));
+        }
+    }
+    
+    private final void put(byte[] data) {
+        ensureCapacity(length + data.length);
+        System.arraycopy(data, 0, bytes, length, data.length);
+        length += data.length;
+    }
+    
+    private final void put(byte b) {
+        if (length == bytes.length) {
+            ensureCapacity(length + 1);
+        }
+        bytes[length++] = b;
+    }
+    
+    private final void ensureCapacity(int capacity) {
+        if (bytes.length < capacity) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+    
+}
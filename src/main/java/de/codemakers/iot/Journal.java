@@ -0,0 +1,581 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of events and Client cursors, so they survive a
+ * restart of the Server
+ * <br>
+ * Records are appended to memory-mapped segment files, which are shared by
+ * every Applet. Adding an event only queues its record, one writer Thread
+ * writes every queued record and forces them to disk at once (group commit).
+ * Cursors are written at most once per commit, no matter how often they
+ * moved. When there are too many full segments, the retained events and
+ * cursors are written again as a snapshot and the older segments are
+ * unmapped and deleted.
+ * <br>
+ * Record format: length (int), CRC32 of the following bytes (int), type
+ * (byte) and for events the sequence number (long), timestamp (long), Applet
+ * ID (unsigned short length + UTF-8) and text (int length, -1 for null +
+ * UTF-8), for cursors the sequence number (long), Client ID and Applet ID.
+ * A torn record at the end of a segment fails its checksum and ends the
+ * replay of that segment.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class Journal {
+    
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 4;
+    public static final int DEFAULT_MAX_PENDING = 65536;
+    public static final long FLUSH_INTERVAL = 10;
+    public static final String SEGMENT_SUFFIX = ".journal";
+    
+    private static final int MAGIC = 0x49465A4A;
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final byte TYPE_EVENT = 1;
+    private static final byte TYPE_CURSOR = 2;
+    private static final int MAX_ID_LENGTH = 0xFFFF;
+    private static final MethodHandle UNMAP = findUnmap();
+    
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Queue<Record> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger(0);
+    private final Set<Subscriber> dirty = ConcurrentHashMap.newKeySet();
+    private final Deque<Segment> sealed = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private EventStore events = null;
+    private Subscriptions subscriptions = null;
+    private Segment segment = null;
+    private long nextIndex = 0;
+    private int snapshotSegments = 0;
+    private long replayedUntil = 0;
+    private long replayedAt = 0;
+    private boolean uncommitted = false;
+    private char[] chars = new char[1024];
+    private Thread writer = null;
+    private volatile boolean closed = false;
+    
+    /**
+     * Constructs a new Journal with the default settings
+     *
+     * @param directory Directory of the segment files
+     */
+    public Journal(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+    
+    /**
+     * Constructs a new Journal
+     *
+     * @param directory Directory of the segment files
+     * @param segmentSize Size of one segment file in bytes
+     * @param maxSegments Number of full segments, which trigger a compaction
+     */
+    public Journal(File directory, int segmentSize, int maxSegments) {
+        if (segmentSize < 1024 || maxSegments <= 0) {
+            throw new IllegalArgumentException("segmentSize has to be at least 1024 and maxSegments positive");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+    }
+    
+    /**
+     * Returns the number of written records
+     *
+     * @return Number of written records
+     */
+    public final long getWrittenCount() {
+        return written.sum();
+    }
+    
+    /**
+     * Returns the number of records, which were dropped, because the writer
+     * could not keep up or a record was too large
+     *
+     * @return Number of dropped records
+     */
+    public final long getDroppedCount() {
+        return dropped.sum();
+    }
+    
+    /**
+     * Returns the number of commits (forces to disk)
+     *
+     * @return Number of commits
+     */
+    public final long getCommitCount() {
+        return commits.sum();
+    }
+    
+    /**
+     * Returns the number of segment files
+     *
+     * @return Number of segments
+     */
+    public final synchronized int getSegmentCount() {
+        return sealed.size() + (segment == null ? 0 : 1);
+    }
+    
+    /**
+     * Returns the time the newest replayed event was received
+     *
+     * @return Time in milliseconds (0 if no event was replayed)
+     */
+    public final synchronized long getReplayedUntil() {
+        return replayedUntil;
+    }
+    
+    /**
+     * Returns the time the segments were replayed
+     *
+     * @return Time in milliseconds (0 if the Journal was not opened yet)
+     */
+    public final synchronized long getReplayedAt() {
+        return replayedAt;
+    }
+    
+    /**
+     * Replays every segment into the EventStore and the Subscriptions, and
+     * then journals every new event and cursor of them
+     *
+     * @param events EventStore
+     * @param subscriptions Subscriptions
+     *
+     * @return Number of replayed records
+     *
+     * @throws IOException If the directory or a segment could not be opened
+     */
+    public final synchronized int open(EventStore events, Subscriptions subscriptions) throws IOException {
+        if (this.events != null) {
+            throw new IllegalStateException("Journal is already open");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        this.events = events;
+        this.subscriptions = subscriptions;
+        subscriptions.setCursorListener(dirty::add); //Before the replay, so the restored Subscribers get it too
+        final long now = System.currentTimeMillis();
+        replayedAt = now;
+        final Interner ids = new Interner(IFTTJ.MAX_INTERNED_IDS);
+        int replayed = 0;
+        for (File file : listSegments()) {
+            final Segment temp = Segment.read(file, Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length())));
+            replayed += replay(temp, ids, now);
+            sealed.addLast(temp);
+            nextIndex = temp.index + 1;
+        }
+        events.getAll().forEach(EventBuffer::trimGaps);
+        segment = Segment.create(new File(directory, String.format("%016d%s", nextIndex, SEGMENT_SUFFIX)), nextIndex++, segmentSize);
+        events.setJournal(this);
+        writer = new Thread(this::write, "IFTTJ-Journal-Writer");
+        writer.setDaemon(true);
+        writer.start();
+        return replayed;
+    }
+    
+    /**
+     * Queues an event record
+     * <br>
+     * This neither blocks nor wakes up the writer, which collects the records
+     * every {@link #FLUSH_INTERVAL} milliseconds. If the writer can not keep
+     * up, the record is dropped.
+     *
+     * @param id Applet ID
+     * @param sequence Sequence number
+     * @param timestamp Time in milliseconds the event was received
+     * @param text Text of the event (may be null)
+     */
+    public final void append(String id, long sequence, long timestamp, String text) {
+        if (closed || pendingCount.incrementAndGet() > DEFAULT_MAX_PENDING) {
+            pendingCount.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        pending.offer(new Record(id, sequence, timestamp, text));
+    }
+    
+    /**
+     * Writes every queued record, commits them and closes the segments
+     */
+    public final void close() {
+        final Thread temp;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            temp = writer;
+        }
+        if (temp != null) {
+            LockSupport.unpark(temp);
+            try {
+                temp.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (events != null) {
+                events.setJournal(null);
+                subscriptions.setCursorListener(null);
+            }
+            if (segment != null) {
+                segment.close();
+            }
+            sealed.forEach(Segment::close);
+        }
+    }
+    
+    private final File[] listSegments() {
+        final File[] files = directory.listFiles((dir, name) -> name.matches("\\d{16}" + Pattern.quote(SEGMENT_SUFFIX)));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, (file1, file2) -> file1.getName().compareTo(file2.getName()));
+        return files;
+    }
+    
+    private final int replay(Segment segment, Interner ids, long now) {
+        final ByteBuffer buffer = segment.buffer;
+        if (buffer.limit() < SEGMENT_HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            System.err.println("Skipped invalid journal segment " + segment.file);
+            return 0;
+        }
+        int replayed = 0;
+        int position = SEGMENT_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= buffer.limit()) {
+            final int length = buffer.getInt(position);
+            final int start = position + RECORD_HEADER_SIZE;
+            if (length <= 0 || length > buffer.limit() - start || checksum(buffer, start, length) != buffer.getInt(position + 4)) {
+                break;
+            }
+            final int end = start + length;
+            int index = start + 1;
+            final long sequence = buffer.getLong(index);
+            index += 8;
+            if (buffer.get(start) == TYPE_EVENT) {
+                final long timestamp = buffer.getLong(index);
+                index += 8;
+                final int idLength = buffer.getShort(index) & 0xFFFF;
+                index += 2;
+                final String id = ids.intern(buffer, index, index + idLength);
+                index += idLength;
+                final int textLength = buffer.getInt(index);
+                index += 4;
+                String text = null;
+                if (textLength >= 0) {
+                    if (chars.length < textLength) {
+                        chars = new char[textLength];
+                    }
+                    text = new String(chars, 0, Utf8.decode(buffer, index, Math.min(index + textLength, end), chars));
+                }
+                events.getOrCreate(id).restore(sequence, timestamp, text);
+                replayedUntil = Math.max(replayedUntil, timestamp);
+            } else if (buffer.get(start) == TYPE_CURSOR) {
+                final int clientLength = buffer.getShort(index) & 0xFFFF;
+                index += 2;
+                final String clientID = ids.intern(buffer, index, index + clientLength);
+                index += clientLength;
+                final int idLength = buffer.getShort(index) & 0xFFFF;
+                index += 2;
+                subscriptions.get(clientID, now).setCursor(ids.intern(buffer, index, index + idLength), sequence);
+            }
+            replayed++;
+            position = end;
+        }
+        return replayed;
+    }
+    
+    private final void write() {
+        while (true) {
+            final boolean stop = closed;
+            synchronized (this) {
+                try {
+                    Record record;
+                    while ((record = pending.poll()) != null) {
+                        pendingCount.decrementAndGet();
+                        writeEvent(record.id, record.sequence, record.timestamp, record.text);
+                    }
+                    final Iterator<Subscriber> iterator = dirty.iterator();
+                    while (iterator.hasNext()) {
+                        final Subscriber subscriber = iterator.next();
+                        iterator.remove(); //Removed before writing, so a cursor moving meanwhile marks it again
+                        writeCursors(subscriber);
+                    }
+                    commit();
+                    if (sealed.size() > maxSegments + snapshotSegments) {
+                        compact();
+                    }
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+            if (stop) {
+                return;
+            }
+            LockSupport.parkNanos(FLUSH_INTERVAL * 1_000_000);
+        }
+    }
+    
+    /**
+     * Writes the retained events and the cursors into new segments and deletes
+     * every older segment
+     */
+    private final void compact() throws IOException {
+        roll();
+        final long first = segment.index;
+        for (EventBuffer buffer : events.getAll()) {
+            final long head = buffer.getHeadSequence();
+            for (long sequence = buffer.getTailSequence(); sequence <= head; sequence++) {
+                final Event event = buffer.get(sequence);
+                if (event != null) {
+                    writeEvent(event.getID(), sequence, event.getTimestamp(), event.getData());
+                }
+            }
+        }
+        subscriptions.getAll().forEach(this::writeCursors);
+        commit();
+        snapshotSegments = (int) (segment.index - first);
+        while (!sealed.isEmpty() && sealed.peekFirst().index < first) {
+            sealed.pollFirst().delete();
+        }
+    }
+    
+    private final void commit() {
+        if (uncommitted) {
+            segment.buffer.force();
+            uncommitted = false;
+            commits.increment();
+        }
+    }
+    
+    private final void writeEvent(String id, long sequence, long timestamp, String text) throws IOException {
+        final int idLength = Utf8.length(id);
+        final int textLength = text == null ? -1 : Utf8.length(text);
+        final ByteBuffer buffer = reserve(idLength > MAX_ID_LENGTH ? -1 : 1 + 8 + 8 + 2 + idLength + 4 + Math.max(0, textLength));
+        if (buffer == null) {
+            return;
+        }
+        final int start = buffer.position();
+        buffer.put(TYPE_EVENT).putLong(sequence).putLong(timestamp).putShort((short) idLength);
+        Utf8.encode(id, buffer);
+        buffer.putInt(textLength);
+        if (text != null) {
+            Utf8.encode(text, buffer);
+        }
+        finish(buffer, start);
+    }
+    
+    private final void writeCursors(Subscriber subscriber) {
+        final int clientLength = Utf8.length(subscriber.getID());
+        subscriber.forEachCursor((id, sequence) -> {
+            try {
+                final int idLength = Utf8.length(id);
+                final ByteBuffer buffer = reserve(clientLength > MAX_ID_LENGTH || idLength > MAX_ID_LENGTH ? -1 : 1 + 8 + 2 + clientLength + 2 + idLength);
+                if (buffer == null) {
+                    return;
+                }
+                final int start = buffer.position();
+                buffer.put(TYPE_CURSOR).putLong(sequence).putShort((short) clientLength);
+                Utf8.encode(subscriber.getID(), buffer);
+                buffer.putShort((short) idLength);
+                Utf8.encode(id, buffer);
+                finish(buffer, start);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        });
+    }
+    
+    /**
+     * Returns the buffer of the current segment positioned at the start of a
+     * new record with the given length and rolls the segment if necessary
+     *
+     * @return Buffer or null, if the record is too large (or invalid)
+     */
+    private final ByteBuffer reserve(int length) throws IOException {
+        if (length < 0 || RECORD_HEADER_SIZE + length > segmentSize - SEGMENT_HEADER_SIZE) {
+            dropped.increment();
+            return null;
+        }
+        if (segment.buffer.remaining() < RECORD_HEADER_SIZE + length) {
+            roll();
+        }
+        segment.buffer.position(segment.buffer.position() + RECORD_HEADER_SIZE);
+        return segment.buffer;
+    }
+    
+    /**
+     * Writes the checksum and the length of the record ending at the
+     * position of the buffer (the length last, so a torn record is never
+     * valid)
+     */
+    private final void finish(ByteBuffer buffer, int start) {
+        final int length = buffer.position() - start;
+        buffer.putInt(start - 4, checksum(buffer, start, length));
+        buffer.putInt(start - 8, length);
+        uncommitted = true;
+        written.increment();
+    }
+    
+    private final int checksum(ByteBuffer buffer, int start, int length) {
+        final ByteBuffer temp = buffer.duplicate();
+        temp.limit(start + length);
+        temp.position(start);
+        crc.reset();
+        crc.update(temp);
+        return (int) crc.getValue();
+    }
+    
+    /**
+     * Looks up Unsafe.invokeCleaner (Java 9+) or DirectBuffer.cleaner().clean()
+     * (Java 8)
+     */
+    private static final MethodHandle findUnmap() {
+        final MethodType type = MethodType.methodType(void.class, ByteBuffer.class);
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.publicLookup().findVirtual(unsafeClass, "invokeCleaner", type).bindTo(field.get(null));
+        } catch (Exception ex) {
+            //Java 8
+        }
+        try {
+            final Class<?> directBufferClass = Class.forName("sun.nio.ch.DirectBuffer");
+            final Class<?> cleanerClass = Class.forName("sun.misc.Cleaner");
+            final MethodHandle cleaner = MethodHandles.publicLookup().findVirtual(directBufferClass, "cleaner", MethodType.methodType(cleanerClass));
+            final MethodHandle clean = MethodHandles.publicLookup().findVirtual(cleanerClass, "clean", MethodType.methodType(void.class));
+            return MethodHandles.filterReturnValue(cleaner, clean).asType(type);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+    
+    private final void roll() throws IOException {
+        commit();
+        segment.close();
+        sealed.addLast(segment);
+        segment = Segment.create(new File(directory, String.format("%016d%s", nextIndex, SEGMENT_SUFFIX)), nextIndex++, segmentSize);
+    }
+    
+    private static final class Segment {
+        
+        private final File file;
+        private final long index;
+        private final MappedByteBuffer buffer;
+        
+        private Segment(File file, long index, MappedByteBuffer buffer) {
+            this.file = file;
+            this.index = index;
+            this.buffer = buffer;
+        }
+        
+        private static final Segment create(File file, long index, int size) throws IOException {
+            try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                final MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.putInt(MAGIC).putInt(VERSION);
+                return new Segment(file, index, buffer);
+            }
+        }
+        
+        private static final Segment read(File file, long index) throws IOException {
+            try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+                return new Segment(file, index, randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length()));
+            }
+        }
+        
+        /**
+         * The mapping stays valid after the file was closed (until the
+         * segment is deleted)
+         */
+        private final void close() {
+            if (!buffer.isReadOnly()) {
+                buffer.force();
+            }
+        }
+        
+        /**
+         * Unmaps the segment right away (otherwise the garbage collector
+         * releases the mapping and on some systems the file can not be
+         * deleted before), the buffer must not be used anymore
+         */
+        private final void delete() {
+            if (UNMAP != null) {
+                try {
+                    UNMAP.invokeExact((ByteBuffer) buffer);
+                } catch (Throwable ex) {
+                    ex.printStackTrace();
+                }
+            }
+            if (!file.delete()) {
+                System.err.println("Could not delete journal segment " + file);
+            }
+        }
+        
+    }
+    
+    private static final class Record {
+        
+        private final String id;
+        private final long sequence;
+        private final long timestamp;
+        private final String text;
+        
+        private Record(String id, long sequence, long timestamp, String text) {
+            this.id = id;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+        
+    }
+    
+}
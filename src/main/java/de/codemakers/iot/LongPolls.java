@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parks poll requests until an event arrives or a timeout expires
+ * <br>
+ * Parked requests are {@link DeferredResponse}s, so they do not hold a
+ * Thread. They get completed directly by the Thread adding the event. The
+ * queue of parked requests of an Applet ID is removed with its last request.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class LongPolls {
+    
+    private static final ThreadLocal<EventFrame> FRAMES = ThreadLocal.withInitial(EventFrame::new);
+    
+    private final EventStore events;
+    private final Map<String, Queue<Waiter>> waiters = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1, (runnable) -> {
+        final Thread thread = new Thread(runnable, "IFTTJ-LongPolls");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    /**
+     * Constructs a new LongPolls
+     *
+     * @param events EventStore to listen for
+     */
+    public LongPolls(EventStore events) {
+        this.events = events;
+        timeouts.setRemoveOnCancelPolicy(true);
+        events.addListener(this::notify);
+    }
+    
+    /**
+     * Returns the number of parked requests
+     *
+     * @return Number of parked requests
+     */
+    public final int size() {
+        return (int) waiters.values().stream().flatMap(Queue::stream).distinct().count();
+    }
+    
+    /**
+     * Polls the pending events of some Applets and parks the request, if
+     * there are none
+     *
+     * @param subscriber Subscriber
+     * @param ids Applet IDs
+     * @param maxSize Maximum number of returned events
+     * @param timeout Maximum time in milliseconds to wait for an event
+     *
+     * @return Finished response or a {@link DeferredResponse}
+     */
+    public final Map.Entry<Integer, String> poll(Subscriber subscriber, String[] ids, int maxSize, long timeout) {
+        return poll(subscriber, ids, maxSize, timeout, false);
+    }
+    
+    /**
+     * Polls the pending events of some Applets and parks the request, if
+     * there are none
+     *
+     * @param subscriber Subscriber
+     * @param ids Applet IDs
+     * @param maxSize Maximum number of returned events
+     * @param timeout Maximum time in milliseconds to wait for an event
+     * @param binary <tt>true</tt> if the events are returned as an
+     * {@link EventFrame} instead of an {@link EventBatch}
+     *
+     * @return Finished response or a {@link DeferredResponse}
+     */
+    public final Map.Entry<Integer, String> poll(Subscriber subscriber, String[] ids, int maxSize, long timeout, boolean binary) {
+        final List<Event> output = subscriber.poll(getBuffers(ids), maxSize);
+        if (!output.isEmpty() || timeout <= 0) {
+            if (binary) {
+                final EventFrame frame = FRAMES.get().encode(output);
+                return new Response().set(200, frame.getBuffer(), frame.length()); //Sent before this Thread encodes the next frame
+            }
+            return new AbstractMap.SimpleEntry<>(200, EventBatch.encode(output));
+        }
+        final Waiter waiter = new Waiter(subscriber, ids, maxSize, binary);
+        for (String id : ids) {
+            waiters.compute(id, (key, queue) -> { //Atomic with the removal of an empty queue
+                final Queue<Waiter> temp = queue == null ? new ConcurrentLinkedQueue<>() : queue;
+                temp.add(waiter);
+                return temp;
+            });
+        }
+        waiter.timeout = timeouts.schedule(() -> complete(waiter, null), timeout, TimeUnit.MILLISECONDS);
+        tryComplete(waiter); //An event may have arrived before the request was parked
+        return waiter.response;
+    }
+    
+    /**
+     * Completes every parked request with an empty response
+     */
+    public final void clear() {
+        waiters.values().forEach((queue) -> queue.forEach((waiter) -> complete(waiter, null))); //Completing removes them
+    }
+    
+    private final void notify(EventBuffer buffer) {
+        final Queue<Waiter> queue = waiters.get(buffer.getID());
+        if (queue == null) {
+            return;
+        }
+        for (Waiter waiter : queue) { //The waiters stay in the queue, so concurrent notifies see them too (completed ones remove themselves)
+            tryComplete(waiter);
+        }
+    }
+    
+    private final boolean tryComplete(Waiter waiter) {
+        synchronized (waiter) {
+            if (waiter.response.isCompleted()) {
+                return true;
+            }
+            final List<Event> output = waiter.subscriber.poll(getBuffers(waiter.ids), waiter.maxSize);
+            if (output.isEmpty()) {
+                return false;
+            }
+            complete(waiter, output);
+            return true;
+        }
+    }
+    
+    private final void complete(Waiter waiter, List<Event> output) {
+        synchronized (waiter) {
+            final boolean completed;
+            if (waiter.binary) {
+                final byte[] frame = FRAMES.get().encode(output == null ? Collections.emptyList() : output).toByteArray();
+                completed = waiter.response.complete(200, frame, frame.length);
+            } else {
+                completed = waiter.response.complete(200, output == null ? null : EventBatch.encode(output));
+            }
+            if (!completed) {
+                return;
+            }
+        }
+        if (waiter.timeout != null) {
+            waiter.timeout.cancel(false);
+        }
+        for (String id : waiter.ids) {
+            final Queue<Waiter> queue = waiters.get(id);
+            if (queue != null && queue.remove(waiter)) {
+                waiters.computeIfPresent(id, (key, temp) -> temp.isEmpty() ? null : temp); //The IDs come from the Clients, so no empty queue may stay
+            }
+        }
+    }
+    
+    private final List<EventBuffer> getBuffers(String[] ids) {
+        final List<EventBuffer> buffers = new ArrayList<>(ids.length);
+        for (String id : ids) {
+            final EventBuffer buffer = events.get(id);
+            if (buffer != null) {
+                buffers.add(buffer);
+            }
+        }
+        return buffers;
+    }
+    
+    private static final class Waiter {
+        
+        private final Subscriber subscriber;
+        private final String[] ids;
+        private final int maxSize;
+        private final boolean binary;
+        private final DeferredResponse response = new DeferredResponse();
+        private volatile ScheduledFuture<?> timeout = null;
+        
+        private Waiter(Subscriber subscriber, String[] ids, int maxSize, boolean binary) {
+            this.subscriber = subscriber;
+            this.ids = ids;
+            this.maxSize = maxSize;
+            this.binary = binary;
+        }
+        
+    }
+    
+}
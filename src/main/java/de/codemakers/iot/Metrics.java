@@ -0,0 +1,522 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Registry of counters, gauges and latency histograms
+ * <br>
+ * Counters are {@link LongAdder}s, which the instrumented code keeps and
+ * increments directly, so collecting costs a few nanoseconds and never
+ * locks. Gauges and counters of other components are read only when the
+ * metrics are exported, either as Prometheus text (served by the
+ * {@link Server} at "/metrics" on its own address) or as attributes of a
+ * JMX MBean. Histograms record nanoseconds and are exported in seconds.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class Metrics {
+    
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    public static final String CONTEXT = "/metrics";
+    public static final String JMX_DOMAIN = "de.codemakers.iot";
+    public static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    
+    private final String prefix;
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+    private ObjectName objectName = null;
+    
+    /**
+     * Constructs a new Metrics registry
+     *
+     * @param prefix Prefix of every metric name (e.g. "ifttj")
+     */
+    public Metrics(String prefix) {
+        this.prefix = prefix == null || prefix.isEmpty() ? "" : prefix + "_";
+    }
+    
+    /**
+     * Hashes a secret label value (e.g. an Applet ID), so it can be told
+     * apart from the others without being revealed
+     *
+     * @param value Label value
+     *
+     * @return First 8 bytes of the SHA-256 hash as hex
+     */
+    public static final String hash(String value) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                sb.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); //Every Java platform supports SHA-256
+        }
+    }
+    
+    /**
+     * Returns a counter, which is created if necessary
+     *
+     * @param name Name (without the prefix)
+     * @param help Description
+     *
+     * @return Counter
+     */
+    public final LongAdder counter(String name, String help) {
+        return ((Counter) metrics.computeIfAbsent(prefix + name, (key) -> new Counter(key, help))).value;
+    }
+    
+    /**
+     * Returns a counter with one label, which is created if necessary
+     *
+     * @param name Name (without the prefix)
+     * @param help Description
+     * @param label Name of the label
+     *
+     * @return Labeled counter
+     */
+    public final LabeledCounter counter(String name, String help, String label) {
+        return (LabeledCounter) metrics.computeIfAbsent(prefix + name, (key) -> new LabeledCounter(key, help, label));
+    }
+    
+    /**
+     * Registers a counter, which is kept by another component
+     *
+     * @param name Name (without the prefix)
+     * @param help Description
+     * @param value Supplier of the current count
+     *
+     * @return A reference to this Metrics
+     */
+    public final Metrics counter(String name, String help, LongSupplier value) {
+        metrics.put(prefix + name, new Supplied(prefix + name, help, "counter", value));
+        return this;
+    }
+    
+    /**
+     * Registers a counter with one label, which is kept by another component
+     *
+     * @param name Name (without the prefix)
+     * @param help Description
+     * @param label Name of the label
+     * @param values Called on every export with a consumer, which takes
+     * every label value and its count
+     *
+     * @return A reference to this Metrics
+     */
+    public final Metrics counter(String name, String help, String label, Consumer<ObjLongConsumer<String>> values) {
+        metrics.put(prefix + name, new LabeledSupplied(prefix + name, help, "counter", label, values));
+        return this;
+    }
+    
+    /**
+     * Registers a gauge
+     *
+     * @param name Name (without the prefix)
+     * @param help Description
+     * @param value Supplier of the current value
+     *
+     * @return A reference to this Metrics
+     */
+    public final Metrics gauge(String name, String help, LongSupplier value) {
+        metrics.put(prefix + name, new Supplied(prefix + name, help, "gauge", value));
+        return this;
+    }
+    
+    /**
+     * Registers a gauge with one label
+     *
+     * @param name Name (without the prefix)
+     * @param help Description
+     * @param label Name of the label
+     * @param values Called on every export with a consumer, which takes
+     * every label value and its value
+     *
+     * @return A reference to this Metrics
+     */
+    public final Metrics gauge(String name, String help, String label, Consumer<ObjLongConsumer<String>> values) {
+        metrics.put(prefix + name, new LabeledSupplied(prefix + name, help, "gauge", label, values));
+        return this;
+    }
+    
+    /**
+     * Returns a histogram, which is created if necessary
+     *
+     * @param name Name (without the prefix, should end with "_seconds")
+     * @param help Description
+     *
+     * @return Histogram of nanoseconds
+     */
+    public final Histogram histogram(String name, String help) {
+        return ((Summary) metrics.computeIfAbsent(prefix + name, (key) -> new Summary(key, help, new Histogram()))).histogram;
+    }
+    
+    /**
+     * Registers a histogram, which is kept by another component
+     *
+     * @param name Name (without the prefix, should end with "_seconds")
+     * @param help Description
+     * @param histogram Histogram of nanoseconds
+     *
+     * @return A reference to this Metrics
+     */
+    public final Metrics histogram(String name, String help, Histogram histogram) {
+        metrics.put(prefix + name, new Summary(prefix + name, help, histogram));
+        return this;
+    }
+    
+    /**
+     * Removes a metric
+     *
+     * @param name Name (without the prefix)
+     *
+     * @return <tt>true</tt> if the metric was removed
+     */
+    public final boolean remove(String name) {
+        return metrics.remove(prefix + name) != null;
+    }
+    
+    /**
+     * Writes every metric in the Prometheus text format
+     *
+     * @param out Output
+     *
+     * @return A reference to this Metrics
+     */
+    public final Metrics writePrometheus(StringBuilder out) {
+        for (Metric metric : metrics.values()) {
+            out.append("# HELP ").append(metric.name).append(' ');
+            escape(out, metric.help, false);
+            out.append("\n# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+            metric.collect((name, label, labelValue, value) -> {
+                out.append(name);
+                if (label != null) {
+                    out.append('{').append(label).append("=\"");
+                    escape(out, labelValue, true);
+                    out.append("\"}");
+                }
+                out.append(' ');
+                if (value == (long) value) {
+                    out.append((long) value);
+                } else {
+                    out.append(value);
+                }
+                out.append('\n');
+            });
+        }
+        return this;
+    }
+    
+    /**
+     * Returns every metric in the Prometheus text format
+     *
+     * @return Prometheus text
+     */
+    public final String toPrometheus() {
+        final StringBuilder out = new StringBuilder(4096);
+        writePrometheus(out);
+        return out.toString();
+    }
+    
+    /**
+     * Returns the current value of every sample (e.g. "ifttj_requests_total[TRIGGER]")
+     *
+     * @return Samples by name
+     */
+    public final Map<String, Double> snapshot() {
+        final Map<String, Double> samples = new LinkedHashMap<>();
+        for (Metric metric : metrics.values()) {
+            metric.collect((name, label, labelValue, value) -> samples.put(label == null ? name : name + "[" + labelValue + "]", value));
+        }
+        return samples;
+    }
+    
+    /**
+     * Registers these Metrics as an MBean "de.codemakers.iot:type=Metrics,name={name}"
+     * at the platform MBeanServer
+     *
+     * @param name Name of the MBean
+     *
+     * @return <tt>true</tt> if the MBean was registered
+     */
+    public final synchronized boolean registerMBean(String name) {
+        if (objectName != null) {
+            return false;
+        }
+        try {
+            final ObjectName temp = new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), temp);
+            objectName = temp;
+            return true;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+    
+    /**
+     * Unregisters the MBean of these Metrics
+     *
+     * @return <tt>true</tt> if the MBean was unregistered
+     */
+    public final synchronized boolean unregisterMBean() {
+        if (objectName == null) {
+            return false;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            return true;
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            return false;
+        } finally {
+            objectName = null;
+        }
+    }
+    
+    private static final void escape(StringBuilder out, String text, boolean quotes) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '\\') {
+                out.append("\\\\");
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else if (c == '"' && quotes) {
+                out.append("\\\"");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+    
+    /**
+     * Counter with one label, which keeps one {@link LongAdder} per label value
+     * <br>
+     * The instrumented code should keep the adders of known label values
+     * (e.g. one per enum constant), so incrementing them costs no lookup.
+     */
+    public static final class LabeledCounter extends Metric {
+        
+        private final String label;
+        private final Map<String, LongAdder> values = new ConcurrentHashMap<>();
+        
+        private LabeledCounter(String name, String help, String label) {
+            super(name, help, "counter");
+            this.label = label;
+        }
+        
+        /**
+         * Returns the counter of a label value, which is created if
+         * necessary
+         *
+         * @param value Label value
+         *
+         * @return Counter
+         */
+        public final LongAdder get(String value) {
+            final LongAdder adder = values.get(value);
+            return adder != null ? adder : values.computeIfAbsent(value, (key) -> new LongAdder());
+        }
+        
+        /**
+         * Removes the counter of a label value
+         *
+         * @param value Label value
+         */
+        public final void remove(String value) {
+            values.remove(value);
+        }
+        
+        @Override
+        final void collect(Sink sink) {
+            values.forEach((value, adder) -> sink.accept(name, label, value, adder.sum()));
+        }
+        
+    }
+    
+    /**
+     * A metric with all of its samples
+     */
+    abstract static class Metric {
+        
+        final String name;
+        final String help;
+        final String type;
+        
+        Metric(String name, String help, String type) {
+            this.name = name;
+            this.help = help == null ? "" : help;
+            this.type = type;
+        }
+        
+        abstract void collect(Sink sink);
+        
+    }
+    
+    @FunctionalInterface
+    interface Sink {
+        
+        void accept(String name, String label, String labelValue, double value);
+        
+    }
+    
+    private static final class Counter extends Metric {
+        
+        private final LongAdder value = new LongAdder();
+        
+        private Counter(String name, String help) {
+            super(name, help, "counter");
+        }
+        
+        @Override
+        final void collect(Sink sink) {
+            sink.accept(name, null, null, value.sum());
+        }
+        
+    }
+    
+    private static final class Supplied extends Metric {
+        
+        private final LongSupplier value;
+        
+        private Supplied(String name, String help, String type, LongSupplier value) {
+            super(name, help, type);
+            this.value = value;
+        }
+        
+        @Override
+        final void collect(Sink sink) {
+            sink.accept(name, null, null, value.getAsLong());
+        }
+        
+    }
+    
+    private static final class LabeledSupplied extends Metric {
+        
+        private final String label;
+        private final Consumer<ObjLongConsumer<String>> values;
+        
+        private LabeledSupplied(String name, String help, String type, String label, Consumer<ObjLongConsumer<String>> values) {
+            super(name, help, type);
+            this.label = label;
+            this.values = values;
+        }
+        
+        @Override
+        final void collect(Sink sink) {
+            values.accept((value, count) -> sink.accept(name, label, value, count));
+        }
+        
+    }
+    
+    private static final class Summary extends Metric {
+        
+        private final Histogram histogram;
+        
+        private Summary(String name, String help, Histogram histogram) {
+            super(name, help, "summary");
+            this.histogram = histogram;
+        }
+        
+        @Override
+        final void collect(Sink sink) {
+            for (double quantile : QUANTILES) {
+                sink.accept(name, "quantile", Double.toString(quantile), histogram.getValueAtPercentile(quantile * 100) / 1e9);
+            }
+            sink.accept(name + "_sum", null, null, histogram.getSum() / 1e9);
+            sink.accept(name + "_count", null, null, histogram.getCount());
+        }
+        
+    }
+    
+    /**
+     * Exposes every sample as a read-only attribute
+     */
+    private final class MBean implements DynamicMBean {
+        
+        @Override
+        public final Object getAttribute(String attribute) throws AttributeNotFoundException {
+            final Double value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+        
+        @Override
+        public final void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+        
+        @Override
+        public final AttributeList getAttributes(String[] attributes) {
+            final Map<String, Double> samples = snapshot();
+            final AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                final Double value = samples.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+        
+        @Override
+        public final AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+        
+        @Override
+        public final Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName), "The metrics have no operations");
+        }
+        
+        @Override
+        public final MBeanInfo getMBeanInfo() {
+            final List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : snapshot().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, Double.class.getName(), name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "IFTTJ Metrics", attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+        
+    }
+    
+}
@@ -0,0 +1,593 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector based HTTP/1.1 transport for the {@link Server}
+ * <br>
+ * One Thread accepts, reads and writes every connection. Requests are parsed
+ * straight from pooled direct ByteBuffers, responses are encoded straight into
+ * them and connections are kept alive between requests. The handler runs on
+ * the selector Thread, so it must not block (which the IFTTJ handler does
+ * not; parked requests are {@link DeferredResponse}s).
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+final class NioTransport implements Runnable {
+    
+    static final int BUFFER_SIZE = 16 * 1024;
+    static final int MAX_POOLED_BUFFERS = 1024;
+    static final int MAX_REQUEST_SIZE = 1024 * 1024;
+    static final long IDLE_TIMEOUT = 60000;
+    
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION = "connection".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ACCEPT = "accept".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PEER = Server.PEER_HEADER.toLowerCase().getBytes(StandardCharsets.US_ASCII);
+    private static final char[] FRAME_TYPE = EventFrame.CONTENT_TYPE.toCharArray();
+    private static final byte[] CLOSE = "close".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEEP_ALIVE = "keep-alive".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_0 = "HTTP/1.0".getBytes(StandardCharsets.US_ASCII);
+    private static final String HEADERS_TEXT = "Content-Type: text/plain; charset=utf-8\r\nContent-Length: ";
+    private static final byte[] HEADERS = HEADERS_TEXT.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FRAME_HEADERS = ("Content-Type: " + EventFrame.CONTENT_TYPE + "\r\nContent-Length: ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RETRY_HEADERS = ("Retry-After: 1\r\n" + HEADERS_TEXT).getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HINTS_HEADER = (PollHint.HEADER + ": ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[][] STATUS_LINES = new byte[600][];
+    private static final int MAX_HEADER_SIZE = 192;
+    
+    private final Server server;
+    private final BufferPool buffers = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private final Queue<Connection> completed = new ConcurrentLinkedQueue<>();
+    private char[] chars = new char[BUFFER_SIZE];
+    private byte[] path = null;
+    private Selector selector = null;
+    private ServerSocketChannel channel = null;
+    private Thread thread = null;
+    private volatile boolean running = false;
+    
+    NioTransport(Server server) {
+        this.server = server;
+    }
+    
+    /**
+     * Binds the port and starts the selector Thread
+     *
+     * @throws IOException If the port could not be bound
+     */
+    final void start() throws IOException {
+        path = ("/" + IFTTJ.URL_SUFFIX).getBytes(StandardCharsets.US_ASCII);
+        selector = Selector.open();
+        channel = ServerSocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(server.getPort()), server.getBacklog());
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            channel.close();
+            selector.close();
+            throw ex;
+        }
+        running = true;
+        thread = new Thread(this, "IFTTJ-Server-NIO");
+        thread.start();
+    }
+    
+    /**
+     * Stops the selector Thread and closes every connection
+     */
+    final void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+    
+    @Override
+    public final void run() {
+        long lastIdleCheck = System.currentTimeMillis();
+        try {
+            while (running) {
+                selector.select(1000);
+                Connection connection;
+                while ((connection = completed.poll()) != null) {
+                    if (connection.key.isValid()) {
+                        final DeferredResponse response = connection.deferred;
+                        connection.deferred = null;
+                        try {
+                            respond(connection, response);
+                            release(connection);
+                            process(connection);
+                        } catch (Exception ex) {
+                            close(connection);
+                        }
+                    }
+                }
+                final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    final SelectionKey key = iterator.next();
+                    iterator.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read((Connection) key.attachment());
+                        } else if (key.isWritable()) {
+                            final Connection temp = (Connection) key.attachment();
+                            if (flush(temp)) {
+                                process(temp);
+                            }
+                        }
+                    } catch (Exception ex) {
+                        if (key.attachment() != null) {
+                            close((Connection) key.attachment());
+                        }
+                    }
+                }
+                final long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= 1000) {
+                    lastIdleCheck = now;
+                    for (SelectionKey key : selector.keys()) {
+                        final Connection temp = (Connection) key.attachment();
+                        if (temp != null && temp.deferred == null && !temp.waiting && now - temp.lastActive >= IDLE_TIMEOUT) {
+                            close(temp);
+                        }
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    close((Connection) key.attachment());
+                }
+            }
+            try {
+                channel.close();
+                selector.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+    
+    private final void accept() throws IOException {
+        SocketChannel socketChannel;
+        while ((socketChannel = channel.accept()) != null) {
+            socketChannel.configureBlocking(false);
+            socketChannel.socket().setTcpNoDelay(true);
+            final Connection connection = new Connection(socketChannel, (InetSocketAddress) socketChannel.getRemoteAddress());
+            connection.key = socketChannel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+    
+    private final void read(Connection connection) throws IOException {
+        if (connection.in == null) {
+            connection.in = buffers.acquire();
+        }
+        final int read = connection.channel.read(connection.in);
+        if (read < 0) {
+            close(connection);
+            return;
+        }
+        connection.lastActive = System.currentTimeMillis();
+        process(connection);
+    }
+    
+    /**
+     * Handles every complete request in the input buffer, until a response
+     * could not be written completely or was deferred
+     */
+    private final void process(Connection connection) throws IOException {
+        while (connection.key.isValid() && connection.out == null && connection.deferred == null && !connection.waiting && connection.in != null && connection.in.position() > 0) {
+            if (!handle(connection)) {
+                break;
+            }
+        }
+        if (connection.key.isValid() && connection.out == null && connection.deferred == null && !connection.waiting) {
+            if (connection.in != null && connection.in.position() == 0) {
+                buffers.release(connection.in);
+                connection.in = null;
+            }
+            connection.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+    
+    /**
+     * Parses and handles one request
+     *
+     * @return <tt>true</tt> if a request was handled
+     */
+    private final boolean handle(Connection connection) throws IOException {
+        final ByteBuffer in = connection.in;
+        final int limit = in.position();
+        final int headEnd = indexOf(in, 0, limit, '\r', '\n', '\r', '\n');
+        if (headEnd < 0) {
+            if (limit == in.capacity()) {
+                if (in.capacity() >= MAX_REQUEST_SIZE) {
+                    connection.keepAlive = false;
+                    respond(connection, 431, "Request header too large!");
+                } else {
+                    grow(connection, in.capacity() * 2);
+                }
+            }
+            return false;
+        }
+        final int lineEnd = indexOf(in, 0, headEnd + 2, '\r', '\n');
+        final int space1 = indexOf(in, 0, lineEnd, ' ');
+        final int space2 = space1 < 0 ? -1 : indexOf(in, space1 + 1, lineEnd, ' ');
+        if (space2 < 0) {
+            connection.keepAlive = false;
+            respond(connection, 400, "Malformed request line!");
+            return false;
+        }
+        boolean keepAlive = !equalsIgnoreCase(in, space2 + 1, lineEnd, HTTP_1_0);
+        long contentLength = 0;
+        boolean chunked = false;
+        boolean binary = false;
+        boolean peer = false;
+        int position = lineEnd + 2;
+        while (position < headEnd) {
+            final int end = indexOf(in, position, headEnd + 2, '\r', '\n');
+            final int colon = indexOf(in, position, end, ':');
+            if (colon > 0) {
+                int valueStart = colon + 1;
+                while (valueStart < end && in.get(valueStart) == ' ') {
+                    valueStart++;
+                }
+                if (equalsIgnoreCase(in, position, colon, CONTENT_LENGTH)) {
+                    contentLength = parseLong(in, valueStart, end);
+                } else if (equalsIgnoreCase(in, position, colon, CONNECTION)) {
+                    if (equalsIgnoreCase(in, valueStart, end, CLOSE)) {
+                        keepAlive = false;
+                    } else if (equalsIgnoreCase(in, valueStart, end, KEEP_ALIVE)) {
+                        keepAlive = true;
+                    }
+                } else if (equalsIgnoreCase(in, position, colon, TRANSFER_ENCODING)) {
+                    chunked = true;
+                } else if (equalsIgnoreCase(in, position, colon, ACCEPT)) {
+                    binary = indexOf(in, valueStart, end, FRAME_TYPE) >= 0;
+                } else if (equalsIgnoreCase(in, position, colon, PEER)) {
+                    final byte[] value = new byte[end - valueStart];
+                    for (int i = 0; i < value.length; i++) {
+                        value[i] = in.get(valueStart + i);
+                    }
+                    peer = server.isPeer(value);
+                }
+            }
+            position = end + 2;
+        }
+        connection.keepAlive = keepAlive;
+        if (chunked || contentLength < 0) {
+            connection.keepAlive = false;
+            respond(connection, 411, "Content-Length required!");
+            return false;
+        }
+        final int bodyStart = headEnd + 4;
+        final long total = bodyStart + contentLength;
+        if (total > MAX_REQUEST_SIZE) {
+            connection.keepAlive = false;
+            respond(connection, 413, "Request too large!");
+            return false;
+        }
+        final boolean requestPath = matchesPath(in, space1 + 1, space2, path);
+        final Admission admission = server.getAdmission();
+        if (requestPath && admission != null && connection.admission == null) {
+            final int admitted = admission.admit(connection.remote.getAddress(), peer);
+            if (admitted != Admission.ADMITTED) {
+                connection.keepAlive = false; //The body is not read
+                respond(connection, admitted, RETRY_HEADERS, admitted == Admission.TOO_MANY_REQUESTS ? Server.TOO_MANY_REQUESTS_RESPONSE.getValue() : Server.SERVICE_UNAVAILABLE_RESPONSE.getValue());
+                return false;
+            }
+            connection.admission = admission;
+        }
+        if (total > in.capacity()) {
+            grow(connection, (int) total);
+            return false;
+        }
+        if (limit < total) {
+            return false;
+        }
+        if (!requestPath) {
+            consume(in, (int) total, limit);
+            respond(connection, 404, "Not found!");
+            return true;
+        }
+        final RequestHandler requestHandler = server.getRequestHandler();
+        final Map.Entry<Integer, String> response;
+        if (requestHandler != null) {
+            response = requestHandler.handle(connection.remote, in, bodyStart, (int) total, binary, peer);
+        } else {
+            if (chars.length < contentLength) {
+                chars = new char[(int) contentLength];
+            }
+            final String input = new String(chars, 0, Utf8.decode(in, bodyStart, (int) total, chars));
+            response = server.getHandler() != null ? server.getHandler().apply(connection.remote, input) : Server.STANDARD_RESPONSE;
+        }
+        consume(in, (int) total, limit);
+        if (response instanceof DeferredResponse) {
+            release(connection); //A parked request holds no Thread and must not block other requests
+            connection.waiting = true;
+            connection.key.interestOps(0);
+            ((DeferredResponse) response).onComplete((deferredResponse) -> {
+                connection.deferred = deferredResponse;
+                connection.waiting = false;
+                completed.add(connection);
+                selector.wakeup();
+            });
+            return false;
+        }
+        respond(connection, response);
+        release(connection);
+        return true;
+    }
+    
+    private final void respond(Connection connection, Map.Entry<Integer, String> response) throws IOException {
+        final CharSequence hints = response instanceof Response ? ((Response) response).getHints() : null;
+        if (response instanceof BinaryBody && ((BinaryBody) response).getBody() != null) {
+            respond(connection, response.getKey(), ((BinaryBody) response).getBody(), ((BinaryBody) response).getBodyLength(), hints);
+        } else if (response instanceof Response && ((Response) response).getLocation() != null) {
+            respond(connection, response.getKey(), ("Location: " + ((Response) response).getLocation() + "\r\n" + HEADERS_TEXT).getBytes(StandardCharsets.UTF_8), response.getValue(), hints);
+        } else {
+            respond(connection, response.getKey(), HEADERS, response.getValue(), hints);
+        }
+    }
+    
+    private final void respond(Connection connection, int responseCode, String output) throws IOException {
+        respond(connection, responseCode, HEADERS, output);
+    }
+    
+    private final void respond(Connection connection, int responseCode, byte[] headers, String output) throws IOException {
+        respond(connection, responseCode, headers, output, null);
+    }
+    
+    private final void respond(Connection connection, int responseCode, byte[] headers, String output, CharSequence hints) throws IOException {
+        final ByteBuffer out = begin(connection, responseCode, headers, output == null ? 0 : Utf8.length(output), hints);
+        if (output != null) {
+            Utf8.encode(output, out);
+        }
+        finish(connection, out);
+    }
+    
+    private final void respond(Connection connection, int responseCode, byte[] body, int length, CharSequence hints) throws IOException {
+        final ByteBuffer out = begin(connection, responseCode, FRAME_HEADERS, length, hints);
+        out.put(body, 0, length);
+        finish(connection, out);
+    }
+    
+    /**
+     * Acquires a buffer large enough for the response and writes the head
+     * (with the {@link PollHint}s, if there are any)
+     */
+    private final ByteBuffer begin(Connection connection, int responseCode, byte[] headers, int bodyLength, CharSequence hints) {
+        final int headLength = headers.length + (hints == null ? 0 : HINTS_HEADER.length + hints.length() + CRLF.length);
+        ByteBuffer out = buffers.acquire();
+        if (bodyLength + headLength + MAX_HEADER_SIZE > out.capacity()) {
+            buffers.release(out);
+            out = ByteBuffer.allocateDirect(bodyLength + headLength + MAX_HEADER_SIZE);
+        }
+        out.put(statusLine(responseCode));
+        if (hints != null) {
+            out.put(HINTS_HEADER);
+            Utf8.encode(hints, out);
+            out.put(CRLF);
+        }
+        out.put(headers);
+        putLong(out, bodyLength);
+        out.put(CRLF);
+        if (!connection.keepAlive) {
+            out.put(CONNECTION_CLOSE);
+        }
+        out.put(CRLF);
+        return out;
+    }
+    
+    private final void finish(Connection connection, ByteBuffer out) throws IOException {
+        out.flip();
+        connection.out = out;
+        connection.lastActive = System.currentTimeMillis();
+        flush(connection);
+    }
+    
+    /**
+     * Writes the pending response
+     *
+     * @return <tt>true</tt> if the response was written completely
+     */
+    private final boolean flush(Connection connection) throws IOException {
+        connection.channel.write(connection.out);
+        if (connection.out.hasRemaining()) {
+            connection.key.interestOps(SelectionKey.OP_WRITE);
+            return false;
+        }
+        buffers.release(connection.out);
+        connection.out = null;
+        if (!connection.keepAlive) {
+            close(connection);
+            return false;
+        }
+        return true;
+    }
+    
+    private final void grow(Connection connection, int capacity) {
+        final ByteBuffer temp = ByteBuffer.allocateDirect(Math.min(Math.max(capacity, connection.in.capacity() * 2), MAX_REQUEST_SIZE));
+        connection.in.flip();
+        temp.put(connection.in);
+        buffers.release(connection.in);
+        connection.in = temp;
+    }
+    
+    /**
+     * Releases the admitted request of a connection, after it was answered
+     */
+    private final void release(Connection connection) {
+        if (connection.admission != null) {
+            connection.admission.release();
+            connection.admission = null;
+        }
+    }
+    
+    private final void close(Connection connection) {
+        release(connection);
+        try {
+            connection.key.cancel();
+            connection.channel.close();
+        } catch (IOException ex) {
+            //Ignored, the connection is gone anyway
+        }
+        buffers.release(connection.in);
+        buffers.release(connection.out);
+        connection.in = null;
+        connection.out = null;
+    }
+    
+    private static final boolean matchesPath(ByteBuffer buffer, int from, int to, byte[] path) {
+        if (to - from < path.length) {
+            return false;
+        }
+        for (int i = 0; i < path.length; i++) {
+            if (buffer.get(from + i) != path[i]) {
+                return false;
+            }
+        }
+        return to - from == path.length || buffer.get(from + path.length) == '?';
+    }
+    
+    private static final void consume(ByteBuffer buffer, int length, int limit) {
+        buffer.limit(limit);
+        buffer.position(length);
+        buffer.compact();
+    }
+    
+    private static final int indexOf(ByteBuffer buffer, int from, int to, char... sequence) {
+        outer:
+        for (int i = from; i <= to - sequence.length; i++) {
+            for (int j = 0; j < sequence.length; j++) {
+                if (buffer.get(i + j) != sequence[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+    
+    private static final boolean equalsIgnoreCase(ByteBuffer buffer, int from, int to, byte[] lowerCase) {
+        if (to - from != lowerCase.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCase.length; i++) {
+            final byte b = buffer.get(from + i);
+            if (b != lowerCase[i] && (b | 0x20) != lowerCase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static final long parseLong(ByteBuffer buffer, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            final byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+    
+    private static final void putLong(ByteBuffer buffer, long value) {
+        if (value >= 10) {
+            putLong(buffer, value / 10);
+        }
+        buffer.put((byte) ('0' + value % 10));
+    }
+    
+    private static final byte[] statusLine(int responseCode) {
+        final int index = responseCode >= 100 && responseCode < STATUS_LINES.length ? responseCode : 500;
+        byte[] line = STATUS_LINES[index];
+        if (line == null) {
+            line = ("HTTP/1.1 " + index + " " + reasonPhrase(index) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            STATUS_LINES[index] = line;
+        }
+        return line;
+    }
+    
+    private static final String reasonPhrase(int responseCode) {
+        switch (responseCode) {
+            case 200:
+                return "OK";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 411:
+                return "Length Required";
+            case 413:
+                return "Payload Too Large";
+            case 429:
+                return "Too Many Requests";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return responseCode < 400 ? "OK" : "Error";
+        }
+    }
+    
+    private static final class Connection {
+        
+        private final SocketChannel channel;
+        private final InetSocketAddress remote;
+        private SelectionKey key = null;
+        private ByteBuffer in = null;
+        private ByteBuffer out = null;
+        private boolean keepAlive = true;
+        private volatile boolean waiting = false;
+        private volatile DeferredResponse deferred = null;
+        private Admission admission = null;
+        private long lastActive = System.currentTimeMillis();
+        
+        private Connection(SocketChannel channel, InetSocketAddress remote) {
+            this.channel = channel;
+            this.remote = remote;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+/**
+ * What happens to a new event, when the {@link EventBuffer} of an Applet is
+ * full of events, which are not yet delivered to every {@link Subscriber}
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public enum OverflowPolicy {
+    /**
+     * The oldest event is overwritten, so slow Subscribers skip it
+     */
+    DROP_OLDEST,
+    /**
+     * The new event is dropped, but the Webhook is answered with 200
+     */
+    DROP_NEWEST,
+    /**
+     * The new event is dropped and the Webhook is answered with 429
+     */
+    REJECT
+}
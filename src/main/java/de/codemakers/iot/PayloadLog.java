@@ -0,0 +1,251 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free, fixed-capacity log of UTF-8 encoded texts in direct memory
+ * <br>
+ * Texts are appended at a monotonically increasing position, which wraps
+ * around the capacity, so the oldest texts are overwritten first (like the
+ * events of an {@link EventBuffer}). The log is split into slabs of
+ * {@link #SLAB_SIZE} bytes, which are allocated on first use, so a log only
+ * takes as much memory as it ever held. Readers copy a text and check
+ * afterwards, that no writer reserved its bytes meanwhile (like a seqlock,
+ * with a load fence between copying and checking), so reading never blocks
+ * writing.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class PayloadLog {
+    
+    public static final int SLAB_SIZE = 64 * 1024;
+    /**
+     * Minimum capacity, so every text of an accepted request fits
+     */
+    public static final int MIN_CAPACITY = NioTransport.MAX_REQUEST_SIZE;
+    
+    private static final ThreadLocal<Scratch> SCRATCHES = ThreadLocal.withInitial(Scratch::new);
+    private static final MethodHandle LOAD_FENCE = findLoadFence();
+    
+    private final long capacity;
+    private final AtomicReferenceArray<ByteBuffer> slabs;
+    private final AtomicLong reserved = new AtomicLong(0);
+    private final AtomicInteger allocated = new AtomicInteger(0);
+    
+    /**
+     * Constructs a new PayloadLog
+     *
+     * @param capacity Capacity in bytes (rounded up to whole slabs and at
+     * least {@link #MIN_CAPACITY})
+     */
+    public PayloadLog(long capacity) {
+        final long slabCount = (Math.max(capacity, MIN_CAPACITY) + SLAB_SIZE - 1) / SLAB_SIZE;
+        if (slabCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("capacity is too large");
+        }
+        this.capacity = slabCount * SLAB_SIZE;
+        this.slabs = new AtomicReferenceArray<>((int) slabCount);
+    }
+    
+    /**
+     * Returns the capacity
+     *
+     * @return Capacity in bytes
+     */
+    public final long getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Returns the allocated direct memory
+     *
+     * @return Allocated bytes
+     */
+    public final long getAllocatedBytes() {
+        return (long) allocated.get() * SLAB_SIZE;
+    }
+    
+    /**
+     * Appends a text
+     *
+     * @param text Text
+     * @param length UTF-8 encoded length of the text (see
+     * {@link Utf8#length(CharSequence)}, at most the capacity)
+     *
+     * @return Position of the text
+     */
+    public final long append(String text, int length) {
+        if (length > capacity) {
+            throw new IllegalArgumentException("Text is larger than the PayloadLog");
+        }
+        final long position = reserved.getAndAdd(length);
+        final int offset = offset(position);
+        if (offset + length <= SLAB_SIZE) {
+            final ByteBuffer target = getSlab(position).duplicate();
+            target.position(offset);
+            Utf8.encode(text, target);
+            return position;
+        }
+        final Scratch scratch = SCRATCHES.get();
+        final ByteBuffer bytes = scratch.bytes(length);
+        Utf8.encode(text, bytes);
+        for (int done = 0; done < length; ) {
+            final int size = Math.min(length - done, SLAB_SIZE - offset(position + done));
+            final ByteBuffer target = getSlab(position + done).duplicate();
+            target.position(offset(position + done));
+            target.put(bytes.array(), done, size);
+            done += size;
+        }
+        return position;
+    }
+    
+    /**
+     * Reads a text
+     *
+     * @param position Position of the text
+     * @param length UTF-8 encoded length of the text
+     *
+     * @return Text or null, if it was overwritten
+     */
+    public final String read(long position, int length) {
+        if (isOverwritten(position) || length > capacity) {
+            return null;
+        }
+        final Scratch scratch = SCRATCHES.get();
+        final char[] chars = scratch.chars(length);
+        final int offset = offset(position);
+        final int size;
+        if (offset + length <= SLAB_SIZE) {
+            size = Utf8.decode(getSlab(position), offset, offset + length, chars);
+        } else {
+            final ByteBuffer bytes = scratch.bytes(length);
+            for (int done = 0; done < length; ) {
+                final int part = Math.min(length - done, SLAB_SIZE - offset(position + done));
+                final ByteBuffer source = getSlab(position + done).duplicate();
+                source.position(offset(position + done));
+                source.get(bytes.array(), done, part);
+                done += part;
+            }
+            size = Utf8.decode(bytes, 0, length, chars);
+        }
+        loadFence(); //Otherwise the plain reads of the bytes may be reordered after the check
+        if (isOverwritten(position)) {
+            return null; //A writer reserved these bytes while they were read
+        }
+        return new String(chars, 0, size);
+    }
+    
+    /**
+     * Returns if a text was (or may be being) overwritten
+     *
+     * @param position Position of the text
+     *
+     * @return <tt>true</tt> if the text is gone
+     */
+    public final boolean isOverwritten(long position) {
+        return reserved.get() - position > capacity;
+    }
+    
+    private final void loadFence() {
+        if (LOAD_FENCE == null) {
+            reserved.getAndAdd(0); //A read-modify-write is a full fence on every supported CPU
+            return;
+        }
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Looks up VarHandle.acquireFence (Java 9+) or Unsafe.loadFence (Java 8)
+     */
+    private static final MethodHandle findLoadFence() {
+        final MethodType type = MethodType.methodType(void.class);
+        try {
+            return MethodHandles.publicLookup().findStatic(Class.forName("java.lang.invoke.VarHandle"), "acquireFence", type);
+        } catch (Exception ex) {
+            //Java 8
+        }
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.publicLookup().findVirtual(unsafeClass, "loadFence", type).bindTo(field.get(null));
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+    
+    private final int offset(long position) {
+        return (int) (position % SLAB_SIZE);
+    }
+    
+    private final ByteBuffer getSlab(long position) {
+        final int index = (int) ((position % capacity) / SLAB_SIZE);
+        final ByteBuffer slab = slabs.get(index);
+        if (slab != null) {
+            return slab;
+        }
+        final ByteBuffer temp = ByteBuffer.allocateDirect(SLAB_SIZE);
+        if (slabs.compareAndSet(index, null, temp)) {
+            allocated.incrementAndGet();
+            return temp;
+        }
+        return slabs.get(index);
+    }
+    
+    @Override
+    public final String toString() {
+        return "PayloadLog{" + "capacity=" + capacity + ", allocated=" + getAllocatedBytes() + ", position=" + reserved.get() + '}';
+    }
+    
+    /**
+     * Reusable buffers of one Thread for texts spanning two slabs
+     */
+    private static final class Scratch {
+        
+        private ByteBuffer bytes = ByteBuffer.allocate(1024);
+        private char[] chars = new char[1024];
+        
+        private final ByteBuffer bytes(int length) {
+            if (bytes.capacity() < length) {
+                bytes = ByteBuffer.allocate(Math.max(length, bytes.capacity() * 2));
+            }
+            bytes.clear();
+            return bytes;
+        }
+        
+        private final char[] chars(int length) {
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+            return chars;
+        }
+        
+    }
+    
+}
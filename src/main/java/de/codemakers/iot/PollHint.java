@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hint of the Server, when an Applet should be polled again
+ * <br>
+ * Poll responses carry one hint per requested Applet (in the order of the
+ * request) in the {@link #HEADER} header as
+ * "&lt;Pending&gt; &lt;Delay&gt; &lt;Newest&gt;" separated by commas, so
+ * the body stays the same for Clients, which do not know the hints.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class PollHint {
+    
+    public static final String HEADER = "X-IFTTJ-Hints";
+    public static final long DEFAULT_MAX_DELAY = 60000;
+    
+    private final long pending;
+    private final long delay;
+    private final long newest;
+    
+    /**
+     * Constructs a new PollHint
+     *
+     * @param pending Number of events, which are still waiting for the
+     * Client
+     * @param delay Suggested time in milliseconds until the next poll
+     * @param newest Time in milliseconds the newest event was received (0 if
+     * there was none)
+     */
+    public PollHint(long pending, long delay, long newest) {
+        this.pending = pending;
+        this.delay = delay;
+        this.newest = newest;
+    }
+    
+    /**
+     * Returns the number of events, which are still waiting for the Client
+     *
+     * @return Pending events
+     */
+    public final long getPending() {
+        return pending;
+    }
+    
+    /**
+     * Returns the suggested time until the next poll
+     *
+     * @return Delay in milliseconds
+     */
+    public final long getDelay() {
+        return delay;
+    }
+    
+    /**
+     * Returns the time the newest event was received
+     *
+     * @return Time in milliseconds (0 if there was none)
+     */
+    public final long getNewest() {
+        return newest;
+    }
+    
+    /**
+     * Suggests the time until the next poll of an Applet
+     * <br>
+     * Pending events should be fetched right away. Otherwise the Applet is
+     * expected to stay quiet for about half as long as it already is, so
+     * Applets firing often are polled tightly and idle ones rarely.
+     *
+     * @param pending Number of events, which are still waiting for the
+     * Client
+     * @param newest Time in milliseconds the newest event was received (0 if
+     * there was none)
+     * @param now Current time in milliseconds
+     * @param maxDelay Maximum delay in milliseconds
+     *
+     * @return Delay in milliseconds
+     */
+    public static final long suggestDelay(long pending, long newest, long now, long maxDelay) {
+        if (pending > 0) {
+            return 0;
+        }
+        if (newest <= 0) {
+            return maxDelay;
+        }
+        return Math.max(0, Math.min(maxDelay, (now - newest) / 2));
+    }
+    
+    /**
+     * Appends the hint of one Applet to a header value
+     *
+     * @param sb Header value
+     * @param pending Number of events, which are still waiting for the
+     * Client
+     * @param delay Suggested time in milliseconds until the next poll
+     * @param newest Time in milliseconds the newest event was received (0 if
+     * there was none)
+     *
+     * @return The header value
+     */
+    public static final StringBuilder encode(StringBuilder sb, long pending, long delay, long newest) {
+        if (sb.length() > 0) {
+            sb.append(',');
+        }
+        return sb.append(pending).append(' ').append(delay).append(' ').append(newest);
+    }
+    
+    /**
+     * Decodes the hints of a header value
+     *
+     * @param text Header value (may be null)
+     *
+     * @return Hints in the order of the Applets of the request (empty if
+     * there are none)
+     *
+     * @throws IllegalArgumentException If the text is malformed
+     */
+    public static final List<PollHint> decode(String text) {
+        final List<PollHint> hints = new ArrayList<>();
+        if (text == null || text.trim().isEmpty()) {
+            return hints;
+        }
+        for (String hint : text.split(",")) {
+            final String[] split = hint.trim().split(" ");
+            if (split.length != 3) {
+                throw new IllegalArgumentException("Malformed hint: " + hint);
+            }
+            hints.add(new PollHint(Long.parseLong(split[0]), Long.parseLong(split[1]), Long.parseLong(split[2])));
+        }
+        return hints;
+    }
+    
+    @Override
+    public final String toString() {
+        return "PollHint{" + "pending=" + pending + ", delay=" + delay + ", newest=" + newest + '}';
+    }
+    
+}
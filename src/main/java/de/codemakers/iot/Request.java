@@ -0,0 +1,380 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reusable parser for IFTTT and IFTTJ requests
+ * <br>
+ * Parses the command straight from the request bytes. Applet IDs are looked
+ * up in an {@link Interner}, so parsing a request with known Applets does not
+ * allocate anything (except the text of a new event and the Client ID, which
+ * is chosen freely by every Client and therefore not interned). Only the
+ * Applet IDs of IFTTT triggers are interned, because they name the
+ * EventBuffers they create. Polls may name any Applet, so their unknown IDs
+ * stay plain Strings. One Request
+ * must only be used by one Thread at a time.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class Request {
+    
+    private static final byte[] IFTTT_APPLET_PREFIX = IFTTJ.IFTTT_APPLET_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IFTTJ_GET_EVENTS_PREFIX = IFTTJ.IFTTJ_GET_EVENTS_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IFTTJ_GET_BATCH_PREFIX = IFTTJ.IFTTJ_GET_BATCH_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IFTTJ_WAIT_EVENTS_PREFIX = IFTTJ.IFTTJ_WAIT_EVENTS_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IFTTJ_GET_TOPOLOGY = IFTTJ.IFTTJ_GET_TOPOLOGY.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IFTTJ_FORWARDED_PREFIX = IFTTJ.IFTTJ_FORWARDED_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    
+    private final Interner appletIDs;
+    private Command command = Command.UNKNOWN;
+    private String[] ids = new String[8];
+    private int idCount = 0;
+    private int maxSize = 0;
+    private long timeout = 0;
+    private String clientID = null;
+    private boolean forwarded = false;
+    private String data = null;
+    private String error = null;
+    private char[] chars = new char[1024];
+    
+    /**
+     * Constructs a new Request
+     *
+     * @param appletIDs Interner for Applet IDs
+     */
+    public Request(Interner appletIDs) {
+        this.appletIDs = appletIDs;
+    }
+    
+    /**
+     * Parses a request (absolute positions, the position of the buffer is not
+     * changed)
+     *
+     * @param buffer Buffer containing the UTF-8 encoded request body
+     * @param from First index (inclusive)
+     * @param to Last index (exclusive)
+     *
+     * @return <tt>true</tt> if the request was valid, otherwise
+     * {@link #getError()} contains the reason
+     */
+    public final boolean parse(ByteBuffer buffer, int from, int to) {
+        command = Command.UNKNOWN;
+        idCount = 0;
+        maxSize = 0;
+        timeout = 0;
+        clientID = null;
+        forwarded = startsWith(buffer, from, to, IFTTJ_FORWARDED_PREFIX);
+        data = null;
+        error = null;
+        if (forwarded) {
+            from += IFTTJ_FORWARDED_PREFIX.length;
+        }
+        while (to > from && isWhitespace(buffer.get(to - 1))) {
+            to--;
+        }
+        if (startsWith(buffer, from, to, IFTTJ_GET_EVENTS_PREFIX)) {
+            command = Command.GET_EVENTS;
+            int position = from + IFTTJ_GET_EVENTS_PREFIX.length;
+            final int end = indexOf(buffer, position, to, ' ');
+            addID(buffer, position, end, false);
+            parseClientID(buffer, end, to);
+        } else if (startsWith(buffer, from, to, IFTTJ_GET_BATCH_PREFIX)) {
+            command = Command.GET_BATCH;
+            int position = parseIDs(buffer, from + IFTTJ_GET_BATCH_PREFIX.length, to);
+            if (position >= to) {
+                error = "Missing batch size!";
+                return false;
+            }
+            final int end = indexOf(buffer, position + 1, to, ' ');
+            maxSize = (int) Math.min(parseLong(buffer, position + 1, end), Integer.MAX_VALUE);
+            parseClientID(buffer, end, to);
+        } else if (startsWith(buffer, from, to, IFTTJ_WAIT_EVENTS_PREFIX)) {
+            command = Command.WAIT_EVENTS;
+            int position = parseIDs(buffer, from + IFTTJ_WAIT_EVENTS_PREFIX.length, to);
+            final int end = position >= to ? to : indexOf(buffer, position + 1, to, ' ');
+            if (end >= to) {
+                error = "Missing batch size or timeout!";
+                return false;
+            }
+            maxSize = (int) Math.min(parseLong(buffer, position + 1, end), Integer.MAX_VALUE);
+            position = indexOf(buffer, end + 1, to, ' ');
+            timeout = parseLong(buffer, end + 1, position);
+            parseClientID(buffer, position, to);
+        } else if (startsWith(buffer, from, to, IFTTJ_GET_TOPOLOGY)) {
+            command = Command.GET_TOPOLOGY;
+        } else if (parseTrigger(buffer, from, to)) {
+            command = Command.TRIGGER;
+        } else {
+            error = "Not recognized any commands!";
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Returns the parsed command
+     *
+     * @return Command
+     */
+    public final Command getCommand() {
+        return command;
+    }
+    
+    /**
+     * Returns the number of Applet IDs
+     *
+     * @return Number of Applet IDs
+     */
+    public final int getIDCount() {
+        return idCount;
+    }
+    
+    /**
+     * Returns an Applet ID
+     *
+     * @param index Index
+     *
+     * @return Applet ID (interned, if it is known)
+     */
+    public final String getID(int index) {
+        return ids[index];
+    }
+    
+    /**
+     * Returns a copy of the Applet IDs
+     *
+     * @return Applet IDs (interned, if they are known)
+     */
+    public final String[] getIDs() {
+        return Arrays.copyOf(ids, idCount);
+    }
+    
+    /**
+     * Returns the maximum number of requested events
+     *
+     * @return Maximum number of events
+     */
+    public final int getMaxSize() {
+        return maxSize;
+    }
+    
+    /**
+     * Returns the maximum time to wait for an event
+     *
+     * @return Time in milliseconds
+     */
+    public final long getTimeout() {
+        return timeout;
+    }
+    
+    /**
+     * Returns the Client ID
+     *
+     * @return Interned Client ID or null, if the request did not contain one
+     */
+    public final String getClientID() {
+        return clientID;
+    }
+    
+    /**
+     * Returns if the request is marked as forwarded by another node of the
+     * {@link Cluster}, so it must not be forwarded again
+     * <br>
+     * Anybody can set the mark, so it only counts for requests sent by an
+     * authenticated peer (see {@link Server#setPeerSecret(String)}).
+     *
+     * @return <tt>true</tt> if the request is marked as forwarded
+     */
+    public final boolean isForwarded() {
+        return forwarded;
+    }
+    
+    /**
+     * Returns the text of a triggered event
+     *
+     * @return Text (may be null)
+     */
+    public final String getData() {
+        return data;
+    }
+    
+    /**
+     * Returns the reason, why the last request was invalid
+     *
+     * @return Error message or null
+     */
+    public final String getError() {
+        return error;
+    }
+    
+    /**
+     * Searches like {@link IFTTJ#IFTTT_APPLET_REGEX}, but the text may span
+     * multiple lines
+     */
+    private final boolean parseTrigger(ByteBuffer buffer, int from, int to) {
+        int position = from;
+        while ((position = indexOf(buffer, position, to, IFTTT_APPLET_PREFIX)) < to) {
+            final int start = position + IFTTT_APPLET_PREFIX.length;
+            int end = start;
+            while (end < to && isAlphanumeric(buffer.get(end))) {
+                end++;
+            }
+            if (end > start) {
+                addID(buffer, start, end, true);
+                if (end < to && buffer.get(end) == ' ') {
+                    if (chars.length < to - end) {
+                        chars = new char[to - end];
+                    }
+                    data = new String(chars, 0, Utf8.decode(buffer, end + 1, to, chars));
+                }
+                return true;
+            }
+            position = start;
+        }
+        return false;
+    }
+    
+    /**
+     * Parses comma separated Applet IDs
+     *
+     * @return Index of the space after the IDs or the end
+     */
+    private final int parseIDs(ByteBuffer buffer, int from, int to) {
+        final int end = indexOf(buffer, from, to, ' ');
+        int position = from;
+        while (position <= end) {
+            final int next = indexOf(buffer, position, end, ',');
+            if (next > position) {
+                addID(buffer, position, next, false);
+            }
+            position = next + 1;
+        }
+        return end;
+    }
+    
+    private final void parseClientID(ByteBuffer buffer, int space, int to) {
+        if (space + 1 < to) {
+            if (chars.length < to - space - 1) {
+                chars = new char[to - space - 1];
+            }
+            clientID = new String(chars, 0, Utf8.decode(buffer, space + 1, to, chars));
+        }
+    }
+    
+    private final void addID(ByteBuffer buffer, int from, int to, boolean intern) {
+        if (idCount == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+        }
+        ids[idCount++] = intern ? appletIDs.intern(buffer, from, to) : appletIDs.lookup(buffer, from, to);
+    }
+    
+    /**
+     * Parses a non negative number
+     *
+     * @throws NumberFormatException If the bytes are not a number
+     */
+    private static final long parseLong(ByteBuffer buffer, int from, int to) {
+        if (from >= to || to - from > 18) {
+            throw new NumberFormatException("Invalid number!");
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            final byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                throw new NumberFormatException("Invalid number!");
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+    
+    private static final boolean startsWith(ByteBuffer buffer, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(from + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static final int indexOf(ByteBuffer buffer, int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+    
+    private static final int indexOf(ByteBuffer buffer, int from, int to, byte[] sequence) {
+        for (int i = from; i <= to - sequence.length; i++) {
+            if (startsWith(buffer, i, to, sequence)) {
+                return i;
+            }
+        }
+        return to;
+    }
+    
+    private static final boolean isAlphanumeric(byte b) {
+        return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9');
+    }
+    
+    private static final boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\r' || b == '\n' || b == '\t';
+    }
+    
+    /**
+     * Commands of the requests
+     */
+    public enum Command {
+        /**
+         * An IFTTT Applet triggered an event ("IFTTT_APPLET_{ID} [Text]")
+         */
+        TRIGGER,
+        /**
+         * A Client polls one event ("IFTTJ_GET_EVENTS_{ID} [Client ID]")
+         */
+        GET_EVENTS,
+        /**
+         * A Client polls a batch of events ("IFTTJ_GET_BATCH_{IDs} {Max size}
+         * [Client ID]")
+         */
+        GET_BATCH,
+        /**
+         * A Client waits for a batch of events ("IFTTJ_WAIT_EVENTS_{IDs}
+         * {Max size} {Timeout} [Client ID]")
+         */
+        WAIT_EVENTS,
+        /**
+         * A Client or another node asks for the nodes of the {@link Cluster}
+         * ("IFTTJ_GET_TOPOLOGY", answered with the nodes separated by commas
+         * or nothing, if there is no cluster)
+         */
+        GET_TOPOLOGY,
+        /**
+         * Not a known command
+         */
+        UNKNOWN
+    }
+    
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Handles the raw body of a request
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+@FunctionalInterface
+public interface RequestHandler {
+    
+    /**
+     * Handles a request
+     * <br>
+     * The buffer is reused after this method returned, so it must not be
+     * kept.
+     *
+     * @param inetSocketAddress Address of the sender
+     * @param buffer Buffer containing the request body (absolute positions)
+     * @param from First index of the body (inclusive)
+     * @param to Last index of the body (exclusive)
+     * @param binary <tt>true</tt> if the sender accepts
+     * {@link EventFrame#CONTENT_TYPE}
+     * @param peer <tt>true</tt> if the sender authenticated as a node of the
+     * {@link Cluster} (see {@link Server#setPeerSecret(String)})
+     *
+     * @return Response code and body (may be a {@link DeferredResponse} or
+     * carry a {@link BinaryBody})
+     */
+    Map.Entry<Integer, String> handle(InetSocketAddress inetSocketAddress, ByteBuffer buffer, int from, int to, boolean binary, boolean peer);
+    
+    /**
+     * Handles a request, whose sender only accepts text and is not a peer
+     *
+     * @param inetSocketAddress Address of the sender
+     * @param buffer Buffer containing the request body (absolute positions)
+     * @param from First index of the body (inclusive)
+     * @param to Last index of the body (exclusive)
+     *
+     * @return Response code and body (may be a {@link DeferredResponse})
+     */
+    default Map.Entry<Integer, String> handle(InetSocketAddress inetSocketAddress, ByteBuffer buffer, int from, int to) {
+        return handle(inetSocketAddress, buffer, from, to, false, false);
+    }
+    
+}
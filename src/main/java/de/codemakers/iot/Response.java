@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.Map;
+
+/**
+ * Reusable response holder
+ * <br>
+ * The response code is taken from a cache of boxed codes, so setting a
+ * response does not allocate anything. One Response must only be used by
+ * one Thread at a time and must be sent before it gets reused.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class Response implements Map.Entry<Integer, String>, BinaryBody {
+    
+    private static final Integer[] CODES = new Integer[600];
+    
+    static {
+        for (int i = 0; i < CODES.length; i++) {
+            CODES[i] = i;
+        }
+    }
+    
+    private Integer responseCode = CODES[200];
+    private String output = null;
+    private String location = null;
+    private byte[] body = null;
+    private int bodyLength = 0;
+    private final StringBuilder hints = new StringBuilder();
+    
+    /**
+     * Sets the response (and clears the location, the hints and the binary
+     * body)
+     *
+     * @param responseCode HTTP response code
+     * @param output Response body (may be null)
+     *
+     * @return A reference to this Response
+     */
+    public final Response set(int responseCode, String output) {
+        this.responseCode = responseCode >= 0 && responseCode < CODES.length ? CODES[responseCode] : responseCode;
+        this.output = output;
+        this.location = null;
+        this.body = null;
+        this.bodyLength = 0;
+        this.hints.setLength(0);
+        return this;
+    }
+    
+    /**
+     * Sets the response with a binary body
+     * <br>
+     * The body is not copied, so it must not change until the response was
+     * sent.
+     *
+     * @param responseCode HTTP response code
+     * @param body Buffer holding an {@link EventFrame} from 0 to "length"
+     * @param length Length of the body
+     *
+     * @return A reference to this Response
+     */
+    public final Response set(int responseCode, byte[] body, int length) {
+        set(responseCode, null);
+        this.body = body;
+        this.bodyLength = length;
+        return this;
+    }
+    
+    /**
+     * Returns the location a redirect points to
+     *
+     * @return Location or null
+     */
+    public final String getLocation() {
+        return location;
+    }
+    
+    /**
+     * Sets the location a redirect points to, which is sent as the
+     * "Location" header
+     *
+     * @param location Location or null
+     *
+     * @return A reference to this Response
+     */
+    public final Response setLocation(String location) {
+        this.location = location;
+        return this;
+    }
+    
+    /**
+     * Returns the {@link PollHint}s, which are sent as the
+     * {@link PollHint#HEADER} header
+     *
+     * @return Header value or null, if there are no hints
+     */
+    public final CharSequence getHints() {
+        return hints.length() == 0 ? null : hints;
+    }
+    
+    /**
+     * Adds the {@link PollHint} of the next requested Applet
+     *
+     * @param pending Number of events, which are still waiting for the
+     * Client
+     * @param delay Suggested time in milliseconds until the next poll
+     * @param newest Time in milliseconds the newest event was received (0 if
+     * there was none)
+     *
+     * @return A reference to this Response
+     */
+    public final Response addHint(long pending, long delay, long newest) {
+        PollHint.encode(hints, pending, delay, newest);
+        return this;
+    }
+    
+    @Override
+    public final byte[] getBody() {
+        return body;
+    }
+    
+    @Override
+    public final int getBodyLength() {
+        return bodyLength;
+    }
+    
+    @Override
+    public final Integer getKey() {
+        return responseCode;
+    }
+    
+    @Override
+    public final String getValue() {
+        return output;
+    }
+    
+    @Override
+    public final String setValue(String value) {
+        final String temp = output;
+        output = value;
+        return temp;
+    }
+    
+    @Override
+    public final String toString() {
+        return "Response{" + "responseCode=" + responseCode + ", output='" + output + '\'' + ", location='" + location + '\'' + '}';
+    }
+    
+}
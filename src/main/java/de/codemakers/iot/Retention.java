@@ -0,0 +1,257 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background retention of events and Subscribers
+ * <br>
+ * Polls do not clean up anything, instead this evicts expired and surplus
+ * events and idle Subscribers on its own schedule. Events of an Applet are
+ * ordered by time, so evicting stops at the first event, which is still
+ * retained, and a run costs one check per Applet plus the evicted events.
+ * Events may be delivered for up to one interval after they expired.
+ * <br>
+ * The age of events replayed from a {@link Journal} does not include the time
+ * the Server was down, so after a restart Clients have the rest of the
+ * maximum age of an event to catch up (the replay window).
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class Retention {
+    
+    public static final long DEFAULT_INTERVAL = 250;
+    
+    private final EventStore events;
+    private final Subscriptions subscriptions;
+    private final Map<String, RetentionPolicy> policies = new ConcurrentHashMap<>();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private volatile RetentionPolicy defaultPolicy;
+    private volatile long maxIdleTime;
+    private volatile long replayedUntil = 0;
+    private volatile long downtime = 0;
+    private ScheduledExecutorService executor = null;
+    
+    /**
+     * Constructs a new Retention
+     *
+     * @param events EventStore
+     * @param subscriptions Subscriptions
+     * @param defaultPolicy Policy of every Applet without an own policy
+     * @param maxIdleTime Maximum time in milliseconds a Subscriber may be idle
+     */
+    public Retention(EventStore events, Subscriptions subscriptions, RetentionPolicy defaultPolicy, long maxIdleTime) {
+        this.events = events;
+        this.subscriptions = subscriptions;
+        this.maxIdleTime = maxIdleTime;
+        setDefaultPolicy(defaultPolicy);
+    }
+    
+    /**
+     * Returns the policy of every Applet without an own policy
+     *
+     * @return Default RetentionPolicy
+     */
+    public final RetentionPolicy getDefaultPolicy() {
+        return defaultPolicy;
+    }
+    
+    /**
+     * Sets the policy of every Applet without an own policy (its maximum
+     * count is used as the capacity of new Applets)
+     *
+     * @param defaultPolicy Default RetentionPolicy
+     *
+     * @return A reference to this Retention
+     */
+    public final Retention setDefaultPolicy(RetentionPolicy defaultPolicy) {
+        if (defaultPolicy == null) {
+            throw new NullPointerException("defaultPolicy");
+        }
+        this.defaultPolicy = defaultPolicy;
+        events.setCapacity(defaultPolicy.getMaxCount());
+        events.setOverflowPolicy(defaultPolicy.getOverflowPolicy());
+        return this;
+    }
+    
+    /**
+     * Returns the policy of an Applet
+     *
+     * @param id Applet ID
+     *
+     * @return Own RetentionPolicy of the Applet or the default policy
+     */
+    public final RetentionPolicy getPolicy(String id) {
+        return policies.getOrDefault(id, defaultPolicy);
+    }
+    
+    /**
+     * Sets the policy of an Applet
+     * <br>
+     * A maximum count above the capacity of an Applet, which already
+     * received events, is capped by this capacity.
+     *
+     * @param id Applet ID
+     * @param policy RetentionPolicy (null uses the default policy again)
+     *
+     * @return A reference to this Retention
+     */
+    public final Retention setPolicy(String id, RetentionPolicy policy) {
+        if (policy == null) {
+            policies.remove(id);
+            events.setCapacity(id, 0);
+            events.setOverflowPolicy(id, null);
+        } else {
+            policies.put(id, policy);
+            events.setCapacity(id, policy.getMaxCount());
+            events.setOverflowPolicy(id, policy.getOverflowPolicy());
+        }
+        return this;
+    }
+    
+    /**
+     * Returns the own policies of the Applets
+     *
+     * @return Applet IDs and their RetentionPolicies
+     */
+    public final Map<String, RetentionPolicy> getPolicies() {
+        return Collections.unmodifiableMap(policies);
+    }
+    
+    /**
+     * Returns the maximum time a Subscriber may be idle
+     *
+     * @return Time in milliseconds
+     */
+    public final long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+    
+    /**
+     * Sets the maximum time a Subscriber may be idle
+     *
+     * @param maxIdleTime Time in milliseconds
+     *
+     * @return A reference to this Retention
+     */
+    public final Retention setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+        return this;
+    }
+    
+    /**
+     * Sets the replayed events, whose age does not include the time the
+     * Server was down
+     *
+     * @param replayedUntil Time in milliseconds the newest replayed event was
+     * received (0 if no event was replayed)
+     * @param replayedAt Time in milliseconds of the replay
+     *
+     * @return A reference to this Retention
+     */
+    public final Retention setReplayed(long replayedUntil, long replayedAt) {
+        this.downtime = Math.max(0, replayedAt - replayedUntil);
+        this.replayedUntil = replayedUntil;
+        return this;
+    }
+    
+    /**
+     * Returns the number of evicted events
+     *
+     * @return Number of evicted events
+     */
+    public final long getEvictedCount() {
+        return evicted.sum();
+    }
+    
+    /**
+     * Returns the number of expired Subscribers
+     *
+     * @return Number of expired Subscribers
+     */
+    public final long getExpiredCount() {
+        return expired.sum();
+    }
+    
+    /**
+     * Starts applying the policies periodically
+     *
+     * @param interval Time in milliseconds between two runs
+     *
+     * @return A reference to this Retention
+     */
+    public final synchronized Retention start(long interval) {
+        stop();
+        executor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            final Thread thread = new Thread(runnable, "IFTTJ-Retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                run(System.currentTimeMillis());
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        return this;
+    }
+    
+    /**
+     * Stops applying the policies periodically
+     *
+     * @return A reference to this Retention
+     */
+    public final synchronized Retention stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        return this;
+    }
+    
+    /**
+     * Applies the policies once
+     *
+     * @param now Current time in milliseconds
+     *
+     * @return Number of evicted events
+     */
+    public final int run(long now) {
+        final long replayed = replayedUntil;
+        final long offset = replayed == 0 ? 0 : downtime;
+        int count = 0;
+        for (EventBuffer buffer : events.getAll()) {
+            final RetentionPolicy policy = getPolicy(buffer.getID());
+            final long before = now - policy.getMaxAge() + 1;
+            //While replayed events are retained, every newer event is too, so only they are evicted (in the time of the Journal)
+            count += buffer.evict(before - offset <= replayed ? before - offset : before);
+            count += buffer.trim(policy.getMaxCount());
+        }
+        evicted.add(count);
+        expired.add(subscriptions.expire(now, maxIdleTime));
+        return count;
+    }
+    
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+/**
+ * How long and how many events of an Applet are retained and what happens,
+ * when there are more undelivered events
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class RetentionPolicy {
+    
+    private final long maxAge;
+    private final int maxCount;
+    private final OverflowPolicy overflowPolicy;
+    
+    /**
+     * Constructs a new RetentionPolicy, which overwrites the oldest events
+     *
+     * @param maxAge Maximum age of an event in milliseconds
+     * @param maxCount Maximum number of retained events
+     */
+    public RetentionPolicy(long maxAge, int maxCount) {
+        this(maxAge, maxCount, OverflowPolicy.DROP_OLDEST);
+    }
+    
+    /**
+     * Constructs a new RetentionPolicy
+     *
+     * @param maxAge Maximum age of an event in milliseconds
+     * @param maxCount Maximum number of retained events
+     * @param overflowPolicy Policy for new events, when the buffer is full of
+     * undelivered events
+     */
+    public RetentionPolicy(long maxAge, int maxCount, OverflowPolicy overflowPolicy) {
+        if (maxAge <= 0 || maxCount <= 0) {
+            throw new IllegalArgumentException("maxAge and maxCount have to be positive");
+        }
+        if (overflowPolicy == null) {
+            throw new NullPointerException("overflowPolicy");
+        }
+        this.maxAge = maxAge;
+        this.maxCount = maxCount;
+        this.overflowPolicy = overflowPolicy;
+    }
+    
+    /**
+     * Returns the maximum age of an event
+     *
+     * @return Maximum age in milliseconds
+     */
+    public final long getMaxAge() {
+        return maxAge;
+    }
+    
+    /**
+     * Returns the maximum number of retained events
+     *
+     * @return Maximum number of events
+     */
+    public final int getMaxCount() {
+        return maxCount;
+    }
+    
+    /**
+     * Returns the policy for new events, when the buffer is full of
+     * undelivered events
+     *
+     * @return OverflowPolicy
+     */
+    public final OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+    
+    @Override
+    public final String toString() {
+        return "RetentionPolicy{" + "maxAge=" + maxAge + ", maxCount=" + maxCount + ", overflowPolicy=" + overflowPolicy + '}';
+    }
+    
+}
@@ -15,14 +15,29 @@
  */
 package de.codemakers.iot;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.AbstractMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
 import java.util.stream.Collectors;
 
@@ -33,12 +48,52 @@ import java.util.stream.Collectors;
  */
 public class Server {
     
-    private static final Map.Entry<Integer, String> STANDARD_RESPONSE = new AbstractMap.SimpleEntry<>(200, "");
+    static final Map.Entry<Integer, String> STANDARD_RESPONSE = new AbstractMap.SimpleEntry<>(200, "");
+    static final Map.Entry<Integer, String> SERVICE_UNAVAILABLE_RESPONSE = new AbstractMap.SimpleEntry<>(503, "Server busy, try again later!");
+    private static final Map.Entry<Integer, String> REQUEST_TOO_LARGE_RESPONSE = new AbstractMap.SimpleEntry<>(413, "Request too large!");
+    static final Map.Entry<Integer, String> TOO_MANY_REQUESTS_RESPONSE = new AbstractMap.SimpleEntry<>(429, "Too many requests, try again later!");
+    private static final ThreadLocal<ByteBuffer> BODIES = ThreadLocal.withInitial(() -> ByteBuffer.allocate(NioTransport.BUFFER_SIZE));
+    
+    public static final int DEFAULT_BACKLOG = 0;
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+    public static final int DEFAULT_MAX_QUEUED = 1024;
+    
+    /**
+     * System property, which disables Nagle's algorithm of the
+     * {@link Transport#HTTP} transport (otherwise the body of a response on a
+     * kept-alive connection waits for the delayed ACK of its headers)
+     * <br>
+     * The JDK reads it once per JVM for every HttpServer, so it is not set
+     * by the Server, but with "-Dsun.net.httpserver.nodelay=true" on the
+     * command line. The {@link Transport#NIO} transport always disables
+     * Nagle's algorithm on its own sockets.
+     */
+    public static final String NO_DELAY_PROPERTY = "sun.net.httpserver.nodelay";
+    /**
+     * Header carrying the shared secret of the nodes of a {@link Cluster}
+     */
+    public static final String PEER_HEADER = "X-IFTTJ-Peer";
     
     private final int port;
+    private int backlog = DEFAULT_BACKLOG;
+    private Transport transport = Transport.HTTP;
+    private ExecutorType executorType = ExecutorType.FIXED;
+    private int threads = DEFAULT_THREADS;
+    private int maxQueued = DEFAULT_MAX_QUEUED;
     private Thread thread = null;
     private HttpServer server = null;
+    private NioTransport nio = null;
+    private ExecutorService executor = null;
+    private Semaphore permits = null;
+    private final LongAdder rejected = new LongAdder();
     private BiFunction<InetSocketAddress, String, Map.Entry<Integer, String>> handler = (inetSocketAddress, input) -> new AbstractMap.SimpleEntry<>(200, input);
+    private RequestHandler requestHandler = null;
+    private EventStreams streams = null;
+    private Metrics metrics = null;
+    private InetSocketAddress metricsAddress = null;
+    private HttpServer metricsServer = null;
+    private volatile Admission admission = null;
+    private volatile byte[] peerSecret = null;
     
     /**
      * Constructs a new Server for IFTTT POSTs and IFTTJ Clients
@@ -49,6 +104,18 @@ public class Server {
         this.port = port;
     }
     
+    /**
+     * Constructs a new Server for IFTTT POSTs and IFTTJ Clients
+     *
+     * @param port Port to listen for
+     * @param backlog Maximum number of queued incoming connections (0 uses
+     * the system default)
+     */
+    public Server(int port, int backlog) {
+        this.port = port;
+        this.backlog = backlog;
+    }
+    
     /**
      * Returns the port
      *
@@ -58,6 +125,123 @@ public class Server {
         return port;
     }
     
+    /**
+     * Returns the maximum number of queued incoming connections
+     *
+     * @return Backlog (0 uses the system default)
+     */
+    public final int getBacklog() {
+        return backlog;
+    }
+    
+    /**
+     * Sets the maximum number of queued incoming connections (takes effect on
+     * the next start)
+     *
+     * @param backlog Backlog (0 uses the system default)
+     *
+     * @return A reference to this Server
+     */
+    public final Server setBacklog(int backlog) {
+        this.backlog = backlog;
+        return this;
+    }
+    
+    /**
+     * Returns if the {@link Transport#HTTP} transport disables Nagle's
+     * algorithm (see {@link #NO_DELAY_PROPERTY})
+     *
+     * @return <tt>true</tt> if responses are sent without delay
+     */
+    public final boolean isNoDelay() {
+        return transport == Transport.NIO || Boolean.getBoolean(NO_DELAY_PROPERTY);
+    }
+    
+    /**
+     * Returns the transport accepting the connections
+     *
+     * @return Transport
+     */
+    public final Transport getTransport() {
+        return transport;
+    }
+    
+    /**
+     * Sets the transport accepting the connections (takes effect on the next
+     * start)
+     *
+     * @param transport Transport
+     *
+     * @return A reference to this Server
+     */
+    public final Server setTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+    
+    /**
+     * Returns the type of the executor handling the requests
+     *
+     * @return Executor type
+     */
+    public final ExecutorType getExecutorType() {
+        return executorType;
+    }
+    
+    /**
+     * Returns the number of Threads handling the requests
+     *
+     * @return Number of Threads (ignored by {@link ExecutorType#DIRECT} and
+     * {@link ExecutorType#VIRTUAL})
+     */
+    public final int getThreads() {
+        return threads;
+    }
+    
+    /**
+     * Returns the maximum number of requests waiting for a Thread
+     *
+     * @return Maximum number of queued requests
+     */
+    public final int getMaxQueued() {
+        return maxQueued;
+    }
+    
+    /**
+     * Sets the executor handling the requests (takes effect on the next
+     * start)
+     * <br>
+     * At most "threads + maxQueued" requests are handled or queued at the
+     * same time, every other request is rejected with 503 (Service
+     * Unavailable) before its body is read.
+     *
+     * @param executorType Executor type
+     * @param threads Number of Threads (ignored by
+     * {@link ExecutorType#DIRECT} and {@link ExecutorType#VIRTUAL})
+     * @param maxQueued Maximum number of queued requests
+     *
+     * @return A reference to this Server
+     */
+    public final Server setExecutor(ExecutorType executorType, int threads, int maxQueued) {
+        if (threads <= 0 || maxQueued < 0) {
+            throw new IllegalArgumentException("threads has to be positive and maxQueued must not be negative");
+        }
+        this.executorType = executorType;
+        this.threads = threads;
+        this.maxQueued = maxQueued;
+        return this;
+    }
+    
+    /**
+     * Returns the number of requests, which were rejected, because every
+     * Thread was busy and the queue was full
+     *
+     * @return Number of rejected requests
+     */
+    public final long getRejectedCount() {
+        return rejected.sum();
+    }
+    
     /**
      * Returns the handler for IFTTT events
      *
@@ -79,6 +263,141 @@ public class Server {
         return this;
     }
     
+    /**
+     * Returns the handler for raw requests
+     *
+     * @return Raw request handler or null
+     */
+    public final RequestHandler getRequestHandler() {
+        return requestHandler;
+    }
+    
+    /**
+     * Sets the handler for raw requests, which gets the request body as bytes
+     * (takes precedence over the IFTTT event handler)
+     *
+     * @param requestHandler Raw request handler or null to use the IFTTT
+     * event handler
+     *
+     * @return A reference to this Server
+     */
+    public final Server setRequestHandler(RequestHandler requestHandler) {
+        this.requestHandler = requestHandler;
+        return this;
+    }
+    
+    /**
+     * Returns the EventStreams, which serve the streaming context
+     *
+     * @return EventStreams or null
+     */
+    public final EventStreams getStreams() {
+        return streams;
+    }
+    
+    /**
+     * Sets the EventStreams, which serve the streaming context
+     * "/{URL suffix}/stream" (takes effect on the next start)
+     *
+     * @param streams EventStreams or null to disable streaming
+     *
+     * @return A reference to this Server
+     */
+    public final Server setStreams(EventStreams streams) {
+        this.streams = streams;
+        return this;
+    }
+    
+    /**
+     * Returns the Admission, which limits the requests
+     *
+     * @return Admission or null
+     */
+    public final Admission getAdmission() {
+        return admission;
+    }
+    
+    /**
+     * Sets the Admission, which limits the requests before their bodies are
+     * read (requests over the limit are answered with 429 or 503)
+     *
+     * @param admission Admission or null to accept every request
+     *
+     * @return A reference to this Server
+     */
+    public final Server setAdmission(Admission admission) {
+        this.admission = admission;
+        return this;
+    }
+    
+    /**
+     * Sets the shared secret of the nodes of the {@link Cluster}
+     * <br>
+     * Only requests carrying it in the {@link #PEER_HEADER} are handled as
+     * requests of peers (the source address alone could be any local
+     * Client).
+     *
+     * @param peerSecret Shared secret or null, if there are no peers
+     *
+     * @return A reference to this Server
+     */
+    public final Server setPeerSecret(String peerSecret) {
+        this.peerSecret = peerSecret == null ? null : peerSecret.getBytes(StandardCharsets.UTF_8);
+        return this;
+    }
+    
+    /**
+     * Returns if the value of a {@link #PEER_HEADER} is the shared secret
+     *
+     * @param value Value of the header (may be null)
+     *
+     * @return <tt>true</tt> if the request was sent by a peer
+     */
+    final boolean isPeer(byte[] value) {
+        final byte[] temp = peerSecret;
+        return temp != null && value != null && MessageDigest.isEqual(temp, value); //Constant time
+    }
+    
+    /**
+     * Returns the Metrics, which are served at "/metrics"
+     *
+     * @return Metrics or null
+     */
+    public final Metrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Returns the address, which the Metrics are served at
+     *
+     * @return Address or null
+     */
+    public final InetSocketAddress getMetricsAddress() {
+        return metricsAddress;
+    }
+    
+    /**
+     * Sets the Metrics, which are served in the Prometheus text format at
+     * "/metrics" (takes effect on the next start)
+     * <br>
+     * The Metrics get their own address, so they are not reachable through
+     * the public port of the Server (e.g. bind them to the loopback
+     * address).
+     *
+     * @param metrics Metrics or null to disable the metrics context
+     * @param address Address to serve the Metrics at
+     *
+     * @return A reference to this Server
+     */
+    public final Server setMetrics(Metrics metrics, InetSocketAddress address) {
+        if (metrics != null && address == null) {
+            throw new NullPointerException("address");
+        }
+        this.metrics = metrics;
+        this.metricsAddress = address;
+        return this;
+    }
+    
     /**
      * Starts the Server
      *
@@ -87,25 +406,66 @@ public class Server {
      * @return <tt>true</tt> if the Server was started successfully
      */
     public final boolean start(boolean async) {
-        if (thread != null || server != null) {
+        if (thread != null || server != null || nio != null) {
             return false;
         }
         final Runnable start = () -> {
             try {
-                server = HttpServer.create(new InetSocketAddress(port), 0);
-                server.createContext("/" + IFTTJ.URL_SUFFIX, (event) -> {
-                    final BufferedReader br = new BufferedReader(new InputStreamReader(event.getRequestBody()));
-                    final String request = br.lines().collect(Collectors.joining());
-                    br.close();
-                    final Map.Entry<Integer, String> response = handler != null ? handler.apply(event.getRemoteAddress(), request) : STANDARD_RESPONSE;
-                    if (response.getValue() == null) {
-                        response.setValue("");
+                startMetrics();
+                if (transport == Transport.NIO) {
+                    if (streams != null) {
+                        System.err.println("Streaming is only supported by the " + Transport.HTTP + " transport");
                     }
-                    event.sendResponseHeaders(response.getKey(), response.getValue().length());
-                    final OutputStream os = event.getResponseBody();
-                    os.write(response.getValue().getBytes());
-                    os.close();
-                });
+                    nio = new NioTransport(this);
+                    nio.start();
+                    return;
+                }
+                server = HttpServer.create(new InetSocketAddress(port), backlog);
+                executor = executorType.create(threads);
+                permits = new Semaphore(threads + maxQueued);
+                server.createContext("/" + IFTTJ.URL_SUFFIX, dispatch((event) -> {
+                    final String peerHeader = event.getRequestHeaders().getFirst(PEER_HEADER);
+                    final boolean peer = peerHeader != null && isPeer(peerHeader.getBytes(StandardCharsets.UTF_8));
+                    final Admission temp = admission;
+                    if (temp != null) {
+                        final int admitted = temp.admit(event.getRemoteAddress().getAddress(), peer);
+                        if (admitted != Admission.ADMITTED) {
+                            event.getResponseHeaders().set("Retry-After", "1");
+                            send(event, admitted == Admission.TOO_MANY_REQUESTS ? TOO_MANY_REQUESTS_RESPONSE : SERVICE_UNAVAILABLE_RESPONSE);
+                            return;
+                        }
+                    }
+                    try {
+                        final Map.Entry<Integer, String> response;
+                        if (requestHandler != null) {
+                            final int length = readBody(event.getRequestBody());
+                            response = length < 0 ? REQUEST_TOO_LARGE_RESPONSE : requestHandler.handle(event.getRemoteAddress(), BODIES.get(), 0, length, accepts(event.getRequestHeaders().getFirst("Accept")), peer);
+                        } else {
+                            final BufferedReader br = new BufferedReader(new InputStreamReader(event.getRequestBody(), StandardCharsets.UTF_8));
+                            final String request = br.lines().collect(Collectors.joining());
+                            br.close();
+                            response = handler != null ? handler.apply(event.getRemoteAddress(), request) : STANDARD_RESPONSE;
+                        }
+                        if (response instanceof DeferredResponse) {
+                            ((DeferredResponse) response).onComplete((deferredResponse) -> {
+                                try {
+                                    send(event, deferredResponse);
+                                } catch (Exception ex) {
+                                    event.close();
+                                }
+                            });
+                        } else {
+                            send(event, response);
+                        }
+                    } finally {
+                        if (temp != null) {
+                            temp.release(); //Also a parked request, which holds no Thread and must not block other requests
+                        }
+                    }
+                }));
+                if (streams != null) {
+                    server.createContext("/" + IFTTJ.URL_SUFFIX + EventStreams.CONTEXT_SUFFIX, streams.start());
+                }
                 server.setExecutor(null);
                 server.start();
             } catch (Exception ex) {
@@ -115,6 +475,12 @@ public class Server {
                     server.stop(0);
                 }
                 server = null;
+                nio = null;
+                if (executor != null) {
+                    executor.shutdown();
+                }
+                executor = null;
+                stopMetrics();
             }
         };
         if (async) {
@@ -126,6 +492,125 @@ public class Server {
         return true;
     }
     
+    private final void startMetrics() throws IOException {
+        if (metrics == null || metricsServer != null) {
+            return;
+        }
+        final Metrics temp = metrics;
+        metricsServer = HttpServer.create(metricsAddress, 0);
+        metricsServer.createContext(Metrics.CONTEXT, (event) -> {
+            event.getRequestBody().close();
+            event.getResponseHeaders().set("Content-Type", Metrics.CONTENT_TYPE);
+            send(event, new AbstractMap.SimpleEntry<>(200, temp.toPrometheus()));
+        });
+        metricsServer.setExecutor(null);
+        metricsServer.start();
+    }
+    
+    private final void stopMetrics() {
+        if (metricsServer != null) {
+            metricsServer.stop(0);
+        }
+        metricsServer = null;
+    }
+    
+    private final HttpHandler dispatch(HttpHandler handler) {
+        return (event) -> {
+            final ExecutorService temp = executor;
+            if (temp == null) {
+                handler.handle(event);
+                return;
+            }
+            if (!permits.tryAcquire()) {
+                reject(event);
+                return;
+            }
+            try {
+                temp.execute(() -> {
+                    try {
+                        handler.handle(event);
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                        event.close();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                permits.release();
+                reject(event);
+            }
+        };
+    }
+    
+    private final void reject(HttpExchange event) throws IOException {
+        rejected.increment();
+        event.getResponseHeaders().set("Retry-After", "1");
+        send(event, SERVICE_UNAVAILABLE_RESPONSE);
+    }
+    
+    /**
+     * Reads a request body into the reusable buffer of the current Thread
+     *
+     * @return Length of the body or -1, if it is too large
+     */
+    private static final int readBody(InputStream is) throws IOException {
+        ByteBuffer buffer = BODIES.get();
+        int length = 0;
+        int read;
+        while ((read = is.read(buffer.array(), length, buffer.capacity() - length)) >= 0) {
+            length += read;
+            if (length == buffer.capacity()) {
+                if (buffer.capacity() >= NioTransport.MAX_REQUEST_SIZE) {
+                    is.close();
+                    return -1;
+                }
+                buffer = ByteBuffer.wrap(Arrays.copyOf(buffer.array(), buffer.capacity() * 2));
+                BODIES.set(buffer);
+            }
+        }
+        is.close();
+        return length;
+    }
+    
+    private static final void send(HttpExchange event, Map.Entry<Integer, String> response) throws IOException {
+        if (response instanceof Response && ((Response) response).getLocation() != null) {
+            event.getResponseHeaders().set("Location", ((Response) response).getLocation());
+        }
+        if (response instanceof Response && ((Response) response).getHints() != null) {
+            event.getResponseHeaders().set(PollHint.HEADER, ((Response) response).getHints().toString());
+        }
+        final byte[] bytes;
+        final int length;
+        if (response instanceof BinaryBody && ((BinaryBody) response).getBody() != null) {
+            event.getResponseHeaders().set("Content-Type", EventFrame.CONTENT_TYPE);
+            bytes = ((BinaryBody) response).getBody();
+            length = ((BinaryBody) response).getBodyLength();
+        } else {
+            bytes = response.getValue() == null ? new byte[0] : response.getValue().getBytes(StandardCharsets.UTF_8);
+            length = bytes.length;
+        }
+        event.sendResponseHeaders(response.getKey(), length == 0 ? -1 : length);
+        if (length == 0) {
+            event.close(); //Closing the body again would finish the exchange twice
+            return;
+        }
+        final OutputStream os = event.getResponseBody();
+        os.write(bytes, 0, length);
+        os.close();
+    }
+    
+    /**
+     * Returns if an Accept header allows {@link EventFrame#CONTENT_TYPE}
+     *
+     * @param accept Value of the Accept header (may be null)
+     *
+     * @return <tt>true</tt> if the sender accepts binary frames
+     */
+    static final boolean accepts(String accept) {
+        return accept != null && accept.contains(EventFrame.CONTENT_TYPE);
+    }
+    
     /**
      * Stops the Server
      *
@@ -134,7 +619,7 @@ public class Server {
      * @return <tt>true</tt> if the Server was stopped successfully
      */
     public final boolean stop(boolean async) {
-        if (thread == null && server == null) {
+        if (thread == null && server == null && nio == null) {
             return false;
         }
         final Runnable stop = () -> {
@@ -143,6 +628,18 @@ public class Server {
                     server.stop(0);
                 }
                 server = null;
+                if (nio != null) {
+                    nio.stop();
+                }
+                nio = null;
+                if (executor != null) {
+                    executor.shutdown();
+                }
+                executor = null;
+                stopMetrics();
+                if (streams != null) {
+                    streams.clear();
+                }
                 if (thread != null) {
                     thread.interrupt();
                 }
@@ -159,4 +656,70 @@ public class Server {
         return true;
     }
     
+    /**
+     * Transports accepting the connections
+     */
+    public enum Transport {
+        /**
+         * Uses the com.sun.net.httpserver HttpServer with the configured
+         * executor
+         */
+        HTTP,
+        /**
+         * Uses one selector Thread with keep-alive connections and pooled
+         * direct buffers (handles every request on the selector Thread and
+         * does not support streaming)
+         */
+        NIO
+    }
+    
+    /**
+     * Types of executors handling the requests
+     */
+    public enum ExecutorType {
+        /**
+         * Handles every request on the Thread accepting the connections
+         */
+        DIRECT,
+        /**
+         * Handles the requests on a fixed number of Threads
+         */
+        FIXED,
+        /**
+         * Handles the requests on a work-stealing pool
+         */
+        WORK_STEALING,
+        /**
+         * Handles every request on its own virtual Thread (falls back to
+         * {@link #FIXED}, if the JVM does not support virtual Threads)
+         */
+        VIRTUAL;
+        
+        private static final AtomicInteger THREAD_NUMBER = new AtomicInteger(0);
+        private static final ThreadFactory THREAD_FACTORY = (runnable) -> {
+            final Thread thread = new Thread(runnable, "IFTTJ-Server-Worker-" + THREAD_NUMBER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        
+        private final ExecutorService create(int threads) {
+            switch (this) {
+                case DIRECT:
+                    return null;
+                case WORK_STEALING:
+                    return Executors.newWorkStealingPool(threads);
+                case VIRTUAL:
+                    try {
+                        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    } catch (ReflectiveOperationException ex) {
+                        System.err.println("Virtual Threads are not supported by this JVM, using " + FIXED + " instead");
+                        return Executors.newFixedThreadPool(threads, THREAD_FACTORY);
+                    }
+                default:
+                    return Executors.newFixedThreadPool(threads, THREAD_FACTORY);
+            }
+        }
+        
+    }
+    
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A Client, which is polling for events
+ * <br>
+ * Every Subscriber has one cursor per Applet (the sequence number of the last
+ * delivered event), so every event is delivered exactly once to every
+ * Subscriber. A cursor is attached to the {@link EventBuffer} it polls, so
+ * the {@link OverflowPolicy} of the buffer can protect undelivered events.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class Subscriber {
+    
+    private final String id;
+    private final Map<String, Cursor> cursors = new ConcurrentHashMap<>();
+    private final AtomicLong skipped = new AtomicLong(0);
+    private final Consumer<Subscriber> cursorListener;
+    private volatile long lastSeen;
+    private volatile boolean closed = false;
+    
+    /**
+     * Constructs a new Subscriber
+     *
+     * @param id Client ID
+     * @param now Current time in milliseconds
+     */
+    public Subscriber(String id, long now) {
+        this(id, now, null);
+    }
+    
+    /**
+     * Constructs a new Subscriber
+     *
+     * @param id Client ID
+     * @param now Current time in milliseconds
+     * @param cursorListener Listener, which gets called every time a cursor
+     * was moved (may be null)
+     */
+    public Subscriber(String id, long now, Consumer<Subscriber> cursorListener) {
+        this.id = id;
+        this.lastSeen = now;
+        this.cursorListener = cursorListener;
+    }
+    
+    /**
+     * Returns the Client ID
+     *
+     * @return Client ID
+     */
+    public final String getID() {
+        return id;
+    }
+    
+    /**
+     * Returns the time this Subscriber was last seen
+     *
+     * @return Time in milliseconds
+     */
+    public final long getLastSeen() {
+        return lastSeen;
+    }
+    
+    /**
+     * Marks this Subscriber as seen
+     *
+     * @param now Current time in milliseconds
+     *
+     * @return A reference to this Subscriber
+     */
+    public final Subscriber touch(long now) {
+        if (now > lastSeen) {
+            lastSeen = now;
+        }
+        return this;
+    }
+    
+    /**
+     * Returns the number of events, which were overwritten or evicted before
+     * they could be delivered to this Subscriber
+     *
+     * @return Number of skipped events
+     */
+    public final long getSkippedCount() {
+        return skipped.get();
+    }
+    
+    /**
+     * Returns the sequence number of the last delivered event of an Applet
+     *
+     * @param id Applet ID
+     *
+     * @return Sequence number or {@link EventBuffer#NO_SEQUENCE}
+     */
+    public final long getCursor(String id) {
+        final AtomicLong cursor = cursors.get(id);
+        return cursor == null ? EventBuffer.NO_SEQUENCE : cursor.get();
+    }
+    
+    /**
+     * Moves the cursor of an Applet forward (e.g. while replaying a
+     * {@link Journal})
+     *
+     * @param id Applet ID
+     * @param sequence Sequence number of the last delivered event
+     *
+     * @return A reference to this Subscriber
+     */
+    public final Subscriber setCursor(String id, long sequence) {
+        Cursor cursor = cursors.get(id);
+        if (cursor == null) {
+            cursor = cursors.computeIfAbsent(id, (key) -> new Cursor(sequence));
+        }
+        long current;
+        do {
+            current = cursor.get();
+        } while (current < sequence && !cursor.compareAndSet(current, sequence));
+        return this;
+    }
+    
+    /**
+     * Calls an action for the cursor of every Applet
+     *
+     * @param action Action, which gets the Applet ID and the sequence number
+     * of the last delivered event
+     */
+    public final void forEachCursor(ObjLongConsumer<String> action) {
+        cursors.forEach((key, cursor) -> action.accept(key, cursor.get()));
+    }
+    
+    /**
+     * Returns the next undelivered event of an Applet and marks it as
+     * delivered
+     * <br>
+     * A new Subscriber starts with the oldest retained event (unless its
+     * cursor was restored, see {@link Subscriptions}).
+     *
+     * @param events Events of the Applet
+     *
+     * @return Event or null, if every event was already delivered or this
+     * Subscriber was detached
+     */
+    public final Event poll(EventBuffer events) {
+        if (closed) {
+            return null; //Expired, the next request of the Client gets a new Subscriber
+        }
+        Cursor cursor = cursors.get(events.getID());
+        if (cursor == null) {
+            cursor = cursors.computeIfAbsent(events.getID(), (key) -> new Cursor(events.getTailSequence() - 1));
+        }
+        if (cursor.events != events && !attach(cursor, events)) {
+            return null;
+        }
+        while (true) {
+            final long sequence = cursor.get();
+            final Event event = events.next(sequence);
+            if (event == null) {
+                return null;
+            }
+            if (cursor.compareAndSet(sequence, event.getSequence())) {
+                if (event.getSequence() > sequence + 1) {
+                    skipped.addAndGet(event.getSequence() - sequence - 1);
+                }
+                if (cursorListener != null) {
+                    cursorListener.accept(this);
+                }
+                return event;
+            }
+        }
+    }
+    
+    /**
+     * Returns the next undelivered events of some Applets and marks them as
+     * delivered
+     * <br>
+     * The Applets are polled round-robin, so one busy Applet does not starve
+     * the others.
+     *
+     * @param events Events of the Applets
+     * @param maxSize Maximum number of returned events
+     *
+     * @return Events (empty if every event was already delivered)
+     */
+    public final List<Event> poll(List<EventBuffer> events, int maxSize) {
+        final List<EventBuffer> buffers = new ArrayList<>(events);
+        final List<Event> output = new ArrayList<>();
+        while (output.size() < maxSize && !buffers.isEmpty()) {
+            final Iterator<EventBuffer> iterator = buffers.iterator();
+            while (output.size() < maxSize && iterator.hasNext()) {
+                final Event event = poll(iterator.next());
+                if (event == null) {
+                    iterator.remove();
+                } else {
+                    output.add(event);
+                }
+            }
+        }
+        return output;
+    }
+    
+    /**
+     * Detaches every cursor from its EventBuffer (e.g. when this Subscriber
+     * expired), so it does not hold back new events anymore
+     * <br>
+     * Polls running meanwhile do not attach their cursors again, they return
+     * nothing instead.
+     */
+    public final synchronized void detach() {
+        closed = true;
+        for (Cursor cursor : cursors.values()) {
+            final EventBuffer events = cursor.events;
+            if (events != null) {
+                events.detach(cursor);
+                cursor.events = null;
+            }
+        }
+    }
+    
+    private final synchronized boolean attach(Cursor cursor, EventBuffer events) {
+        if (closed) {
+            return false;
+        }
+        final EventBuffer previous = cursor.events;
+        if (previous == events) {
+            return true;
+        }
+        if (previous != null) {
+            previous.detach(cursor);
+        }
+        events.attach(cursor);
+        cursor.events = events;
+        return true;
+    }
+    
+    @Override
+    public final String toString() {
+        return "Subscriber{" + "id='" + id + '\'' + ", cursors=" + cursors + ", lastSeen=" + lastSeen + '}';
+    }
+    
+    /**
+     * Cursor of one Applet, which knows the EventBuffer it is attached to
+     */
+    private static final class Cursor extends AtomicLong {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private volatile transient EventBuffer events = null;
+        
+        private Cursor(long sequence) {
+            super(sequence);
+        }
+        
+    }
+    
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Holds every known {@link Subscriber}
+ * <br>
+ * Idle Subscribers are expired through a {@link TimerWheel}, so expiring does
+ * not need to look at every Subscriber.
+ * <br>
+ * The cursors of the last {@link #getMaxExpired()} expired Subscribers are
+ * remembered, so a Client returning after its Subscriber expired continues
+ * after the events it already received instead of receiving every retained
+ * event again. Only a Client, which was forgotten meanwhile (or never seen),
+ * starts with the oldest retained event, because the Server can not tell it
+ * apart from a new Client, which expects them.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class Subscriptions {
+    
+    public static final int DEFAULT_MAX_EXPIRED = 10000;
+    
+    private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final TimerWheel<Subscriber> wheel = new TimerWheel<>(1000, 512);
+    private final int maxExpired;
+    private final Map<String, Map<String, Long>> expired;
+    private volatile Consumer<Subscriber> cursorListener = null;
+    
+    /**
+     * Constructs a new Subscriptions remembering the cursors of the last
+     * {@link #DEFAULT_MAX_EXPIRED} expired Subscribers
+     */
+    public Subscriptions() {
+        this(DEFAULT_MAX_EXPIRED);
+    }
+    
+    /**
+     * Constructs a new Subscriptions
+     *
+     * @param maxExpired Number of expired Subscribers, whose cursors are
+     * remembered (0 forgets them)
+     */
+    public Subscriptions(int maxExpired) {
+        if (maxExpired < 0) {
+            throw new IllegalArgumentException("maxExpired must not be negative");
+        }
+        this.maxExpired = maxExpired;
+        this.expired = new LinkedHashMap<String, Map<String, Long>>(16, 0.75F, true) {
+            @Override
+            protected final boolean removeEldestEntry(Map.Entry<String, Map<String, Long>> eldest) {
+                return size() > maxExpired; //Bounded, because the Client IDs come from the Clients
+            }
+        };
+    }
+    
+    /**
+     * Returns the number of expired Subscribers, whose cursors are remembered
+     * at most
+     *
+     * @return Maximum number of remembered Subscribers
+     */
+    public final int getMaxExpired() {
+        return maxExpired;
+    }
+    
+    /**
+     * Returns the listener, which new Subscribers call every time one of
+     * their cursors was moved
+     *
+     * @return Cursor listener (may be null)
+     */
+    public final Consumer<Subscriber> getCursorListener() {
+        return cursorListener;
+    }
+    
+    /**
+     * Sets the listener, which new Subscribers call every time one of their
+     * cursors was moved
+     *
+     * @param cursorListener Cursor listener (may be null)
+     *
+     * @return A reference to this Subscriptions
+     */
+    public final Subscriptions setCursorListener(Consumer<Subscriber> cursorListener) {
+        this.cursorListener = cursorListener;
+        return this;
+    }
+    
+    /**
+     * Returns a Subscriber and creates it if necessary
+     *
+     * @param id Client ID
+     * @param now Current time in milliseconds
+     *
+     * @return Subscriber
+     */
+    public final Subscriber get(String id, long now) {
+        final Subscriber subscriber = subscribers.get(id);
+        if (subscriber != null) {
+            return subscriber.touch(now);
+        }
+        return subscribers.computeIfAbsent(id, (key) -> {
+            final Subscriber temp = new Subscriber(key, now, cursorListener);
+            final Map<String, Long> cursors;
+            synchronized (expired) {
+                cursors = expired.remove(key);
+            }
+            if (cursors != null) {
+                cursors.forEach(temp::setCursor); //The Client returned after its Subscriber expired
+            }
+            wheel.schedule(temp, now);
+            return temp;
+        }).touch(now);
+    }
+    
+    /**
+     * Returns a Subscriber
+     *
+     * @param id Client ID
+     *
+     * @return Subscriber or null, if there is none
+     */
+    public final Subscriber get(String id) {
+        return subscribers.get(id);
+    }
+    
+    /**
+     * Returns every Subscriber
+     *
+     * @return Subscribers
+     */
+    public final Collection<Subscriber> getAll() {
+        return subscribers.values();
+    }
+    
+    /**
+     * Removes every Subscriber, which was not seen for a given time
+     *
+     * @param now Current time in milliseconds
+     * @param maxIdleTime Maximum time in milliseconds a Subscriber may be idle
+     *
+     * @return Number of removed Subscribers
+     */
+    public final int expire(long now, long maxIdleTime) {
+        if (!wheel.isDue(now)) {
+            return 0;
+        }
+        return wheel.advance(now, (subscriber) -> subscriber.getLastSeen() + maxIdleTime, (subscriber) -> {
+            if (subscribers.remove(subscriber.getID(), subscriber)) {
+                subscriber.detach();
+                remember(subscriber);
+            }
+        });
+    }
+    
+    /**
+     * Removes every Subscriber
+     */
+    public final void clear() {
+        subscribers.values().forEach(Subscriber::detach);
+        subscribers.clear();
+        synchronized (expired) {
+            expired.clear();
+        }
+    }
+    
+    private final void remember(Subscriber subscriber) {
+        if (maxExpired == 0) {
+            return;
+        }
+        final Map<String, Long> cursors = new HashMap<>();
+        subscriber.forEachCursor(cursors::put);
+        if (cursors.isEmpty()) {
+            return;
+        }
+        synchronized (expired) {
+            expired.put(subscriber.getID(), cursors);
+        }
+    }
+    
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Hashed timer wheel
+ * <br>
+ * Elements are put into the bucket of their deadline. Advancing the wheel only
+ * looks at the buckets of the elapsed ticks, so the cost depends on the number
+ * of due elements and not on the number of all elements. Deadlines are checked
+ * again, when a bucket is due, so elements may postpone their deadline without
+ * touching the wheel.
+ *
+ * @param <T> Type of the elements
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class TimerWheel<T> {
+    
+    private final long tickDuration;
+    private final List<T>[] buckets;
+    private volatile long lastTick = -1;
+    private int size = 0;
+    
+    /**
+     * Constructs a new TimerWheel
+     *
+     * @param tickDuration Duration of one tick in milliseconds
+     * @param wheelSize Number of buckets
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long tickDuration, int wheelSize) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickDuration and wheelSize have to be positive");
+        }
+        this.tickDuration = tickDuration;
+        this.buckets = new List[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+    }
+    
+    /**
+     * Returns the number of scheduled elements
+     *
+     * @return Number of elements
+     */
+    public final synchronized int size() {
+        return size;
+    }
+    
+    /**
+     * Schedules an element
+     *
+     * @param element Element
+     * @param deadline Time in milliseconds the element is due
+     */
+    public final synchronized void schedule(T element, long deadline) {
+        if (lastTick < 0) {
+            lastTick = deadline / tickDuration - 1; //Otherwise the first advance could start after this bucket
+        }
+        final long tick = Math.max(deadline / tickDuration, lastTick + 1);
+        buckets[(int) (tick % buckets.length)].add(element);
+        size++;
+    }
+    
+    /**
+     * Returns whether advancing the wheel up to the given time would pass at
+     * least one tick
+     *
+     * @param now Current time in milliseconds
+     *
+     * @return <tt>true</tt> if a tick has passed
+     */
+    public final boolean isDue(long now) {
+        return now / tickDuration > lastTick;
+    }
+    
+    /**
+     * Advances the wheel up to the given time
+     *
+     * @param now Current time in milliseconds
+     * @param deadline Returns the current deadline of an element
+     * @param expired Consumes every element, whose deadline has passed
+     *
+     * @return Number of expired elements
+     */
+    public final int advance(long now, ToLongFunction<T> deadline, Consumer<T> expired) {
+        if (!isDue(now)) {
+            return 0;
+        }
+        final List<T> due = new ArrayList<>();
+        synchronized (this) {
+            final long tick = now / tickDuration;
+            if (lastTick < 0) {
+                lastTick = tick - 1;
+            }
+            final long ticks = Math.min(tick - lastTick, buckets.length);
+            for (long i = 1; i <= ticks; i++) {
+                final List<T> bucket = buckets[(int) ((lastTick + i) % buckets.length)];
+                size -= bucket.size();
+                due.addAll(bucket);
+                bucket.clear();
+            }
+            lastTick = Math.max(lastTick, tick);
+        }
+        int count = 0;
+        for (T element : due) {
+            final long time = deadline.applyAsLong(element);
+            if (time <= now) {
+                expired.accept(element);
+                count++;
+            } else {
+                schedule(element, time);
+            }
+        }
+        return count;
+    }
+    
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+/**
+ * Token bucket rate limiter
+ * <br>
+ * The bucket holds up to "burst" tokens and is refilled with "rate" tokens
+ * per second. Every permitted action takes one token.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class TokenBucket {
+    
+    private final double rate;
+    private final double burst;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    
+    /**
+     * Constructs a new full TokenBucket
+     *
+     * @param rate Tokens added per second
+     * @param burst Maximum number of tokens
+     */
+    public TokenBucket(double rate, double burst) {
+        if (rate <= 0 || burst < 1) {
+            throw new IllegalArgumentException("rate has to be positive and burst at least 1");
+        }
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+    
+    /**
+     * Returns the number of tokens added per second
+     *
+     * @return Rate
+     */
+    public final double getRate() {
+        return rate;
+    }
+    
+    /**
+     * Returns the maximum number of tokens
+     *
+     * @return Burst
+     */
+    public final double getBurst() {
+        return burst;
+    }
+    
+    /**
+     * Takes a token, if there is one
+     *
+     * @return <tt>true</tt> if a token was taken
+     */
+    public final synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+    
+    /**
+     * Takes a token and waits for it, if there is none
+     *
+     * @throws InterruptedException If the Thread was interrupted while
+     * waiting
+     */
+    public final void acquire() throws InterruptedException {
+        long wait;
+        while ((wait = reserve()) > 0) {
+            Thread.sleep(Math.max(1, wait));
+        }
+    }
+    
+    /**
+     * Returns the time until the next token is available
+     *
+     * @return Time in milliseconds (0 if there is a token)
+     */
+    public final synchronized long getWaitTime() {
+        refill();
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) * 1000 / rate);
+    }
+    
+    private final synchronized long reserve() {
+        refill();
+        if (tokens >= 1) {
+            tokens--;
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) * 1000 / rate);
+    }
+    
+    private final void refill() {
+        final long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1_000_000_000.0);
+        lastRefill = now;
+    }
+    
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import org.apache.http.Header;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outbound queue for IFTTT Webhook triggers
+ * <br>
+ * Triggers are queued and taken in batches by one dispatcher Thread, which
+ * rate limits them with a {@link TokenBucket} and hands them to a few sender
+ * Threads. All senders share one pooled HttpClient, so the connection (and
+ * TLS session) to the endpoint is kept alive between triggers. Failed
+ * triggers (I/O errors, 429 and 5xx) are retried with exponential backoff.
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class Triggers {
+    
+    public static final int DEFAULT_SENDERS = 4;
+    public static final int DEFAULT_MAX_QUEUED = 10000;
+    public static final double DEFAULT_RATE = 25;
+    public static final int DEFAULT_BURST = 25;
+    public static final int BATCH_SIZE = 64;
+    public static final int MAX_RETRIES = 3;
+    public static final long RETRY_DELAY = 500;
+    public static final long MAX_RETRY_DELAY = 30000;
+    public static final int CONNECT_TIMEOUT = 5000;
+    public static final int SOCKET_TIMEOUT = 10000;
+    
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+    private final BlockingQueue<Trigger> queue;
+    private final TokenBucket bucket;
+    private final ScheduledThreadPoolExecutor senders;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final Histogram latency = new Histogram();
+    private Thread dispatcher = null;
+    private volatile boolean closed = false;
+    
+    /**
+     * Constructs a new Triggers queue with the default settings
+     */
+    public Triggers() {
+        this(DEFAULT_SENDERS, DEFAULT_MAX_QUEUED, DEFAULT_RATE, DEFAULT_BURST);
+    }
+    
+    /**
+     * Constructs a new Triggers queue
+     *
+     * @param senders Number of sender Threads (and pooled connections)
+     * @param maxQueued Maximum number of queued triggers
+     * @param rate Maximum number of triggers per second
+     * @param burst Maximum number of triggers sent at once
+     */
+    public Triggers(int senders, int maxQueued, double rate, int burst) {
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(senders);
+        connectionManager.setDefaultMaxPerRoute(senders);
+        connectionManager.setValidateAfterInactivity(2000);
+        this.client = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(CONNECT_TIMEOUT).setConnectionRequestTimeout(CONNECT_TIMEOUT).setSocketTimeout(SOCKET_TIMEOUT).build()).build();
+        this.queue = new LinkedBlockingQueue<>(maxQueued);
+        this.bucket = new TokenBucket(rate, burst);
+        final AtomicInteger threads = new AtomicInteger(0);
+        this.senders = new ScheduledThreadPoolExecutor(senders, (runnable) -> {
+            final Thread thread = new Thread(runnable, "IFTTJ-Trigger-Sender-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Returns the number of successfully sent triggers
+     *
+     * @return Number of sent triggers
+     */
+    public final long getSentCount() {
+        return sent.sum();
+    }
+    
+    /**
+     * Returns the number of triggers, which finally failed
+     *
+     * @return Number of failed triggers
+     */
+    public final long getFailedCount() {
+        return failed.sum();
+    }
+    
+    /**
+     * Returns the number of retries
+     *
+     * @return Number of retries
+     */
+    public final long getRetryCount() {
+        return retried.sum();
+    }
+    
+    /**
+     * Returns the time from queueing a trigger until it was sent or failed
+     * finally (including retries)
+     *
+     * @return Histogram of nanoseconds
+     */
+    public final Histogram getLatency() {
+        return latency;
+    }
+    
+    /**
+     * Returns the number of queued triggers
+     *
+     * @return Number of queued triggers
+     */
+    public final int getQueuedCount() {
+        return queue.size();
+    }
+    
+    /**
+     * Queues a trigger
+     *
+     * @param url Webhook URL
+     * @param json UTF-8 encoded JSON body (e.g. from a {@link JSONEncoder})
+     *
+     * @return Future, which completes with <tt>true</tt> if the endpoint
+     * responded with 2xx, or with <tt>false</tt> if the trigger failed
+     * finally (it never completes exceptionally)
+     */
+    public final CompletableFuture<Boolean> submit(String url, byte[] json) {
+        final Trigger trigger = new Trigger(url, json);
+        if (closed || !queue.offer(trigger)) {
+            complete(trigger, false);
+            return trigger.future;
+        }
+        startDispatcher();
+        return trigger.future;
+    }
+    
+    /**
+     * Stops the queue, fails every queued trigger and closes all connections
+     */
+    public final void close() {
+        closed = true;
+        synchronized (this) {
+            if (dispatcher != null) {
+                dispatcher.interrupt();
+            }
+        }
+        for (Runnable runnable : senders.shutdownNow()) {
+            runnable.run(); //Fails pending sends and requeues pending retries
+        }
+        Trigger trigger;
+        while ((trigger = queue.poll()) != null) {
+            complete(trigger, false);
+        }
+        try {
+            client.close();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+    
+    private final synchronized void startDispatcher() {
+        if (dispatcher != null || closed) {
+            return;
+        }
+        dispatcher = new Thread(this::dispatch, "IFTTJ-Trigger-Dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+    
+    private final void dispatch() {
+        final List<Trigger> batch = new ArrayList<>(BATCH_SIZE);
+        int index = 0;
+        try {
+            while (!closed) {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (index = 0; index < batch.size(); index++) {
+                    final Trigger trigger = batch.get(index);
+                    bucket.acquire();
+                    try {
+                        senders.execute(() -> send(trigger));
+                    } catch (RejectedExecutionException ex) {
+                        complete(trigger, false);
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            //Closed
+        }
+        for (; index < batch.size(); index++) {
+            complete(batch.get(index), false);
+        }
+    }
+    
+    private final void send(Trigger trigger) {
+        if (closed) {
+            complete(trigger, false);
+            return;
+        }
+        final HttpPost post;
+        try {
+            post = new HttpPost(trigger.url);
+        } catch (IllegalArgumentException ex) { //Invalid URI (e.g. a space in the event name or key), retrying will not help
+            complete(trigger, false);
+            return;
+        }
+        post.setHeader("Accept", "application/json");
+        post.setEntity(new ByteArrayEntity(trigger.json, ContentType.APPLICATION_JSON));
+        long retryAfter = -1;
+        try (final CloseableHttpResponse response = client.execute(post)) {
+            final int responseCode = response.getStatusLine().getStatusCode();
+            EntityUtils.consume(response.getEntity()); //Releases the connection back to the pool
+            if (responseCode >= 200 && responseCode < 300) {
+                complete(trigger, true);
+                return;
+            }
+            if (responseCode != 429 && responseCode < 500) {
+                complete(trigger, false);
+                return;
+            }
+            final Header header = response.getFirstHeader("Retry-After");
+            if (header != null) {
+                try {
+                    retryAfter = Long.parseLong(header.getValue().trim()) * 1000;
+                } catch (NumberFormatException ex) {
+                    //HTTP-dates are not supported, the backoff is used instead
+                }
+            }
+        } catch (IOException ex) {
+            //Retried below
+        } catch (RuntimeException ex) { //The future must never stay pending, otherwise the caller waits forever
+            complete(trigger, false);
+            return;
+        }
+        retry(trigger, retryAfter);
+    }
+    
+    private final void retry(Trigger trigger, long retryAfter) {
+        if (closed || trigger.attempts >= MAX_RETRIES) {
+            complete(trigger, false);
+            return;
+        }
+        final long delay = Math.min(MAX_RETRY_DELAY, Math.max(retryAfter, RETRY_DELAY << trigger.attempts));
+        trigger.attempts++;
+        retried.increment();
+        try {
+            senders.schedule(() -> {
+                if (!queue.offer(trigger)) {
+                    complete(trigger, false);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            complete(trigger, false);
+        }
+    }
+    
+    private final void complete(Trigger trigger, boolean success) {
+        (success ? sent : failed).increment();
+        latency.recordSince(trigger.created);
+        trigger.future.complete(success);
+    }
+    
+    private static final class Trigger {
+        
+        private final String url;
+        private final byte[] json;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        private final long created = System.nanoTime();
+        private int attempts = 0;
+        
+        private Trigger(String url, byte[] json) {
+            this.url = url;
+            this.json = json;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes UTF-8 directly from and into ByteBuffers without
+ * allocating intermediate arrays
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+final class Utf8 {
+    
+    private static final char REPLACEMENT = '\uFFFD';
+    
+    private Utf8() {
+    }
+    
+    /**
+     * Returns the number of bytes the UTF-8 encoded text needs
+     *
+     * @param text Text
+     *
+     * @return Number of bytes
+     */
+    static final int length(CharSequence text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+    
+    /**
+     * Writes the UTF-8 encoded text into a buffer
+     *
+     * @param text Text
+     * @param buffer Buffer (needs at least {@link #length(CharSequence)}
+     * remaining bytes)
+     */
+    static final void encode(CharSequence text, ByteBuffer buffer) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+    
+    /**
+     * Decodes UTF-8 encoded bytes of a buffer (absolute positions, the
+     * position of the buffer is not changed)
+     *
+     * @param buffer Buffer
+     * @param from First index (inclusive)
+     * @param to Last index (exclusive)
+     * @param chars Target array (needs at least "to - from" chars)
+     *
+     * @return Number of decoded chars
+     */
+    static final int decode(ByteBuffer buffer, int from, int to, char[] chars) {
+        int length = 0;
+        int i = from;
+        while (i < to) {
+            final int b = buffer.get(i) & 0xFF;
+            if (b < 0x80) {
+                chars[length++] = (char) b;
+                i++;
+                continue;
+            }
+            final int size = b >= 0xF0 ? 4 : (b >= 0xE0 ? 3 : (b >= 0xC0 ? 2 : 0));
+            if (size == 0 || i + size > to) {
+                chars[length++] = REPLACEMENT;
+                i++;
+                continue;
+            }
+            int codePoint = b & (0xFF >> (size + 1));
+            boolean valid = true;
+            for (int j = 1; j < size; j++) {
+                final int next = buffer.get(i + j) & 0xFF;
+                if ((next & 0xC0) != 0x80) {
+                    valid = false;
+                    break;
+                }
+                codePoint = (codePoint << 6) | (next & 0x3F);
+            }
+            if (!valid || codePoint > Character.MAX_CODE_POINT) {
+                chars[length++] = REPLACEMENT;
+                i++;
+                continue;
+            }
+            i += size;
+            if (codePoint >= 0x10000) {
+                chars[length++] = Character.highSurrogate(codePoint);
+                chars[length++] = Character.lowSurrogate(codePoint);
+            } else {
+                chars[length++] = (char) codePoint;
+            }
+        }
+        return length;
+    }
+    
+}
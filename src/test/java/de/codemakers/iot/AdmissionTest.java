@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.net.InetAddress;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link Admission}
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class AdmissionTest {
+    
+    @Test
+    public void testBurstAndRefill() throws Exception {
+        final Admission admission = new Admission().setSourceLimit(20, 3);
+        final InetAddress source = InetAddress.getByName("192.0.2.1");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Admission.ADMITTED, admit(admission, source));
+        }
+        assertEquals(Admission.TOO_MANY_REQUESTS, admit(admission, source));
+        assertEquals(1, admission.getRejectedSourceCount());
+        Thread.sleep(100); //Refills one token every 50 milliseconds
+        assertEquals(Admission.ADMITTED, admit(admission, source));
+        assertEquals(0, admission.getInFlight());
+    }
+    
+    @Test
+    public void testSourcesAreLimitedSeparately() throws Exception {
+        final Admission admission = new Admission().setSourceLimit(1, 1);
+        assertEquals(Admission.ADMITTED, admit(admission, InetAddress.getByName("192.0.2.1")));
+        assertEquals(Admission.TOO_MANY_REQUESTS, admit(admission, InetAddress.getByName("192.0.2.1")));
+        assertEquals(Admission.ADMITTED, admit(admission, InetAddress.getByName("192.0.2.2")));
+        assertEquals(Admission.ADMITTED, admit(admission, InetAddress.getByName("2001:db8:0:1::1")));
+        assertEquals("One /64 prefix is one source", Admission.TOO_MANY_REQUESTS, admit(admission, InetAddress.getByName("2001:db8:0:1::2")));
+    }
+    
+    @Test
+    public void testChangingTheLimitClearsTheBuckets() throws Exception {
+        final Admission admission = new Admission(16).setSourceLimit(1, 1);
+        final InetAddress source = InetAddress.getByName("192.0.2.1");
+        for (int i = 0; i < 1000; i++) { //More sources than slots do not need more memory
+            admit(admission, InetAddress.getByAddress(new byte[] {10, 0, (byte) (i >> 8), (byte) i}));
+        }
+        admit(admission, source);
+        assertEquals(Admission.TOO_MANY_REQUESTS, admit(admission, source));
+        admission.setSourceLimit(1, 1);
+        assertEquals(Admission.ADMITTED, admit(admission, source));
+        admission.setSourceLimit(0, 0);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Admission.ADMITTED, admit(admission, source));
+        }
+    }
+    
+    @Test
+    public void testPeersAreNotLimited() throws Exception {
+        final InetAddress peer = InetAddress.getByName("192.0.2.1");
+        final Admission admission = new Admission().setSourceLimit(1, 1);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Admission.ADMITTED, admission.admit(peer, true));
+            admission.release();
+        }
+        assertEquals("The address alone does not make a peer", Admission.ADMITTED, admit(admission, peer));
+        assertEquals(Admission.TOO_MANY_REQUESTS, admit(admission, peer));
+        assertEquals(Admission.ADMITTED, admit(admission, InetAddress.getByName("192.0.2.2")));
+        assertEquals(Admission.TOO_MANY_REQUESTS, admit(admission, InetAddress.getByName("192.0.2.2")));
+    }
+    
+    @Test
+    public void testMaxConcurrent() throws Exception {
+        final Admission admission = new Admission().setMaxConcurrent(1);
+        final InetAddress source = InetAddress.getByName("192.0.2.1");
+        assertEquals(Admission.ADMITTED, admission.admit(source));
+        assertEquals(Admission.SERVICE_UNAVAILABLE, admission.admit(source));
+        assertEquals(1, admission.getInFlight());
+        admission.release();
+        assertEquals(Admission.ADMITTED, admission.admit(source));
+        admission.release();
+        assertEquals(1, admission.getRejectedConcurrencyCount());
+    }
+    
+    @Test
+    public void testAppletLimit() {
+        final Admission admission = new Admission().setAppletLimit(1, 2);
+        assertTrue(admission.admitTrigger("applet1"));
+        assertTrue(admission.admitTrigger("applet1"));
+        assertFalse(admission.admitTrigger("applet1"));
+        assertTrue(admission.admitTrigger("applet2"));
+        assertEquals(1, admission.getRejectedAppletCount());
+    }
+    
+    private static final int admit(Admission admission, InetAddress source) {
+        final int result = admission.admit(source);
+        if (result == Admission.ADMITTED) {
+            admission.release();
+        }
+        return result;
+    }
+    
+}
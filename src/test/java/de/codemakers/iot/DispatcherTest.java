@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link Dispatcher}
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class DispatcherTest {
+    
+    @Test
+    public void testDispatchDoesNotBlockWhileFull() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch handlers = new CountDownLatch(1);
+        final Queue<String> drained = new ConcurrentLinkedQueue<>();
+        final Dispatcher dispatcher = new Dispatcher(executor, (events) -> {
+            try {
+                handlers.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, drained::add).setMaxQueued(2);
+        try {
+            for (int i = 1; i <= 5; i++) {
+                dispatcher.dispatch(new Event("applet1", i, 1000 + i, "event " + i));
+            }
+            assertTrue(dispatcher.isFull("applet1"));
+            assertFalse(dispatcher.isFull("applet2"));
+            assertTrue(drained.isEmpty());
+            handlers.countDown();
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (dispatcher.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertFalse(dispatcher.isFull("applet1"));
+            assertEquals("The drain listener is called once, when the lane has space again", "applet1", drained.poll());
+            assertTrue(drained.isEmpty());
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+    
+}
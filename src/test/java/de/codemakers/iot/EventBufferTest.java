@@ -0,0 +1,146 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link EventBuffer} and its {@link OverflowPolicy}s
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class EventBufferTest {
+    
+    private static final int PRODUCERS = 4;
+    private static final int EVENTS_PER_PRODUCER = 10000;
+    
+    @Test
+    public void testNextKeepsTheOrderOfConcurrentProducers() throws Exception {
+        final EventBuffer events = new EventBuffer("applet", PRODUCERS * EVENTS_PER_PRODUCER);
+        final List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < PRODUCERS; i++) {
+            final int producer = i;
+            final Thread thread = new Thread(() -> {
+                for (int j = 0; j < EVENTS_PER_PRODUCER; j++) {
+                    events.add(j, producer + ":" + j);
+                }
+            });
+            producers.add(thread);
+            thread.start();
+        }
+        final int[] next = new int[PRODUCERS];
+        long cursor = EventBuffer.NO_SEQUENCE;
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (cursor < PRODUCERS * EVENTS_PER_PRODUCER && System.currentTimeMillis() < deadline) {
+            final Event event = events.next(cursor);
+            if (event == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals("Sequence numbers have to be delivered without gaps", cursor + 1, event.getSequence());
+            final String[] split = event.getData().split(":");
+            final int producer = Integer.parseInt(split[0]);
+            assertEquals("Events of one producer have to be delivered in order", next[producer]++, Integer.parseInt(split[1]));
+            cursor = event.getSequence();
+        }
+        for (Thread thread : producers) {
+            thread.join();
+        }
+        assertEquals(PRODUCERS * EVENTS_PER_PRODUCER, cursor);
+        assertNull(events.next(cursor));
+    }
+    
+    @Test
+    public void testNewestTimestampNeverMovesBackwards() throws Exception {
+        final EventBuffer events = new EventBuffer("applet", 16);
+        final List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < PRODUCERS; i++) {
+            final int producer = i;
+            final Thread thread = new Thread(() -> {
+                for (int j = 0; j < EVENTS_PER_PRODUCER; j++) {
+                    events.add(j * PRODUCERS + producer, null);
+                }
+            });
+            producers.add(thread);
+            thread.start();
+        }
+        for (Thread thread : producers) {
+            thread.join();
+        }
+        assertEquals(PRODUCERS * EVENTS_PER_PRODUCER - 1, events.getNewestTimestamp());
+    }
+    
+    @Test
+    public void testDropOldestOverwritesUndeliveredEvents() {
+        final EventBuffer events = new EventBuffer("applet", 4);
+        events.attach(new AtomicLong(EventBuffer.NO_SEQUENCE));
+        for (int i = 1; i <= 6; i++) {
+            assertEquals(i, events.add(i, "event " + i));
+        }
+        assertEquals(3, events.getTailSequence());
+        assertEquals(4, events.size());
+        assertEquals(3, events.next(EventBuffer.NO_SEQUENCE).getSequence());
+        assertNull(events.get(2));
+    }
+    
+    @Test
+    public void testDropNewestKeepsUndeliveredEvents() {
+        final EventBuffer events = new EventBuffer("applet", 4).setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        final AtomicLong cursor = new AtomicLong(EventBuffer.NO_SEQUENCE);
+        events.attach(cursor);
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, events.add(i, "event " + i));
+        }
+        assertEquals(EventBuffer.DROPPED, events.add(5, "event 5"));
+        assertEquals(1, events.getDroppedCount());
+        assertEquals("event 1", events.next(EventBuffer.NO_SEQUENCE).getData());
+        cursor.set(2);
+        assertEquals(5, events.add(6, "event 6"));
+        assertEquals("event 6", events.get(5).getData());
+    }
+    
+    @Test
+    public void testRejectKeepsUndeliveredEvents() {
+        final EventBuffer events = new EventBuffer("applet", 4).setOverflowPolicy(OverflowPolicy.REJECT);
+        final AtomicLong cursor = new AtomicLong(EventBuffer.NO_SEQUENCE);
+        events.attach(cursor);
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, events.add(i, "event " + i));
+        }
+        assertEquals(EventBuffer.REJECTED, events.add(5, "event 5"));
+        assertEquals(1, events.getDroppedCount());
+        events.detach(cursor);
+        assertEquals(5, events.add(6, "event 6"));
+    }
+    
+    @Test
+    public void testNoCursorNeverDrops() {
+        final EventBuffer events = new EventBuffer("applet", 4).setOverflowPolicy(OverflowPolicy.REJECT);
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(events.add(i, "event " + i) > 0);
+        }
+        assertEquals(0, events.getDroppedCount());
+        assertEquals(7, events.getTailSequence());
+    }
+    
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link EventFrame}
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class EventFrameTest {
+    
+    private static final byte[] NEGATIVE_VARINT = {-1, -1, -1, -1, -1, -1, -1, -1, -1, 1};
+    
+    @Test
+    public void testRoundTrip() {
+        final List<Event> events = Arrays.asList(new Event("applet1", 1, 1000, "text"), new Event("applet2", 7, 900, null), new Event("applet1", 2, 1001, ""), new Event("äpplet", Long.MAX_VALUE, 0, "ü€😀"));
+        assertEvents(events, decode(events));
+    }
+    
+    @Test
+    public void testRoundTripDeflated() {
+        final List<Event> events = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            events.add(new Event("applet" + (i % 3), i, 1000 + i, "text of event " + i));
+        }
+        final EventFrame frame = new EventFrame().encode(events);
+        assertEquals(EventFrame.DEFLATED, frame.getBuffer()[1]);
+        assertEvents(events, decode(events));
+    }
+    
+    @Test
+    public void testEmpty() {
+        final byte[] frame = new EventFrame().encode(Collections.emptyList()).toByteArray();
+        assertTrue(EventFrame.isEmpty(frame, frame.length));
+        assertTrue(new EventFrame().decode(frame, 0, frame.length).isEmpty());
+    }
+    
+    @Test
+    public void testMalformed() {
+        final byte[] frame = new EventFrame().encode(Collections.singletonList(new Event("applet", 1, 1000, "text"))).toByteArray();
+        assertMalformed(new byte[0]);
+        assertMalformed(new byte[] {EventFrame.VERSION + 1, 0, 0});
+        assertMalformed(Arrays.copyOf(frame, frame.length - 1));
+        assertMalformed(Arrays.copyOf(frame, frame.length + 1));
+        assertMalformed(EventFrame.VERSION, 0, 1, 2); //Unknown Applet ID handle
+        assertMalformed(EventFrame.VERSION, 0, 1, 0, 100); //Text longer than the frame
+        assertMalformed(EventFrame.VERSION, 0, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1); //Varint longer than 64 bits
+        assertMalformed(EventFrame.VERSION, EventFrame.DEFLATED, 10, 1, 2, 3); //Not deflated
+    }
+    
+    @Test
+    public void testNegativeVarints() {
+        assertMalformed(concat(new byte[] {EventFrame.VERSION, 0}, NEGATIVE_VARINT)); //Event count
+        assertMalformed(concat(new byte[] {EventFrame.VERSION, EventFrame.DEFLATED}, NEGATIVE_VARINT)); //Inflated length
+        assertMalformed(concat(new byte[] {EventFrame.VERSION, 0, 1}, NEGATIVE_VARINT)); //Applet ID handle
+        assertMalformed(concat(new byte[] {EventFrame.VERSION, 0, 1, 0}, NEGATIVE_VARINT)); //Applet ID length
+        assertMalformed(concat(new byte[] {EventFrame.VERSION, 0, 1, 0, 1, 'a', 1, 0}, NEGATIVE_VARINT)); //Text length
+    }
+    
+    private static final List<Event> decode(List<Event> events) {
+        final EventFrame frame = new EventFrame().encode(events);
+        final byte[] buffer = new byte[frame.length() + 3];
+        System.arraycopy(frame.getBuffer(), 0, buffer, 3, frame.length());
+        return new EventFrame().decode(buffer, 3, frame.length());
+    }
+    
+    private static final void assertEvents(List<Event> expected, List<Event> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getID(), actual.get(i).getID());
+            assertEquals(expected.get(i).getSequence(), actual.get(i).getSequence());
+            assertEquals(expected.get(i).getTimestamp(), actual.get(i).getTimestamp());
+            assertEquals(expected.get(i).getData(), actual.get(i).getData());
+        }
+    }
+    
+    private static final void assertMalformed(int... frame) {
+        final byte[] bytes = new byte[frame.length];
+        for (int i = 0; i < frame.length; i++) {
+            bytes[i] = (byte) frame[i];
+        }
+        assertMalformed(bytes);
+    }
+    
+    private static final void assertMalformed(byte[] frame) {
+        try {
+            new EventFrame().decode(frame, 0, frame.length);
+            fail("Decoded the malformed frame " + Arrays.toString(frame));
+        } catch (IllegalArgumentException ex) {
+            //Expected
+        }
+    }
+    
+    private static final byte[] concat(byte[] first, byte[] second) {
+        final byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+    
+}
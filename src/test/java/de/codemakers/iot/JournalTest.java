@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link Journal}
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class JournalTest {
+    
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void testReplay() throws IOException {
+        final File directory = folder.newFolder();
+        final EventStore events = new EventStore(100);
+        final Subscriptions subscriptions = new Subscriptions();
+        final Journal journal = new Journal(directory);
+        assertEquals(0, journal.open(events, subscriptions));
+        events.add("applet1", 1000, "text 1");
+        events.add("applet1", 1001, null);
+        events.add("applet1", 1002, "ü€");
+        events.add("applet2", 1003, "text 4");
+        final Subscriber subscriber = subscriptions.get("client", 1000);
+        subscriber.poll(events.get("applet1"));
+        subscriber.poll(events.get("applet1"));
+        journal.close();
+        final EventStore replayedEvents = new EventStore(100);
+        final Subscriptions replayedSubscriptions = new Subscriptions();
+        final Journal replayed = new Journal(directory);
+        assertEquals(5, replayed.open(replayedEvents, replayedSubscriptions));
+        try {
+            assertEquals(3, replayedEvents.get("applet1").getHeadSequence());
+            assertEquals("text 1", replayedEvents.get("applet1").get(1).getData());
+            assertNull(replayedEvents.get("applet1").get(2).getData());
+            assertEquals("ü€", replayedEvents.get("applet1").get(3).getData());
+            assertEquals(1002, replayedEvents.get("applet1").get(3).getTimestamp());
+            assertEquals("text 4", replayedEvents.get("applet2").get(1).getData());
+            assertEquals(2, replayedSubscriptions.get("client").getCursor("applet1"));
+            assertEquals(1003, replayed.getReplayedUntil());
+            assertEquals("New events continue the sequence", 4, replayedEvents.add("applet1", 1004, "text 5"));
+        } finally {
+            replayed.close();
+        }
+    }
+    
+    @Test
+    public void testCompaction() throws IOException {
+        final File directory = folder.newFolder();
+        final EventStore events = new EventStore(10);
+        final Journal journal = new Journal(directory, 1024, 2);
+        journal.open(events, new Subscriptions());
+        for (int i = 1; i <= 500; i++) {
+            events.add("applet", i, "text of the event " + i);
+        }
+        journal.close();
+        assertTrue("Compaction deletes the old segments", directory.list().length < 10);
+        final EventStore replayedEvents = new EventStore(10);
+        final Journal replayed = new Journal(directory, 1024, 2);
+        replayed.open(replayedEvents, new Subscriptions());
+        try {
+            final EventBuffer buffer = replayedEvents.get("applet");
+            assertEquals(500, buffer.getHeadSequence());
+            assertEquals(491, buffer.getTailSequence());
+            assertEquals("text of the event 491", buffer.get(491).getData());
+        } finally {
+            replayed.close();
+        }
+    }
+    
+    @Test
+    public void testReplayedEventsDoNotAgeWhileDown() {
+        final EventStore events = new EventStore(10);
+        final Subscriptions subscriptions = new Subscriptions();
+        final Retention retention = new Retention(events, subscriptions, new RetentionPolicy(5000, 10), 60000);
+        final EventBuffer buffer = events.getOrCreate("applet");
+        buffer.restore(1, 1000, "text 1");
+        buffer.restore(2, 4000, "text 2");
+        retention.setReplayed(4000, 100000); //Replayed 96 seconds after the newest event
+        assertEquals(0, retention.run(100000));
+        events.add("applet", 100500, "text 3");
+        assertEquals("Only the first event is older than 5 seconds in the time of the journal", 1, retention.run(102500));
+        assertEquals(2, buffer.getTailSequence());
+        assertEquals(1, retention.run(105100));
+        assertEquals(0, retention.run(105400));
+        assertEquals(1, retention.run(105600));
+    }
+    
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link Request}
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class RequestTest {
+    
+    @Test
+    public void testOnlyTriggersInternIDs() {
+        final Interner interner = new Interner(100);
+        final Request request = new Request(interner);
+        assertTrue(parse(request, IFTTJ.IFTTJ_WAIT_EVENTS_PREFIX + "applet1,applet2 10 1000 client"));
+        assertEquals("applet2", request.getID(1));
+        assertEquals("Polls do not intern unknown IDs", 0, interner.size());
+        assertTrue(parse(request, IFTTJ.IFTTT_APPLET_PREFIX + "applet1 text"));
+        assertEquals(Request.Command.TRIGGER, request.getCommand());
+        final String id = request.getID(0);
+        assertEquals(1, interner.size());
+        assertTrue(parse(request, IFTTJ.IFTTJ_GET_EVENTS_PREFIX + "applet1 client"));
+        assertSame("Polls look up known IDs", id, request.getID(0));
+    }
+    
+    private static final boolean parse(Request request, String body) {
+        final ByteBuffer buffer = ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8));
+        return request.parse(buffer, 0, buffer.limit());
+    }
+    
+}
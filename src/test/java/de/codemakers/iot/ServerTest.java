@@ -0,0 +1,168 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link Server} with {@link Admission}
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class ServerTest {
+    
+    private static final int PARKED = 4;
+    
+    @Test
+    public void testParkedPollsDoNotBlockTriggersHttp() throws Exception {
+        testParkedPollsDoNotBlockTriggers(Server.Transport.HTTP);
+    }
+    
+    @Test
+    public void testParkedPollsDoNotBlockTriggersNio() throws Exception {
+        testParkedPollsDoNotBlockTriggers(Server.Transport.NIO);
+    }
+    
+    private static final void testParkedPollsDoNotBlockTriggers(Server.Transport transport) throws Exception {
+        final int port = freePort();
+        final Admission admission = new Admission().setMaxConcurrent(2);
+        final Queue<DeferredResponse> parked = new ConcurrentLinkedQueue<>();
+        final Server server = new Server(port).setTransport(transport).setAdmission(admission).setHandler((inetSocketAddress, input) -> {
+            if (input.equals("poll")) {
+                final DeferredResponse response = new DeferredResponse();
+                parked.add(response);
+                return response;
+            }
+            return new AbstractMap.SimpleEntry<>(200, "triggered");
+        });
+        assertTrue(server.start(false));
+        final List<Socket> polls = new ArrayList<>();
+        try {
+            for (int i = 0; i < PARKED; i++) {
+                final Socket socket = new Socket("127.0.0.1", port);
+                polls.add(socket);
+                send(socket, port, "Connection: close\r\n", "poll");
+            }
+            final long deadline = System.currentTimeMillis() + 5000;
+            while ((parked.size() < PARKED || admission.getInFlight() > 0) && System.currentTimeMillis() < deadline) { //Released just after parking
+                Thread.sleep(10);
+            }
+            assertEquals(PARKED, parked.size());
+            assertEquals("Parked polls do not count as in flight", 0, admission.getInFlight());
+            assertEquals("HTTP/1.1 200", request(port, ""));
+            parked.forEach((response) -> response.complete(200, "polled"));
+            for (Socket socket : polls) {
+                assertTrue(receive(socket).startsWith("HTTP/1.1 200"));
+                drain(socket);
+            }
+            assertEquals(0, admission.getRejectedConcurrencyCount());
+            assertEquals(0, admission.getInFlight());
+        } finally {
+            for (Socket socket : polls) {
+                socket.close();
+            }
+            server.stop(false);
+        }
+    }
+    
+    @Test
+    public void testPeerSecretHttp() throws Exception {
+        testPeerSecret(Server.Transport.HTTP);
+    }
+    
+    @Test
+    public void testPeerSecretNio() throws Exception {
+        testPeerSecret(Server.Transport.NIO);
+    }
+    
+    private static final void testPeerSecret(Server.Transport transport) throws Exception {
+        final int port = freePort();
+        final Server server = new Server(port).setTransport(transport).setPeerSecret("secret").setRequestHandler((inetSocketAddress, buffer, from, to, binary, peer) -> new AbstractMap.SimpleEntry<>(peer ? 200 : 403, null));
+        assertTrue(server.start(false));
+        try {
+            assertEquals("HTTP/1.1 403", request(port, ""));
+            assertEquals("HTTP/1.1 403", request(port, Server.PEER_HEADER + ": wrong\r\n"));
+            assertEquals("HTTP/1.1 200", request(port, Server.PEER_HEADER + ": secret\r\n"));
+        } finally {
+            server.stop(false);
+        }
+    }
+    
+    private static final int freePort() throws IOException {
+        try (final ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+    
+    /**
+     * Sends a request on a new connection and returns the start of its status
+     * line
+     */
+    private static final String request(int port, String headers) throws IOException {
+        try (final Socket socket = new Socket("127.0.0.1", port)) {
+            send(socket, port, headers + "Connection: close\r\n", "trigger");
+            final String statusLine = receive(socket);
+            drain(socket);
+            return statusLine.substring(0, 12);
+        }
+    }
+    
+    private static final void send(Socket socket, int port, String headers, String body) throws IOException {
+        final OutputStream os = socket.getOutputStream();
+        os.write(String.format("POST /%s HTTP/1.1\r\nHost: 127.0.0.1:%d\r\n%sContent-Length: %d\r\n\r\n%s", IFTTJ.URL_SUFFIX, port, headers, body.length(), body).getBytes(StandardCharsets.US_ASCII));
+        os.flush();
+    }
+    
+    /**
+     * Reads the status line of a response
+     */
+    private static final String receive(Socket socket) throws IOException {
+        socket.setSoTimeout(5000);
+        final InputStream is = socket.getInputStream();
+        final StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = is.read()) >= 0 && b != '\r') {
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Reads the rest of a response, so the Server is not interrupted while
+     * writing it
+     */
+    private static final void drain(Socket socket) throws IOException {
+        final InputStream is = socket.getInputStream();
+        while (is.read() >= 0) {
+            //Until the Server closed the connection
+        }
+    }
+    
+}
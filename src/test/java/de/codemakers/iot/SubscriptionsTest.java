@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018 Paul Hagedorn (Panzer1119)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codemakers.iot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Tests of {@link Subscriptions}
+ *
+ * @author Paul Hagedorn (Panzer1119)
+ */
+public class SubscriptionsTest {
+    
+    @Test
+    public void testReturningClientContinues() {
+        final EventBuffer events = new EventBuffer("applet", 10);
+        for (int i = 1; i <= 3; i++) {
+            events.add(1000 + i, "event " + i);
+        }
+        final Subscriptions subscriptions = new Subscriptions();
+        final Subscriber subscriber = subscriptions.get("client", 1000);
+        assertEquals(1, subscriber.poll(events).getSequence());
+        assertEquals(2, subscriber.poll(events).getSequence());
+        assertEquals(1, subscriptions.expire(100000, 1000));
+        final Subscriber returned = subscriptions.get("client", 100000);
+        assertNotSame(subscriber, returned);
+        assertEquals("The received events are not delivered again", 3, returned.poll(events).getSequence());
+    }
+    
+    @Test
+    public void testForgottenClientStartsWithTheOldestEvent() {
+        final EventBuffer events = new EventBuffer("applet", 10);
+        for (int i = 1; i <= 3; i++) {
+            events.add(1000 + i, "event " + i);
+        }
+        final Subscriptions subscriptions = new Subscriptions(1);
+        subscriptions.get("client1", 1000).poll(events);
+        subscriptions.get("client2", 1000).poll(events);
+        assertEquals(2, subscriptions.expire(100000, 1000));
+        assertEquals("Only the last expired Subscriber is remembered", 1, subscriptions.get("client1", 100000).poll(events).getSequence());
+        assertEquals(2, subscriptions.get("client2", 100000).poll(events).getSequence());
+    }
+    
+}